@@ -0,0 +1,339 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A $apply request on a CDS entity set, translated into a GROUP BY query so that only the
+ * aggregated rows leave HANA. Supports any number of filter(...) transformations followed by one
+ * groupby((...)[,aggregate(...)]) or aggregate(...), with the methods sum, min, max, average and
+ * countdistinct and the virtual property $count. $orderby (on grouping properties and aliases),
+ * $top, $skip, $skiptoken and $count apply to the aggregated rows; {@link #parse} returns null
+ * for anything else so the request can be left to the OData runtime.
+ */
+public class AggregationQuery implements StreamableQuery {
+
+	private static final Set<String> SUPPORTED_OPTIONS = new LinkedHashSet<>(
+			Arrays.asList("$apply", "$orderby", "$top", "$skip", "$skiptoken", "$count", "$format"));
+
+	private static final Pattern AGGREGATE_EXPRESSION = Pattern
+			.compile("(\\$count|[A-Za-z_][A-Za-z0-9_]*)(?:\\s+with\\s+([a-z]+))?\\s+as\\s+([A-Za-z_][A-Za-z0-9_]*)");
+
+	private final EPMSampleModel.EntitySet entitySet;
+	private final List<String> groupBy;
+	/** alias -> SQL expression */
+	private final Map<String, String> aggregates;
+	private final List<String> columns;
+	private final List<String> orderBy;
+	private final List<SqlFilter> filters;
+	private final int skip;
+	private final int top;
+	private final boolean countRequested;
+
+	private AggregationQuery(EPMSampleModel.EntitySet entitySet, List<String> groupBy, Map<String, String> aggregates,
+			List<String> orderBy, List<SqlFilter> filters, int skip, int top, boolean countRequested) {
+		this.entitySet = entitySet;
+		this.groupBy = groupBy;
+		this.aggregates = aggregates;
+		List<String> columns = new ArrayList<>(groupBy);
+		columns.addAll(aggregates.keySet());
+		this.columns = Collections.unmodifiableList(columns);
+		this.orderBy = orderBy;
+		this.filters = filters;
+		this.skip = skip;
+		this.top = top;
+		this.countRequested = countRequested;
+	}
+
+	/**
+	 * @return the parsed query, or null if the request has no $apply or uses options or
+	 *         transformations this path does not handle
+	 * @throws IllegalArgumentException if a supported option has an invalid value
+	 */
+	public static AggregationQuery parse(EPMSampleModel.EntitySet entitySet, Map<String, String[]> parameters) {
+		String apply = EntitySetQuery.first(parameters, "$apply");
+		if (apply == null) {
+			return null;
+		}
+		for (String name : parameters.keySet()) {
+			if (name.startsWith("$") && !SUPPORTED_OPTIONS.contains(name)) {
+				return null;
+			}
+		}
+		String format = EntitySetQuery.first(parameters, "$format");
+		if (format != null && !format.startsWith("json") && !format.startsWith("application/json")) {
+			return null;
+		}
+
+		List<SqlFilter> filters = new ArrayList<>();
+		List<String> groupBy = new ArrayList<>();
+		Map<String, String> aggregates = new LinkedHashMap<>();
+		boolean aggregated = false;
+		for (String transformation : split(apply.trim(), '/')) {
+			if (aggregated) {
+				// transformations on aggregated rows are left to the OData runtime
+				return null;
+			}
+			String arguments = arguments(transformation, "filter");
+			if (arguments != null) {
+				filters.add(SqlFilter.parse(arguments, entitySet));
+				continue;
+			}
+			arguments = arguments(transformation, "groupby");
+			if (arguments != null) {
+				List<String> parts = split(arguments, ',');
+				String properties = parts.get(0);
+				if (!properties.startsWith("(") || !properties.endsWith(")") || parts.size() > 2) {
+					return null;
+				}
+				for (String property : split(properties.substring(1, properties.length() - 1), ',')) {
+					if (!entitySet.hasProperty(property)) {
+						// navigation paths and the like
+						return null;
+					}
+					if (!groupBy.contains(property)) {
+						groupBy.add(property);
+					}
+				}
+				if (parts.size() == 2) {
+					arguments = arguments(parts.get(1), "aggregate");
+					if (arguments == null) {
+						return null;
+					}
+					addAggregates(entitySet, arguments, groupBy, aggregates);
+				}
+				aggregated = true;
+				continue;
+			}
+			arguments = arguments(transformation, "aggregate");
+			if (arguments != null) {
+				addAggregates(entitySet, arguments, groupBy, aggregates);
+				aggregated = true;
+				continue;
+			}
+			return null;
+		}
+		if (!aggregated) {
+			// filter() alone does not reduce the rows; not worth a separate path
+			return null;
+		}
+
+		List<String> orderBy = new ArrayList<>();
+		Set<String> ordered = new LinkedHashSet<>();
+		String orderByOption = EntitySetQuery.first(parameters, "$orderby");
+		if (orderByOption != null) {
+			for (String item : orderByOption.split(",")) {
+				String[] parts = item.trim().split("\\s+");
+				if ((!groupBy.contains(parts[0]) && !aggregates.containsKey(parts[0])) || parts.length > 2
+						|| (parts.length == 2 && !"asc".equals(parts[1]) && !"desc".equals(parts[1]))) {
+					throw new IllegalArgumentException("Invalid $orderby item '" + item.trim() + "'");
+				}
+				if (ordered.add(parts[0])) {
+					orderBy.add("\"" + parts[0] + "\"" + (parts.length == 2 && "desc".equals(parts[1]) ? " DESC" : ""));
+				}
+			}
+		}
+		// the grouping properties identify a row, which keeps paging stable
+		for (String property : groupBy) {
+			if (ordered.add(property)) {
+				orderBy.add("\"" + property + "\"");
+			}
+		}
+
+		int skip = EntitySetQuery.nonNegative(parameters, "$skip", 0) + EntitySetQuery.nonNegative(parameters, "$skiptoken", 0);
+		int top = EntitySetQuery.nonNegative(parameters, "$top", -1);
+		return new AggregationQuery(entitySet, Collections.unmodifiableList(groupBy), aggregates, orderBy, filters, skip, top,
+				EntitySetQuery.bool(parameters, "$count"));
+	}
+
+	@Override
+	public EPMSampleModel.EntitySet getEntitySet() {
+		return entitySet;
+	}
+
+	@Override
+	public String getContext() {
+		StringBuilder context = new StringBuilder(entitySet.getName()).append('(');
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				context.append(',');
+			}
+			context.append(columns.get(i));
+		}
+		return context.append(')').toString();
+	}
+
+	@Override
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	@Override
+	public int getSkip() {
+		return skip;
+	}
+
+	@Override
+	public int getTop() {
+		return top;
+	}
+
+	@Override
+	public boolean isCountRequested() {
+		return countRequested;
+	}
+
+	@Override
+	public String toSql(int limit) {
+		StringBuilder sql = groupedSql();
+		EntitySetQuery.appendOrderBy(sql, orderBy);
+		EntitySetQuery.appendLimit(sql, limit, skip);
+		return sql.toString();
+	}
+
+	@Override
+	public String toCountSql() {
+		return "SELECT COUNT(*) FROM (" + groupedSql() + ") AS \"groups\"";
+	}
+
+	@Override
+	public void bind(PreparedStatement statement) throws SQLException {
+		int index = 1;
+		for (SqlFilter filter : filters) {
+			for (Object parameter : filter.getParameters()) {
+				statement.setObject(index++, parameter);
+			}
+		}
+	}
+
+	private StringBuilder groupedSql() {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		boolean first = true;
+		for (String property : groupBy) {
+			sql.append(first ? "" : ", ").append('"').append(property).append('"');
+			first = false;
+		}
+		for (Map.Entry<String, String> aggregate : aggregates.entrySet()) {
+			sql.append(first ? "" : ", ").append(aggregate.getValue()).append(" AS \"").append(aggregate.getKey()).append('"');
+			first = false;
+		}
+		sql.append(" FROM ").append(entitySet.getTableName());
+		for (int i = 0; i < filters.size(); i++) {
+			sql.append(i == 0 ? " WHERE (" : " AND (").append(filters.get(i).getSql()).append(')');
+		}
+		for (int i = 0; i < groupBy.size(); i++) {
+			sql.append(i == 0 ? " GROUP BY " : ", ").append('"').append(groupBy.get(i)).append('"');
+		}
+		return sql;
+	}
+
+	private static void addAggregates(EPMSampleModel.EntitySet entitySet, String arguments, List<String> groupBy,
+			Map<String, String> aggregates) {
+		for (String expression : split(arguments, ',')) {
+			Matcher matcher = AGGREGATE_EXPRESSION.matcher(expression);
+			if (!matcher.matches()) {
+				throw new IllegalArgumentException("Invalid aggregate expression '" + expression + "' in $apply");
+			}
+			String property = matcher.group(1);
+			String method = matcher.group(2);
+			String alias = matcher.group(3);
+			if (entitySet.hasProperty(alias) || groupBy.contains(alias) || aggregates.containsKey(alias)) {
+				throw new IllegalArgumentException("Alias '" + alias + "' in $apply is already in use");
+			}
+			if ("$count".equals(property)) {
+				if (method != null) {
+					throw new IllegalArgumentException("$count in $apply does not take a method");
+				}
+				aggregates.put(alias, "COUNT(*)");
+				continue;
+			}
+			if (!entitySet.hasProperty(property)) {
+				throw new IllegalArgumentException("Unknown property '" + property + "' in $apply");
+			}
+			if (method == null) {
+				throw new IllegalArgumentException("Missing aggregation method for '" + property + "' in $apply");
+			}
+			String column = "\"" + property + "\"";
+			boolean numeric = "Edm.Int32".equals(entitySet.getType(property));
+			switch (method) {
+			case "sum":
+				requireNumeric(numeric, method, property);
+				aggregates.put(alias, "SUM(" + column + ")");
+				break;
+			case "average":
+				requireNumeric(numeric, method, property);
+				// without the cast, the average of an integer column would be truncated
+				aggregates.put(alias, "AVG(CAST(" + column + " AS DECIMAL(34,4)))");
+				break;
+			case "min":
+				aggregates.put(alias, "MIN(" + column + ")");
+				break;
+			case "max":
+				aggregates.put(alias, "MAX(" + column + ")");
+				break;
+			case "countdistinct":
+				aggregates.put(alias, "COUNT(DISTINCT " + column + ")");
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported aggregation method '" + method + "' in $apply");
+			}
+		}
+	}
+
+	private static void requireNumeric(boolean numeric, String method, String property) {
+		if (!numeric) {
+			throw new IllegalArgumentException(method + " needs a numeric property, '" + property + "' is not");
+		}
+	}
+
+	/**
+	 * @return the text between the parentheses of {@code name(...)}, or null if the
+	 *         transformation is not a call of name
+	 */
+	private static String arguments(String transformation, String name) {
+		String trimmed = transformation.trim();
+		if (!trimmed.startsWith(name) || !trimmed.endsWith(")")) {
+			return null;
+		}
+		String rest = trimmed.substring(name.length()).trim();
+		return rest.startsWith("(") ? rest.substring(1, rest.length() - 1).trim() : null;
+	}
+
+	/**
+	 * Splits at separators outside of parentheses and string literals.
+	 */
+	private static List<String> split(String value, char separator) {
+		List<String> parts = new ArrayList<>();
+		int depth = 0;
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && c == '(') {
+				depth++;
+			} else if (!quoted && c == ')') {
+				depth--;
+			} else if (!quoted && depth == 0 && c == separator) {
+				parts.add(value.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		if (depth != 0 || quoted) {
+			throw new IllegalArgumentException("Unbalanced parentheses or quotes in $apply");
+		}
+		parts.add(value.substring(start).trim());
+		return parts;
+	}
+}
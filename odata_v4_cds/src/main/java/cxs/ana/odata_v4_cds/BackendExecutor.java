@@ -0,0 +1,286 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.cloud.sdk.cloudplatform.servlet.RequestContextExecutor;
+import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
+
+/**
+ * Dedicated thread pool for calls to the backend OData V2 service. Every call has one deadline,
+ * retries included, so a slow backend holds a request thread for at most backend.timeoutMillis,
+ * and the size of the pool caps how many threads can wait for the backend at all, leaving the
+ * rest for CDS requests.
+ * <p>
+ * On top of the pool, a bulkhead limits the calls in flight (queued, or running until the call
+ * actually returns), a {@link CircuitBreaker} stops calling a backend that keeps failing or
+ * answering slowly, and calls that failed on the transport level are retried with jittered
+ * backoff while the deadline leaves time for it. A call that timed out is not retried: the
+ * backend is slow, and another attempt would only add to its load. All backend calls are reads,
+ * so retrying them is safe.
+ */
+public final class BackendExecutor {
+
+	private static final Logger logger = LoggerFactory.getLogger(BackendExecutor.class);
+
+	private static final BackendExecutor instance = new BackendExecutor();
+
+	private final long timeoutMillis = ServiceConfig.getLong("backend.timeoutMillis", 10000);
+	private final int maxAttempts = Math.max(1, ServiceConfig.getInt("backend.retry.maxAttempts", 3));
+	private final long retryBaseDelayMillis = ServiceConfig.getLong("backend.retry.baseDelayMillis", 100);
+	private final long retryMaxDelayMillis = ServiceConfig.getLong("backend.retry.maxDelayMillis", 1000);
+	private final long bulkheadWaitMillis = ServiceConfig.getLong("backend.bulkhead.maxWaitMillis", 100);
+	private final ThreadPoolExecutor executor;
+	private final Semaphore bulkhead = new Semaphore(ServiceConfig.getInt("backend.bulkhead.maxConcurrentCalls", 32));
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(ProductBackend.DESTINATION_NAME);
+	private final ServiceMetrics metrics = ServiceMetrics.getInstance();
+
+	private final AtomicLong bulkheadRejections = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	private BackendExecutor() {
+		int threads = ServiceConfig.getInt("backend.threads", 16);
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(ServiceConfig.getInt("backend.queueSize", 64)), runnable -> {
+					Thread thread = new Thread(runnable, "backend-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public static BackendExecutor getInstance() {
+		return instance;
+	}
+
+	public interface BackendCall<T> {
+		T call() throws ODataException;
+	}
+
+	/**
+	 * Runs the call on the backend pool and waits for it, retries included, at most
+	 * backend.timeoutMillis.
+	 *
+	 * @throws BackendUnavailableException if the call timed out, the bulkhead is full or the
+	 *         circuit breaker is open
+	 */
+	public <T> T execute(BackendCall<T> call) throws ODataException {
+		metrics.countBackendCalls(1);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (int attempt = 1;; attempt++) {
+			try {
+				return await(submit(call), deadline);
+			} catch (BackendUnavailableException e) {
+				if (attempt >= maxAttempts || !isRetryable(e)) {
+					throw e;
+				}
+				long delay = ThreadLocalRandom.current().nextLong(
+						Math.min(retryMaxDelayMillis, retryBaseDelayMillis << (attempt - 1)) + 1);
+				if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadline) {
+					// no time left for another attempt
+					throw e;
+				}
+				retries.incrementAndGet();
+				logger.warn("==> Backend OData V2 service call failed ({}), retry {} in {} ms", e.getMessage(), attempt, delay);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the calls concurrently and returns their results in order. All calls share one deadline
+	 * and are not retried.
+	 */
+	public <T> List<T> executeAll(List<BackendCall<T>> calls) throws ODataException {
+		if (calls.size() == 1) {
+			List<T> result = new ArrayList<>(1);
+			result.add(execute(calls.get(0)));
+			return result;
+		}
+		metrics.countBackendCalls(calls.size());
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		List<Future<T>> futures = new ArrayList<>(calls.size());
+		try {
+			for (BackendCall<T> call : calls) {
+				futures.add(submit(call));
+			}
+			List<T> results = new ArrayList<>(calls.size());
+			for (Future<T> future : futures) {
+				results.add(await(future, deadline));
+			}
+			return results;
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Starts all backend threads now instead of on the first calls.
+	 */
+	public void prestartThreads() {
+		executor.prestartAllCoreThreads();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public long getBulkheadRejections() {
+		return bulkheadRejections.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	private <T> Future<T> submit(BackendCall<T> call) {
+		if (!circuitBreaker.tryAcquirePermission()) {
+			throw new BackendUnavailableException("The backend OData V2 service is failing, calls are suspended for now", 503);
+		}
+		try {
+			if (!bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS)) {
+				bulkheadRejections.incrementAndGet();
+				circuitBreaker.releasePermission();
+				logger.error("==> Backend OData V2 service call rejected, {} calls active and {} queued", executor.getActiveCount(), getQueueSize());
+				throw new BackendUnavailableException("Too many concurrent calls to the backend OData V2 service", 503);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BackendUnavailableException("Interrupted while waiting for the backend OData V2 service", 503, e);
+		}
+		// claimed by the call when it starts, or by the cancellation of a call still in the queue
+		AtomicBoolean claimed = new AtomicBoolean();
+		// the cloud SDK resolves destinations through the request context, which the pool threads lack
+		Callable<T> task = () -> {
+			if (!claimed.compareAndSet(false, true)) {
+				return null;
+			}
+			long start = System.nanoTime();
+			try {
+				T result = new RequestContextExecutor().execute(call::call);
+				long nanos = System.nanoTime() - start;
+				circuitBreaker.onSuccess(nanos);
+				metrics.recordBackendCall("success", nanos);
+				return result;
+			} catch (Exception e) {
+				long nanos = System.nanoTime() - start;
+				if (isTransportFailure(e)) {
+					circuitBreaker.onError(nanos);
+					metrics.recordBackendCall("transport_failure", nanos);
+				} else {
+					// the backend answered, e.g. with 404 for an unknown product
+					circuitBreaker.onSuccess(nanos);
+					metrics.recordBackendCall("error", nanos);
+				}
+				throw e;
+			} finally {
+				// a cancelled call keeps its slot until the backend has actually let go of the thread
+				bulkhead.release();
+			}
+		};
+		FutureTask<T> future = new FutureTask<T>(task) {
+			@Override
+			protected void done() {
+				if (isCancelled() && claimed.compareAndSet(false, true)) {
+					// cancelled before it started
+					bulkhead.release();
+					circuitBreaker.releasePermission();
+				}
+			}
+		};
+		try {
+			executor.execute(future);
+			return future;
+		} catch (RejectedExecutionException e) {
+			bulkhead.release();
+			bulkheadRejections.incrementAndGet();
+			circuitBreaker.releasePermission();
+			logger.error("==> Backend OData V2 service call rejected, {} calls active and {} queued", executor.getActiveCount(), getQueueSize());
+			throw new BackendUnavailableException("Too many concurrent calls to the backend OData V2 service", 503, e);
+		}
+	}
+
+	private <T> T await(Future<T> future, long deadline) throws ODataException {
+		try {
+			return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			// the interrupted call reports its failure to the circuit breaker itself
+			future.cancel(true);
+			throw new BackendUnavailableException("The backend OData V2 service did not answer within " + timeoutMillis + " ms", 504, e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new BackendUnavailableException("Interrupted while waiting for the backend OData V2 service", 503, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (isTransportFailure(cause)) {
+				throw new BackendUnavailableException("Call to the backend OData V2 service failed: " + cause.getMessage(), 502, cause);
+			}
+			if (cause instanceof ODataException) {
+				throw (ODataException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new BackendUnavailableException("Call to the backend OData V2 service failed: " + cause.getMessage(), 502, cause);
+		}
+	}
+
+	private static boolean isRetryable(BackendUnavailableException e) {
+		return e.getStatusCode() == 502;
+	}
+
+	/**
+	 * @return true if the backend could not be reached or the connection broke, as opposed to
+	 *         the backend answering with an error
+	 */
+	private static boolean isTransportFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+}
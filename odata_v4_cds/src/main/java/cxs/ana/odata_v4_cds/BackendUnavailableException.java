@@ -0,0 +1,26 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * The backend OData V2 service could not be called in time, e.g. because the call timed out or
+ * no capacity was left to run it. Carries the HTTP status the handlers should answer with.
+ */
+public class BackendUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	public BackendUnavailableException(String message, int statusCode) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+
+	public BackendUnavailableException(String message, int statusCode, Throwable cause) {
+		super(message, cause);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
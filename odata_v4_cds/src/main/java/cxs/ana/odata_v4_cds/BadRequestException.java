@@ -0,0 +1,14 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * The request asks for something the model does not allow, e.g. to set a property the service
+ * maintains itself. The handlers answer with 400 Bad Request.
+ */
+public class BadRequestException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BadRequestException(String message) {
+		super(message);
+	}
+}
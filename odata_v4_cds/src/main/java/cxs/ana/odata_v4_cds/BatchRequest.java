@@ -0,0 +1,447 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The parts of a multipart $batch request, read by {@link BatchRequestFilter} before the OData
+ * runtime processes them. The runtime calls the write handlers of the parts one after the other
+ * without telling them which change set they belong to; the handlers announce each write with
+ * {@link #enter}, which matches it to the next part with the same operation and entity set.
+ * <p>
+ * The writes of one change set run in one {@link ChangeSet}, begun with its first write and
+ * committed with its last. If a write of the change set fails, its commit fails, or the runtime
+ * skips some of its writes, the change set is rolled back and recorded as failed. The filter
+ * holds back the multipart response until the batch is done and then answers each failed change
+ * set with a single error response (see {@link #toResponse}), so that no part reports a write
+ * that was rolled back. Writes outside of a change set commit on their own.
+ * <p>
+ * The If-Match header of a part is only known here, the handlers see the headers of the $batch
+ * request itself; see {@link #getIfMatch()}.
+ */
+public final class BatchRequest implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchRequest.class);
+
+	private static final String ATTRIBUTE = BatchRequest.class.getName();
+
+	public static final String CREATE = "create";
+	public static final String UPDATE = "update";
+	public static final String DELETE = "delete";
+
+	private final List<Part> parts;
+	// index of the first part not matched yet
+	private int next;
+	// position of a failed change set in the batch -> reason
+	private final Map<Integer, String> failedChangeSets = new LinkedHashMap<>();
+	private ChangeSet changeSet;
+	private int changeSetIndex = -1;
+	private Part current;
+
+	BatchRequest(List<Part> parts) {
+		this.parts = parts;
+	}
+
+	/**
+	 * Binds the parts of a $batch request to the current request.
+	 */
+	static BatchRequest begin(List<Part> parts) {
+		BatchRequest batch = new BatchRequest(parts);
+		RequestContext context = RequestContext.current();
+		if (context != null) {
+			context.setAttribute(ATTRIBUTE, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * @return the $batch request being processed or null outside of one
+	 */
+	public static BatchRequest current() {
+		RequestContext context = RequestContext.current();
+		return context == null ? null : context.<BatchRequest>getAttribute(ATTRIBUTE);
+	}
+
+	/**
+	 * Called by a write handler before it writes; begins the change set of its part if it is the
+	 * first write of it. A change set that is still open at this point lost its remaining writes
+	 * and is rolled back.
+	 *
+	 * @param operation {@link #CREATE}, {@link #UPDATE} or {@link #DELETE}
+	 */
+	public void enter(String operation, String entitySetName) throws SQLException, NamingException {
+		current = match(operation, entitySetName);
+		if (current == null) {
+			logger.warn("No part of the $batch request matches the {} of {}; writing it on its own", operation, entitySetName);
+		}
+		int index = current == null ? -1 : current.changeSet;
+		if (changeSet != null && index != changeSetIndex) {
+			logger.debug("Rolling back change set {} of a $batch request, its remaining writes were not processed", changeSetIndex);
+			fail(changeSetIndex, "The remaining writes of the change set were not processed");
+			endChangeSet();
+		}
+		if (changeSet == null && index >= 0) {
+			changeSet = ChangeSet.begin();
+			changeSetIndex = index;
+		}
+	}
+
+	/**
+	 * Called by a write handler when its write has succeeded; commits the change set after its
+	 * last write, or rolls it back if some of its writes were skipped.
+	 *
+	 * @throws SQLException if the change set could not be committed; it is rolled back then
+	 */
+	public void completed() throws SQLException {
+		Part part = current;
+		current = null;
+		if (changeSet == null || part == null || !isLast(part)) {
+			return;
+		}
+		try {
+			if (failedChangeSets.containsKey(getPosition(changeSetIndex))) {
+				changeSet.setRollbackOnly();
+			}
+			changeSet.commit();
+		} catch (SQLException | BadRequestException e) {
+			fail(changeSetIndex, "The change set could not be committed: " + e.getMessage());
+			throw e;
+		} finally {
+			endChangeSet();
+		}
+	}
+
+	/**
+	 * Called by a write handler when its write has failed; rolls back the open change set.
+	 */
+	public void failed() {
+		if (current != null && current.changeSet >= 0) {
+			fail(current.changeSet, "A write of the change set failed");
+		}
+		current = null;
+		endChangeSet();
+	}
+
+	/**
+	 * @return the If-Match header of the part whose write is running, or null if it has none or *
+	 * @throws PreconditionRequiredException if the write could not be matched to its part, but
+	 *         parts of the batch are conditional
+	 */
+	public String getIfMatch() {
+		if (current != null) {
+			return current.ifMatch;
+		}
+		for (Part part : parts) {
+			if (part.ifMatch != null) {
+				throw new PreconditionRequiredException("The If-Match header of the write could not be determined in the $batch request");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Rolls back a change set the runtime did not finish.
+	 */
+	@Override
+	public void close() {
+		try {
+			if (changeSet != null) {
+				fail(changeSetIndex, "The remaining writes of the change set were not processed");
+			}
+			endChangeSet();
+		} finally {
+			RequestContext context = RequestContext.current();
+			if (context != null && context.getAttribute(ATTRIBUTE) == this) {
+				context.setAttribute(ATTRIBUTE, null);
+			}
+		}
+	}
+
+	/**
+	 * Answers each failed change set in the multipart response of the runtime with one error
+	 * response: the first failed part of it, or a 500 with the reason if all of its parts succeeded
+	 * before it was rolled back.
+	 *
+	 * @return the response body to send
+	 */
+	byte[] toResponse(String contentType, byte[] response) {
+		String boundary = getBoundary(contentType);
+		if (boundary == null || failedChangeSets.isEmpty()) {
+			return response;
+		}
+		String multipart = new String(response, StandardCharsets.ISO_8859_1);
+		String delimiter = "--" + boundary;
+		StringBuilder result = new StringBuilder(multipart.length());
+		int copied = 0;
+		int position = 0;
+		int start = multipart.indexOf(delimiter);
+		while (start >= 0) {
+			start += delimiter.length();
+			int end = multipart.indexOf(delimiter, start);
+			if (multipart.startsWith("--", start) || end < 0) {
+				break;
+			}
+			String reason = failedChangeSets.get(position++);
+			if (reason != null) {
+				result.append(multipart, copied, start).append(toErrorPart(multipart.substring(start, end), reason));
+				copied = end;
+			}
+			start = end;
+		}
+		result.append(multipart, copied, multipart.length());
+		return result.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the position of a failed change set in the batch -> reason
+	 */
+	Map<Integer, String> getFailedChangeSets() {
+		return Collections.unmodifiableMap(failedChangeSets);
+	}
+
+	private static String toErrorPart(String bodyPart, String reason) {
+		String[] headAndContent = splitHead(bodyPart);
+		String partBoundary = getBoundary(getHeader(headAndContent[0], "Content-Type"));
+		if (partBoundary == null) {
+			// the runtime answered the change set with one response already
+			return bodyPart;
+		}
+		for (String changeSetPart : split(headAndContent[1], partBoundary)) {
+			String[] partHeadAndResponse = splitHead(changeSetPart);
+			String[] statusLine = partHeadAndResponse[1].split("\r?\n", 2)[0].split(" ");
+			if (statusLine.length > 1 && (statusLine[1].startsWith("4") || statusLine[1].startsWith("5"))) {
+				return "\r\n" + partHeadAndResponse[0] + "\r\n\r\n" + partHeadAndResponse[1].replaceFirst("\\s+$", "") + "\r\n";
+			}
+		}
+		StringWriter json = new StringWriter();
+		try {
+			new JsonWriter(json).beginObject().name("error").beginObject().name("code").value("500").name("message").value(reason)
+					.endObject().endObject().flush();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] content = json.toString().getBytes(StandardCharsets.UTF_8);
+		return "\r\nContent-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n"
+				+ "HTTP/1.1 500 Internal Server Error\r\nContent-Type: application/json;odata.metadata=minimal\r\n"
+				+ "Content-Length: " + content.length + "\r\n\r\n" + new String(content, StandardCharsets.ISO_8859_1) + "\r\n";
+	}
+
+	private Part match(String operation, String entitySetName) {
+		for (int i = next; i < parts.size(); i++) {
+			Part part = parts.get(i);
+			// a part addressed by a Content-ID reference ($1) has no entity set of its own
+			if (operation.equals(part.operation) && (part.entitySet == null || part.entitySet.equals(entitySetName))) {
+				for (int j = next; j < i; j++) {
+					if (parts.get(j).changeSet >= 0) {
+						// the runtime did not hand this write to a handler
+						fail(parts.get(j).changeSet, "A write of the change set was not processed");
+					}
+				}
+				next = i + 1;
+				return part;
+			}
+		}
+		return null;
+	}
+
+	private void fail(int changeSetIndex, String reason) {
+		Integer position = getPosition(changeSetIndex);
+		if (!failedChangeSets.containsKey(position)) {
+			failedChangeSets.put(position, reason);
+		}
+	}
+
+	/**
+	 * @return the position of the change set among the parts of the batch
+	 */
+	private Integer getPosition(int changeSetIndex) {
+		for (Part part : parts) {
+			if (part.changeSet == changeSetIndex) {
+				return part.position;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isLast(Part part) {
+		for (int i = parts.indexOf(part) + 1; i < parts.size(); i++) {
+			if (parts.get(i).changeSet == part.changeSet) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void endChangeSet() {
+		if (changeSet != null) {
+			// rolls back unless committed
+			changeSet.close();
+			changeSet = null;
+			changeSetIndex = -1;
+		}
+	}
+
+	/**
+	 * @return the writes of a multipart/mixed $batch body in order, or an empty list if it has
+	 *         none or is not multipart
+	 */
+	static List<Part> parse(String contentType, byte[] body) {
+		String boundary = getBoundary(contentType);
+		if (boundary == null) {
+			return Collections.emptyList();
+		}
+		List<Part> parts = new ArrayList<>();
+		int changeSets = 0;
+		int position = 0;
+		for (String bodyPart : split(new String(body, StandardCharsets.ISO_8859_1), boundary)) {
+			String[] headAndContent = splitHead(bodyPart);
+			String partBoundary = getBoundary(getHeader(headAndContent[0], "Content-Type"));
+			if (partBoundary == null) {
+				addPart(parts, headAndContent[1], -1, position++);
+				continue;
+			}
+			for (String changeSetPart : split(headAndContent[1], partBoundary)) {
+				addPart(parts, splitHead(changeSetPart)[1], changeSets, position);
+			}
+			changeSets++;
+			position++;
+		}
+		return parts;
+	}
+
+	private static void addPart(List<Part> parts, String request, int changeSet, int position) {
+		String[] headAndBody = splitHead(request);
+		String head = headAndBody[0];
+		int lineEnd = head.indexOf('\n');
+		String[] requestLine = (lineEnd < 0 ? head : head.substring(0, lineEnd)).trim().split(" ");
+		String operation = getOperation(requestLine[0]);
+		if (operation == null || requestLine.length < 2) {
+			return;
+		}
+		String ifMatch = getHeader(head, "If-Match");
+		parts.add(new Part(operation, getEntitySet(requestLine[1]), "*".equals(ifMatch) ? null : ifMatch, changeSet, position));
+	}
+
+	private static String getOperation(String method) {
+		switch (method) {
+		case "POST":
+			return CREATE;
+		case "PUT":
+		case "PATCH":
+		case "MERGE":
+			return UPDATE;
+		case "DELETE":
+			return DELETE;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the entity set or navigation property in the last segment of the URL, without its key
+	 */
+	private static String getEntitySet(String url) {
+		int queryStart = url.indexOf('?');
+		String path = queryStart < 0 ? url : url.substring(0, queryStart);
+		String segment = path.substring(path.lastIndexOf('/') + 1);
+		int keyStart = segment.indexOf('(');
+		if (keyStart >= 0) {
+			segment = segment.substring(0, keyStart);
+		}
+		return segment.isEmpty() || segment.startsWith("$") ? null : segment;
+	}
+
+	private static String getBoundary(String contentType) {
+		if (contentType == null || !contentType.toLowerCase().startsWith("multipart/mixed")) {
+			return null;
+		}
+		for (String parameter : contentType.split(";")) {
+			String[] nameAndValue = parameter.trim().split("=", 2);
+			if (nameAndValue.length == 2 && "boundary".equalsIgnoreCase(nameAndValue[0].trim())) {
+				String boundary = nameAndValue[1].trim();
+				return boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1
+						? boundary.substring(1, boundary.length() - 1) : boundary;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the body parts between the delimiters of the boundary
+	 */
+	private static List<String> split(String multipart, String boundary) {
+		String delimiter = "--" + boundary;
+		List<String> bodyParts = new ArrayList<>();
+		int start = multipart.indexOf(delimiter);
+		while (start >= 0) {
+			start += delimiter.length();
+			if (multipart.startsWith("--", start)) {
+				break;
+			}
+			int end = multipart.indexOf(delimiter, start);
+			bodyParts.add(end < 0 ? multipart.substring(start) : multipart.substring(start, end));
+			start = end;
+		}
+		return bodyParts;
+	}
+
+	/**
+	 * @return the header lines and the content after the first empty line
+	 */
+	private static String[] splitHead(String text) {
+		String trimmed = text.replaceFirst("^[ \t]*\r?\n", "");
+		int crlf = trimmed.indexOf("\r\n\r\n");
+		int lf = trimmed.indexOf("\n\n");
+		if (crlf >= 0 && (lf < 0 || crlf < lf)) {
+			return new String[] { trimmed.substring(0, crlf), trimmed.substring(crlf + 4) };
+		}
+		if (lf >= 0) {
+			return new String[] { trimmed.substring(0, lf), trimmed.substring(lf + 2) };
+		}
+		return new String[] { trimmed, "" };
+	}
+
+	private static String getHeader(String head, String name) {
+		for (String line : head.split("\r?\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A write of the $batch request.
+	 */
+	static final class Part {
+
+		final String operation;
+		final String entitySet;
+		final String ifMatch;
+		// index of the change set, -1 outside of one
+		final int changeSet;
+		// index of the part, or of its change set, among the body parts of the batch
+		final int position;
+
+		Part(String operation, String entitySet, String ifMatch, int changeSet, int position) {
+			this.operation = operation;
+			this.entitySet = entitySet;
+			this.ifMatch = ifMatch;
+			this.changeSet = changeSet;
+			this.position = position;
+		}
+	}
+}
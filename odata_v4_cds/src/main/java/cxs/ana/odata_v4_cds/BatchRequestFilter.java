@@ -0,0 +1,157 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads the parts of an OData $batch request before the OData runtime processes them, so that
+ * the writes of each change set run in one {@link ChangeSet}: one connection, one transaction
+ * (see {@link BatchRequest}). The runtime's multipart response is held back until every change
+ * set is committed or rolled back; a failed change set is then answered with one error response
+ * in place of the responses of its parts. Batches without writes are passed on unchanged.
+ */
+public class BatchRequestFilter implements Filter {
+
+	private final boolean enabled = ServiceConfig.getBoolean("changeset.enabled", true);
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		if (!enabled || !"POST".equals(request.getMethod()) || request.getPathInfo() == null
+				|| !request.getPathInfo().endsWith("/$batch")) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		byte[] body = readBody(request);
+		HttpServletRequest bufferedRequest = new BufferedRequestWrapper(request, body);
+		List<BatchRequest.Part> parts = BatchRequest.parse(request.getContentType(), body);
+		if (parts.isEmpty()) {
+			chain.doFilter(bufferedRequest, res);
+			return;
+		}
+		HttpServletResponse response = (HttpServletResponse) res;
+		BufferedResponseWrapper bufferedResponse = new BufferedResponseWrapper(response);
+		BatchRequest batch = BatchRequest.begin(parts);
+		try {
+			chain.doFilter(bufferedRequest, bufferedResponse);
+		} finally {
+			batch.close();
+		}
+		if (response.isCommitted()) {
+			// sendError went to the client directly
+			return;
+		}
+		byte[] responseBody = batch.toResponse(bufferedResponse.getContentType(), bufferedResponse.toByteArray());
+		response.setContentLength(responseBody.length);
+		response.getOutputStream().write(responseBody);
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	private static byte[] readBody(HttpServletRequest request) throws IOException {
+		int length = request.getContentLength();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? length : 8192);
+		byte[] buffer = new byte[8192];
+		try (InputStream in = request.getInputStream()) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+			}
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Hands the body the filter has read to the OData runtime.
+	 */
+	private static final class BufferedRequestWrapper extends HttpServletRequestWrapper {
+
+		private final byte[] body;
+
+		BufferedRequestWrapper(HttpServletRequest request, byte[] body) {
+			super(request);
+			this.body = body;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			final ByteArrayInputStream in = new ByteArrayInputStream(body);
+			return new ServletInputStream() {
+				@Override
+				public int read() {
+					return in.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					return in.read(b, off, len);
+				}
+
+				@Override
+				public boolean isFinished() {
+					return in.available() == 0;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					// everything is available at once
+					try {
+						if (!isFinished()) {
+							readListener.onDataAvailable();
+						}
+						if (isFinished()) {
+							readListener.onAllDataRead();
+						}
+					} catch (IOException e) {
+						readListener.onError(e);
+					}
+				}
+			};
+		}
+
+		@Override
+		public BufferedReader getReader() throws IOException {
+			String encoding = getCharacterEncoding();
+			return new BufferedReader(new InputStreamReader(getInputStream(), encoding == null ? "ISO-8859-1" : encoding));
+		}
+
+		@Override
+		public int getContentLength() {
+			return body.length;
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return body.length;
+		}
+	}
+}
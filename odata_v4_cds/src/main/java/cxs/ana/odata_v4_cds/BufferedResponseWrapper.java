@@ -0,0 +1,118 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Keeps the response body in memory so a filter can still inspect or replace it after the
+ * servlet has finished, e.g. to cache the $metadata document.
+ */
+public class BufferedResponseWrapper extends HttpServletResponseWrapper {
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+	private ServletOutputStream outputStream;
+	private PrintWriter writer;
+
+	public BufferedResponseWrapper(HttpServletResponse response) {
+		super(response);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write(int b) {
+					buffer.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					buffer.write(b, off, len);
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+					// the buffer is always ready; the container tells the listener so
+					try {
+						BufferedResponseWrapper.super.getOutputStream().setWriteListener(writeListener);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			String encoding = getCharacterEncoding();
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding == null ? "ISO-8859-1" : encoding));
+		}
+		return writer;
+	}
+
+	@Override
+	public void flushBuffer() {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public void setContentLength(int length) {
+		// set from the buffer when it is written out
+	}
+
+	@Override
+	public void setContentLengthLong(long length) {
+		// set from the buffer when it is written out
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return false;
+	}
+
+	@Override
+	public void resetBuffer() {
+		buffer.reset();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		buffer.reset();
+	}
+
+	/**
+	 * @return a copy of the body written so far
+	 */
+	public byte[] toByteArray() {
+		flushBuffer();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Writes the buffered body to the wrapped response.
+	 */
+	public void writeTo(HttpServletResponse response) throws IOException {
+		flushBuffer();
+		response.setContentLength(buffer.size());
+		buffer.writeTo(response.getOutputStream());
+	}
+}
@@ -0,0 +1,155 @@
+package cxs.ana.odata_v4_cds;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single entry point to the HDI container. The DataSource is looked up in JNDI once and
+ * cached; callers open a {@link CDSSession} per request in a try-with-resources block so the
+ * pooled connection is always handed back.
+ */
+public final class CDSDataAccess {
+
+	private static final Logger logger = LoggerFactory.getLogger(CDSDataAccess.class);
+
+	private static final CDSDataAccess instance = new CDSDataAccess();
+
+	private final String jndiName = ServiceConfig.getString("datasource.jndiName", "java:comp/env/jdbc/java-hdi-container");
+	private final int logInterval = ServiceConfig.getInt("datasource.logInterval", 0);
+
+	private volatile DataSource dataSource;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger peakActive = new AtomicInteger();
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	private CDSDataAccess() {
+	}
+
+	public static CDSDataAccess getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Replaces the JNDI lookup, e.g. with an embedded database when running outside the container.
+	 */
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Opens a session on a pooled connection. While a {@link ChangeSet} is active on the current
+	 * request, its pending changes are flushed and the session shares the change set's connection,
+	 * so reads see the uncommitted writes of the same request.
+	 */
+	public CDSSession openSession() throws SQLException, NamingException {
+		ChangeSet changeSet = ChangeSet.current();
+		if (changeSet != null) {
+			changeSet.flush();
+			return new CDSSession(this, changeSet.getSession().getConnection(), false);
+		}
+		return openOwnSession();
+	}
+
+	/**
+	 * Opens a session on a connection of its own, regardless of an active change set.
+	 */
+	public CDSSession openOwnSession() throws SQLException, NamingException {
+		return new CDSSession(this, acquire(), true);
+	}
+
+	Connection acquire() throws SQLException, NamingException {
+		DataSource ds = getDataSource();
+		long start = System.nanoTime();
+		Connection conn;
+		try {
+			conn = ds.getConnection();
+		} catch (SQLException e) {
+			failures.incrementAndGet();
+			logger.error("Unable to get a connection from {}: {}", jndiName, e.getMessage());
+			throw e;
+		}
+		long waited = System.nanoTime() - start;
+		totalWaitNanos.addAndGet(waited);
+		updateMax(maxWaitNanos, waited);
+		ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CONNECTION, waited);
+		int nowActive = active.incrementAndGet();
+		updateMax(peakActive, nowActive);
+		long count = acquisitions.incrementAndGet();
+		if (logInterval > 0 && count % logInterval == 0) {
+			logger.info("Connection pool: {}", getPoolMetrics());
+		}
+		return conn;
+	}
+
+	void release(Connection conn) {
+		active.decrementAndGet();
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			logger.error("Unable to return connection to the pool: {}", e.getMessage());
+		}
+	}
+
+	private DataSource getDataSource() throws NamingException {
+		DataSource ds = dataSource;
+		if (ds == null) {
+			synchronized (this) {
+				ds = dataSource;
+				if (ds == null) {
+					ds = (DataSource) new InitialContext().lookup(jndiName);
+					dataSource = ds;
+				}
+			}
+		}
+		return ds;
+	}
+
+	public ConnectionPoolMetrics getPoolMetrics() {
+		long count = acquisitions.get();
+		return new ConnectionPoolMetrics(active.get(), peakActive.get(), poolProperty("getIdle"), poolProperty("getSize"),
+				count, failures.get(), count == 0 ? 0 : totalWaitNanos.get() / count, maxWaitNanos.get());
+	}
+
+	// The container pool (tomcat-jdbc behind TomcatDataSourceFactory) reports its own idle and
+	// total size; these are read reflectively so no compile-time dependency on the pool is needed.
+	private int poolProperty(String getter) {
+		DataSource ds = dataSource;
+		if (ds == null) {
+			return -1;
+		}
+		try {
+			Method method = ds.getClass().getMethod(getter);
+			return ((Number) method.invoke(ds)).intValue();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			return -1;
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	private static void updateMax(AtomicInteger max, int value) {
+		int current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+}
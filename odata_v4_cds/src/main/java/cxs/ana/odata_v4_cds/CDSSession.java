@@ -0,0 +1,76 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sap.cloud.sdk.hana.connectivity.handler.CDSDataSourceHandler;
+import com.sap.cloud.sdk.hana.connectivity.handler.DataSourceHandlerFactory;
+
+/**
+ * One pooled connection plus the CDS handlers created on it, one per namespace.
+ * Closing the session returns the connection to the pool, unless the session only borrows the
+ * connection of an active {@link ChangeSet}.
+ */
+public class CDSSession implements AutoCloseable {
+
+	private final CDSDataAccess dataAccess;
+	private final Connection connection;
+	private final Map<String, CDSDataSourceHandler> handlers = new HashMap<>(2);
+	private final List<PreparedStatement> statements = new ArrayList<>(0);
+	private final boolean releaseOnClose;
+	private boolean closed;
+
+	CDSSession(CDSDataAccess dataAccess, Connection connection, boolean releaseOnClose) {
+		this.dataAccess = dataAccess;
+		this.connection = connection;
+		this.releaseOnClose = releaseOnClose;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public CDSDataSourceHandler getHandler(String namespace) {
+		CDSDataSourceHandler handler = handlers.get(namespace);
+		if (handler == null) {
+			handler = DataSourceHandlerFactory.getInstance().getCDSHandler(connection, namespace);
+			handlers.put(namespace, handler);
+		}
+		return handler;
+	}
+
+	/**
+	 * Prepares a statement that the session closes with itself; the caller must not close it. The
+	 * statement cache of the pool ({@link StatementCacheInterceptor}) keeps closed statements open
+	 * per connection, so a statement with the same SQL is not compiled again.
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		statements.add(statement);
+		return statement;
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			handlers.clear();
+			for (PreparedStatement statement : statements) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					// the connection is released anyway
+				}
+			}
+			statements.clear();
+			if (releaseOnClose) {
+				dataAccess.release(connection);
+			}
+		}
+	}
+}
@@ -0,0 +1,446 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.cloud.sdk.service.prov.api.EntityData;
+
+/**
+ * Collects the creates, updates and deletes of one unit of work (a change set of a $batch
+ * request, see {@link BatchRequest}, or a deep insert) and runs them in a single transaction on
+ * a single connection. Consecutive inserts with the same statement shape, e.g. the hundreds of
+ * line items of a deep insert, are sent in one JDBC batch when the handler calls {@link #flush()};
+ * updates and deletes run immediately and fail with {@link EntityNotFoundException} if their
+ * entity does not exist. The order of the operations is preserved.
+ * <p>
+ * Reads that happen while a change set is active use its connection (see
+ * {@link CDSDataAccess#openSession()}), so they see the pending changes.
+ * <p>
+ * Every write is stamped with the time it runs (see {@link ChangeTracking}). If the change set
+ * took so long that a delta token issued meanwhile could miss these stamps, the written rows are
+ * stamped again on commit. The tombstones of deleted entities are inserted with one batch on
+ * commit, stamped with the commit time. So are the changes of SalesOrders.GrossAmount caused by
+ * line item writes (see {@link GrossAmountRollup}).
+ */
+public class ChangeSet implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChangeSet.class);
+
+	private static final String ATTRIBUTE = ChangeSet.class.getName();
+
+	private final CDSSession session;
+	private final int maxBatchSize = ServiceConfig.getInt("changeset.maxBatchSize", 1000);
+	private final long startMillis = System.currentTimeMillis();
+
+	private String pendingSql;
+	private final List<List<Object>> pendingRows = new ArrayList<>();
+	private final List<List<Object>> tombstones = new ArrayList<>();
+	/** keys of the rows inserted or updated, per entity set */
+	private final Map<EPMSampleModel.EntitySet, List<Object>> writtenKeys = new LinkedHashMap<>();
+	/** SalesOrderID -> change of GrossAmount */
+	private final Map<Object, Long> grossAmountChanges = new LinkedHashMap<>();
+	private int operations;
+	private boolean rollbackOnly;
+	private boolean completed;
+
+	ChangeSet(CDSSession session) throws SQLException {
+		this.session = session;
+		session.getConnection().setAutoCommit(false);
+	}
+
+	/**
+	 * Starts a change set and binds it to the current request, if there is one.
+	 */
+	public static ChangeSet begin() throws SQLException, NamingException {
+		ChangeSet changeSet = new ChangeSet(CDSDataAccess.getInstance().openOwnSession());
+		RequestContext context = RequestContext.current();
+		if (context != null) {
+			context.setAttribute(ATTRIBUTE, changeSet);
+		}
+		return changeSet;
+	}
+
+	/**
+	 * @return the change set of the current request or null if writes are executed immediately
+	 */
+	public static ChangeSet current() {
+		RequestContext context = RequestContext.current();
+		return context == null ? null : context.<ChangeSet>getAttribute(ATTRIBUTE);
+	}
+
+	CDSSession getSession() {
+		return session;
+	}
+
+	public void insert(EPMSampleModel.EntitySet entitySet, EntityData data) throws SQLException {
+		insert(entitySet, data.asMap());
+	}
+
+	/**
+	 * @param data property values; entries that are not properties of the entity set are ignored,
+	 *        as is SalesOrders.GrossAmount, which starts at 0
+	 */
+	public void insert(EPMSampleModel.EntitySet entitySet, Map<String, Object> data) throws SQLException {
+		List<String> columns = new ArrayList<>();
+		List<Object> values = new ArrayList<>();
+		for (String property : entitySet.getProperties()) {
+			if (GrossAmountRollup.isDerived(entitySet, property)) {
+				columns.add(property);
+				values.add(0);
+			} else if (data.containsKey(property)) {
+				columns.add(property);
+				values.add(data.get(property));
+			}
+		}
+		columns.add(ChangeTracking.CHANGED_AT);
+		values.add(ChangeTracking.now());
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(entitySet.getTableName()).append(" (");
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			sql.append(i == 0 ? "" : ", ").append('"').append(columns.get(i)).append('"');
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(") VALUES (").append(placeholders).append(')');
+		add(sql.toString(), values);
+		written(entitySet, data.get(entitySet.getKey()));
+		if (entitySet == EPMSampleModel.SALES_ORDER_LINE_ITEMS) {
+			GrossAmountRollup.addDifference(grossAmountChanges, null, GrossAmountRollup.inserted(data));
+		}
+	}
+
+	public void update(EPMSampleModel.EntitySet entitySet, EntityData data, Map<String, Object> keys, String ifMatch)
+			throws SQLException {
+		update(entitySet, data.asMap(), keys, ifMatch);
+	}
+
+	/**
+	 * Sets the given properties of one entity; the key itself and SalesOrders.GrossAmount are never
+	 * changed. Executed immediately.
+	 *
+	 * @param ifMatch the entity tag the entity must still have, or null
+	 * @throws EntityNotFoundException if there is no entity with the key
+	 * @throws PreconditionFailedException if the entity was changed or deleted since ifMatch was read
+	 */
+	public void update(EPMSampleModel.EntitySet entitySet, Map<String, Object> data, Map<String, Object> keys, String ifMatch)
+			throws SQLException {
+		GrossAmountRollup.LineItem oldItem = lockLineItem(entitySet, data, keys);
+		List<Object> values = new ArrayList<>();
+		execute(updateSql(entitySet, data, keys, values), values, ifMatch);
+		written(entitySet, keys.get(entitySet.getKey()));
+		if (oldItem != null) {
+			GrossAmountRollup.addDifference(grossAmountChanges, oldItem, GrossAmountRollup.updated(oldItem, data));
+		}
+	}
+
+	/**
+	 * Deletes one entity and records its tombstone. Executed immediately.
+	 *
+	 * @param ifMatch the entity tag the entity must still have, or null
+	 * @throws EntityNotFoundException if there is no entity with the key
+	 * @throws PreconditionFailedException if the entity was changed or deleted since ifMatch was read
+	 */
+	public void delete(EPMSampleModel.EntitySet entitySet, Map<String, Object> keys, String ifMatch) throws SQLException {
+		GrossAmountRollup.LineItem oldItem = lockLineItem(entitySet, null, keys);
+		List<Object> values = new ArrayList<>();
+		execute(deleteSql(entitySet, keys, values), values, ifMatch);
+		// DeletedAt is set on commit
+		tombstones.add(ChangeTracking.tombstone(entitySet, keys.get(entitySet.getKey()), null));
+		GrossAmountRollup.addDifference(grossAmountChanges, oldItem, null);
+	}
+
+	/**
+	 * Marks the change set as failed; {@link #close()} will roll it back instead of committing.
+	 */
+	public void setRollbackOnly() {
+		rollbackOnly = true;
+	}
+
+	public boolean isRollbackOnly() {
+		return rollbackOnly;
+	}
+
+	/**
+	 * Sends the pending inserts to the database without committing.
+	 */
+	public void flush() throws SQLException {
+		if (pendingSql == null) {
+			return;
+		}
+		String sql = pendingSql;
+		pendingSql = null;
+		try (PreparedStatement statement = session.getConnection().prepareStatement(sql)) {
+			for (List<Object> row : pendingRows) {
+				for (int i = 0; i < row.size(); i++) {
+					statement.setObject(i + 1, row.get(i));
+				}
+				statement.addBatch();
+			}
+			long start = System.nanoTime();
+			int[] counts = statement.executeBatch();
+			ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+			for (int count : counts) {
+				// SUCCESS_NO_INFO is negative
+				if (count == 0) {
+					rollbackOnly = true;
+					throw new EntityNotFoundException("A write of the change set did not change any row");
+				}
+			}
+		} catch (SQLException e) {
+			rollbackOnly = true;
+			throw e;
+		} finally {
+			pendingRows.clear();
+		}
+	}
+
+	/**
+	 * Flushes and commits, or rolls back if the change set was marked as failed.
+	 *
+	 * @throws SQLException if the changes could not be written; they are rolled back in that case
+	 * @throws BadRequestException if the line item writes take the GrossAmount of a sales order out
+	 *         of range; the changes are rolled back
+	 */
+	public void commit() throws SQLException {
+		Connection connection = session.getConnection();
+		try {
+			if (!rollbackOnly) {
+				flush();
+				Timestamp committedAt = ChangeTracking.now();
+				restamp(committedAt);
+				flushGrossAmounts(committedAt);
+				flushTombstones(committedAt);
+				connection.commit();
+				logger.debug("Committed change set with {} operations", operations);
+				completed = true;
+				return;
+			}
+		} catch (SQLException e) {
+			logger.error("Exception while committing a change set of {} operations: {}", operations, e.getMessage());
+			rollback();
+			throw e;
+		} catch (BadRequestException e) {
+			rollback();
+			throw e;
+		}
+		rollback();
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (!completed) {
+				rollback();
+			}
+		} finally {
+			RequestContext context = RequestContext.current();
+			if (context != null && context.getAttribute(ATTRIBUTE) == this) {
+				context.setAttribute(ATTRIBUTE, null);
+			}
+			try {
+				session.getConnection().setAutoCommit(true);
+			} catch (SQLException e) {
+				logger.error("Unable to reset auto-commit: {}", e.getMessage());
+			}
+			session.close();
+		}
+	}
+
+	private void rollback() {
+		pendingSql = null;
+		pendingRows.clear();
+		tombstones.clear();
+		writtenKeys.clear();
+		grossAmountChanges.clear();
+		completed = true;
+		try {
+			session.getConnection().rollback();
+			logger.debug("Rolled back change set with {} operations", operations);
+		} catch (SQLException e) {
+			logger.error("Exception while rolling back a change set: {}", e.getMessage());
+		}
+	}
+
+	private StringBuilder updateSql(EPMSampleModel.EntitySet entitySet, Map<String, Object> data, Map<String, Object> keys,
+			List<Object> values) {
+		StringBuilder sql = new StringBuilder("UPDATE ").append(entitySet.getTableName()).append(" SET ");
+		for (String property : entitySet.getProperties()) {
+			if (!property.equals(entitySet.getKey()) && data.containsKey(property) && !GrossAmountRollup.isDerived(entitySet, property)) {
+				sql.append('"').append(property).append("\" = ?, ");
+				values.add(data.get(property));
+			}
+		}
+		sql.append('"').append(ChangeTracking.CHANGED_AT).append("\" = ?");
+		values.add(ChangeTracking.now());
+		sql.append(" WHERE \"").append(entitySet.getKey()).append("\" = ?");
+		values.add(keys.get(entitySet.getKey()));
+		return sql;
+	}
+
+	private static StringBuilder deleteSql(EPMSampleModel.EntitySet entitySet, Map<String, Object> keys, List<Object> values) {
+		values.add(keys.get(entitySet.getKey()));
+		return new StringBuilder("DELETE FROM ").append(entitySet.getTableName()).append(" WHERE \"").append(entitySet.getKey())
+				.append("\" = ?");
+	}
+
+	private void execute(StringBuilder sql, List<Object> values, String ifMatch) throws SQLException {
+		if (completed) {
+			throw new IllegalStateException("Change set is already completed");
+		}
+		if (ifMatch != null) {
+			// the entity tag is checked by the statement itself, so no other write can slip in between
+			ChangeTracking.appendIfMatch(sql, values, ifMatch);
+		}
+		flush();
+		try (PreparedStatement statement = session.getConnection().prepareStatement(sql.toString())) {
+			for (int i = 0; i < values.size(); i++) {
+				statement.setObject(i + 1, values.get(i));
+			}
+			long start = System.nanoTime();
+			int rows = statement.executeUpdate();
+			ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+			operations++;
+			if (rows == 0) {
+				rollbackOnly = true;
+				if (ifMatch == null) {
+					throw new EntityNotFoundException("There is no entity with the key " + values.get(values.size() - 1));
+				}
+				throw new PreconditionFailedException("The entity was changed or deleted since If-Match " + ifMatch + " was read");
+			}
+		} catch (SQLException e) {
+			rollbackOnly = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads and locks the line item a write is about to change, if the write can change the total
+	 * of a sales order.
+	 *
+	 * @param data the properties of an update, null for a delete
+	 * @return SalesOrderID and GrossAmount before the write, or null
+	 */
+	private GrossAmountRollup.LineItem lockLineItem(EPMSampleModel.EntitySet entitySet, Map<String, Object> data,
+			Map<String, Object> keys) throws SQLException {
+		if (entitySet != EPMSampleModel.SALES_ORDER_LINE_ITEMS || (data != null && !GrossAmountRollup.affectsTotal(data))) {
+			return null;
+		}
+		if (completed) {
+			throw new IllegalStateException("Change set is already completed");
+		}
+		// the line item may be among the pending inserts or updates
+		flush();
+		long start = System.nanoTime();
+		try {
+			return GrossAmountRollup.lock(session.getConnection(), keys.get(entitySet.getKey()));
+		} catch (SQLException e) {
+			rollbackOnly = true;
+			throw e;
+		} finally {
+			ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+		}
+	}
+
+	private void written(EPMSampleModel.EntitySet entitySet, Object key) {
+		List<Object> entityKeys = writtenKeys.get(entitySet);
+		if (entityKeys == null) {
+			entityKeys = new ArrayList<>();
+			writtenKeys.put(entitySet, entityKeys);
+		}
+		entityKeys.add(key);
+	}
+
+	/**
+	 * Stamps the written rows with the commit time if the change set ran longer than half of the
+	 * safety margin of the delta tokens.
+	 */
+	private void restamp(Timestamp committedAt) throws SQLException {
+		if (writtenKeys.isEmpty() || System.currentTimeMillis() - startMillis < ChangeTracking.getSafetyMillis() / 2) {
+			return;
+		}
+		try {
+			for (Map.Entry<EPMSampleModel.EntitySet, List<Object>> entry : writtenKeys.entrySet()) {
+				EPMSampleModel.EntitySet entitySet = entry.getKey();
+				try (PreparedStatement statement = session.getConnection().prepareStatement("UPDATE " + entitySet.getTableName()
+						+ " SET \"" + ChangeTracking.CHANGED_AT + "\" = ? WHERE \"" + entitySet.getKey() + "\" = ?")) {
+					for (Object key : entry.getValue()) {
+						statement.setTimestamp(1, committedAt);
+						statement.setObject(2, key);
+						statement.addBatch();
+					}
+					long start = System.nanoTime();
+					statement.executeBatch();
+					ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+				}
+			}
+		} finally {
+			writtenKeys.clear();
+		}
+	}
+
+	private void flushGrossAmounts(Timestamp committedAt) throws SQLException {
+		grossAmountChanges.values().removeIf(change -> change == 0);
+		if (grossAmountChanges.isEmpty()) {
+			return;
+		}
+		long checkStart = System.nanoTime();
+		GrossAmountRollup.checkRange(session.getConnection(), grossAmountChanges);
+		ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - checkStart);
+		try (PreparedStatement statement = session.getConnection().prepareStatement(GrossAmountRollup.addSql())) {
+			for (Map.Entry<Object, Long> change : grossAmountChanges.entrySet()) {
+				statement.setLong(1, change.getValue());
+				statement.setTimestamp(2, committedAt);
+				statement.setObject(3, change.getKey());
+				statement.addBatch();
+			}
+			long start = System.nanoTime();
+			statement.executeBatch();
+			ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+		} finally {
+			grossAmountChanges.clear();
+		}
+	}
+
+	private void flushTombstones(Timestamp committedAt) throws SQLException {
+		if (tombstones.isEmpty()) {
+			return;
+		}
+		try (PreparedStatement statement = session.getConnection().prepareStatement(ChangeTracking.insertTombstoneSql())) {
+			for (List<Object> row : tombstones) {
+				row.set(3, committedAt);
+				for (int i = 0; i < row.size(); i++) {
+					statement.setObject(i + 1, row.get(i));
+				}
+				statement.addBatch();
+			}
+			long start = System.nanoTime();
+			statement.executeBatch();
+			ChangeTracking.purgeTombstones(session.getConnection());
+			ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+		} finally {
+			tombstones.clear();
+		}
+	}
+
+	private void add(String sql, List<Object> values) throws SQLException {
+		if (completed) {
+			throw new IllegalStateException("Change set is already completed");
+		}
+		if (pendingSql != null && (!pendingSql.equals(sql) || pendingRows.size() >= maxBatchSize)) {
+			flush();
+		}
+		pendingSql = sql;
+		pendingRows.add(values);
+		operations++;
+	}
+}
@@ -0,0 +1,208 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change tracking of the CDS entity sets: every create and update stamps the ChangedAt column,
+ * every delete leaves a row in the Tombstones table. Delta tokens and entity tags are derived
+ * from these timestamps.
+ * <p>
+ * The stamps of one instance are in microseconds and strictly increasing, so two writes of the
+ * same entity never share an entity tag. A delta token is the time (epoch milliseconds) from
+ * which on changes are reported. It is taken delta.safetyMillis before the query that issues it,
+ * so that writes whose transaction committed only after that query are still picked up; a
+ * {@link ChangeSet} that runs longer stamps its rows again at commit. Clients may see such an
+ * entity twice, but never miss it. Entity tags are weak, W/"&lt;ChangedAt in epoch
+ * microseconds&gt;", W/"0" for entities written before change tracking was introduced.
+ */
+public final class ChangeTracking {
+
+	public static final String CHANGED_AT = "ChangedAt";
+
+	private static final String TOMBSTONES = "\"" + EPMSampleModel.NAMESPACE + ".Tombstones\"";
+
+	private static final long safetyMillis = ServiceConfig.getInt("delta.safetyMillis", 10000);
+	private static final long retentionMillis = TimeUnit.HOURS.toMillis(ServiceConfig.getInt("delta.tombstoneRetentionHours", 168));
+	private static final AtomicLong nextPurge = new AtomicLong();
+	private static final AtomicLong lastMicros = new AtomicLong();
+
+	private ChangeTracking() {
+	}
+
+	/**
+	 * @return the current time, in microseconds and later than any time returned before
+	 */
+	public static Timestamp now() {
+		long micros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		return toTimestamp(lastMicros.updateAndGet(last -> Math.max(micros, last + 1)));
+	}
+
+	/**
+	 * Writes that take longer than this may be missed by a delta token issued while they run,
+	 * unless their rows are stamped again.
+	 */
+	static long getSafetyMillis() {
+		return safetyMillis;
+	}
+
+	public static long newDeltaToken() {
+		return System.currentTimeMillis() - safetyMillis;
+	}
+
+	/**
+	 * @return true if tombstones since the token may already have been purged
+	 */
+	public static boolean isExpired(long deltaToken) {
+		return deltaToken < System.currentTimeMillis() - retentionMillis;
+	}
+
+	/**
+	 * @param changedAt ChangedAt in epoch microseconds, 0 for an entity never stamped
+	 */
+	public static String toETag(long changedAt) {
+		return "W/\"" + changedAt + "\"";
+	}
+
+	/**
+	 * @return the ChangedAt time in epoch microseconds the entity tag stands for, 0 for an entity
+	 *         never stamped, or -1 if the value is not an entity tag of this service
+	 */
+	public static long parseETag(String etag) {
+		String value = etag.trim();
+		if (value.startsWith("W/")) {
+			value = value.substring(2);
+		}
+		if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"') {
+			return -1;
+		}
+		try {
+			long micros = Long.parseLong(value.substring(1, value.length() - 1));
+			return micros < 0 ? -1 : micros;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param header value of If-Match or If-None-Match, a comma separated list of entity tags or *
+	 * @return true if the header names the entity tag of an entity last changed at changedAt
+	 */
+	public static boolean matches(String header, long changedAt) {
+		if ("*".equals(header.trim())) {
+			return true;
+		}
+		for (String etag : header.split(",")) {
+			if (parseETag(etag) == changedAt) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the If-Match header of the current request, or of the current part of a $batch
+	 *         request; null if there is none or it is *
+	 * @throws PreconditionRequiredException if the part of a $batch request is not known
+	 */
+	public static String getIfMatch() {
+		BatchRequest batch = BatchRequest.current();
+		if (batch != null) {
+			return batch.getIfMatch();
+		}
+		RequestContext context = RequestContext.current();
+		String ifMatch = context == null ? null : context.getRequest().getHeader("If-Match");
+		return ifMatch == null || "*".equals(ifMatch.trim()) ? null : ifMatch;
+	}
+
+	/**
+	 * Appends the condition that the entity still has the entity tag of ifMatch.
+	 *
+	 * @throws PreconditionFailedException if ifMatch is not an entity tag of this service
+	 */
+	static void appendIfMatch(StringBuilder sql, List<Object> values, String ifMatch) {
+		long micros = parseETag(ifMatch);
+		if (micros < 0) {
+			throw new PreconditionFailedException("If-Match " + ifMatch + " does not match the entity");
+		}
+		if (micros == 0) {
+			sql.append(" AND \"").append(CHANGED_AT).append("\" IS NULL");
+		} else {
+			sql.append(" AND \"").append(CHANGED_AT).append("\" = ?");
+			values.add(toTimestamp(micros));
+		}
+	}
+
+	/**
+	 * @return ChangedAt of the entity in epoch microseconds, 0 if it was never stamped, or null if
+	 *         the entity does not exist
+	 */
+	public static Long readChangedAt(Connection connection, EPMSampleModel.EntitySet entitySet, Object key) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT \"" + CHANGED_AT + "\" FROM "
+				+ entitySet.getTableName() + " WHERE \"" + entitySet.getKey() + "\" = ?")) {
+			statement.setObject(1, key);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+				Timestamp changedAt = resultSet.getTimestamp(1);
+				return changedAt == null ? 0 : toMicros(changedAt);
+			}
+		}
+	}
+
+	static long toMicros(Timestamp timestamp) {
+		return TimeUnit.SECONDS.toMicros(Math.floorDiv(timestamp.getTime(), 1000)) + timestamp.getNanos() / 1000;
+	}
+
+	static Timestamp toTimestamp(long micros) {
+		Timestamp timestamp = new Timestamp(TimeUnit.SECONDS.toMillis(Math.floorDiv(micros, 1000000)));
+		timestamp.setNanos((int) Math.floorMod(micros, 1000000) * 1000);
+		return timestamp;
+	}
+
+	static String insertTombstoneSql() {
+		return "INSERT INTO " + TOMBSTONES + " (\"TombstoneID\", \"EntitySet\", \"EntityKey\", \"DeletedAt\") VALUES (?, ?, ?, ?)";
+	}
+
+	static List<Object> tombstone(EPMSampleModel.EntitySet entitySet, Object key, Timestamp deletedAt) {
+		List<Object> values = new ArrayList<>(4);
+		values.add(UUID.randomUUID().toString());
+		values.add(entitySet.getName());
+		values.add(key);
+		values.add(deletedAt);
+		return values;
+	}
+
+	/**
+	 * Deletes tombstones older than the retention, at most once an hour per instance.
+	 */
+	static void purgeTombstones(Connection connection) throws SQLException {
+		long now = System.currentTimeMillis();
+		long next = nextPurge.get();
+		if (now < next || !nextPurge.compareAndSet(next, now + TimeUnit.HOURS.toMillis(1))) {
+			return;
+		}
+		try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TOMBSTONES + " WHERE \"DeletedAt\" < ?")) {
+			statement.setTimestamp(1, new Timestamp(now - retentionMillis));
+			statement.executeUpdate();
+		}
+	}
+
+	/**
+	 * Keys of the entities deleted since the delta token that have not been created again.
+	 */
+	static String deletedKeysSql(EPMSampleModel.EntitySet entitySet) {
+		return "SELECT DISTINCT t.\"EntityKey\" FROM " + TOMBSTONES + " t WHERE t.\"EntitySet\" = ? AND t.\"DeletedAt\" >= ?"
+				+ " AND NOT EXISTS (SELECT 1 FROM " + entitySet.getTableName() + " e WHERE e.\"" + entitySet.getKey()
+				+ "\" = t.\"EntityKey\")";
+	}
+}
@@ -0,0 +1,180 @@
+package cxs.ana.odata_v4_cds;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Count-based circuit breaker over the outcomes of the last backend calls. The breaker opens
+ * when the share of failed or of slow calls in the window reaches its threshold; while open,
+ * calls are rejected immediately. After the open period a few trial calls are let through
+ * (half-open) and decide whether the breaker closes again.
+ */
+public class CircuitBreaker {
+
+	private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final LongSupplier clock;
+	private final int windowSize;
+	private final int minimumCalls;
+	private final int failureRateThreshold;
+	private final int slowCallRateThreshold;
+	private final long slowCallNanos;
+	private final long openMillis;
+	private final int halfOpenCalls;
+
+	// ring buffer of the last windowSize outcomes
+	private final boolean[] failed;
+	private final boolean[] slow;
+	private int position;
+	private int recorded;
+	private int failures;
+	private int slowCalls;
+
+	private State state = State.CLOSED;
+	private long stateChangedAt;
+	private int halfOpenPermits;
+	private int halfOpenSuccesses;
+
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong openings = new AtomicLong();
+
+	/**
+	 * A breaker configured with the backend.breaker.* keys of epmsample.properties.
+	 */
+	public CircuitBreaker(String name) {
+		this(name, System::currentTimeMillis, ServiceConfig.getInt("backend.breaker.windowSize", 20),
+				ServiceConfig.getInt("backend.breaker.minimumCalls", 10), ServiceConfig.getInt("backend.breaker.failureRateThreshold", 50),
+				ServiceConfig.getInt("backend.breaker.slowCallRateThreshold", 80), ServiceConfig.getLong("backend.breaker.slowCallMillis", 3000),
+				ServiceConfig.getLong("backend.breaker.openMillis", 30000), ServiceConfig.getInt("backend.breaker.halfOpenCalls", 3));
+	}
+
+	/**
+	 * @param clock the current time in epoch milliseconds
+	 */
+	CircuitBreaker(String name, LongSupplier clock, int windowSize, int minimumCalls, int failureRateThreshold,
+			int slowCallRateThreshold, long slowCallMillis, long openMillis, int halfOpenCalls) {
+		this.name = name;
+		this.clock = clock;
+		this.windowSize = Math.max(1, windowSize);
+		this.minimumCalls = Math.min(this.windowSize, minimumCalls);
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallRateThreshold = slowCallRateThreshold;
+		this.slowCallNanos = slowCallMillis * 1000000L;
+		this.openMillis = openMillis;
+		this.halfOpenCalls = Math.max(1, halfOpenCalls);
+		this.failed = new boolean[this.windowSize];
+		this.slow = new boolean[this.windowSize];
+	}
+
+	/**
+	 * @return false if the call must not be made because the breaker is open
+	 */
+	public synchronized boolean tryAcquirePermission() {
+		if (state == State.OPEN) {
+			if (clock.getAsLong() - stateChangedAt < openMillis) {
+				rejections.incrementAndGet();
+				return false;
+			}
+			transition(State.HALF_OPEN);
+		}
+		if (state == State.HALF_OPEN) {
+			if (halfOpenPermits >= halfOpenCalls) {
+				if (clock.getAsLong() - stateChangedAt >= openMillis) {
+					// the trial calls never reported back, e.g. because they were cancelled
+					transition(State.OPEN);
+				}
+				rejections.incrementAndGet();
+				return false;
+			}
+			halfOpenPermits++;
+		}
+		return true;
+	}
+
+	/**
+	 * Hands back a permission that was not used for a backend call.
+	 */
+	public synchronized void releasePermission() {
+		if (state == State.HALF_OPEN && halfOpenPermits > 0) {
+			halfOpenPermits--;
+		}
+	}
+
+	public synchronized void onSuccess(long durationNanos) {
+		record(false, durationNanos);
+	}
+
+	public synchronized void onError(long durationNanos) {
+		record(true, durationNanos);
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	public long getOpenings() {
+		return openings.get();
+	}
+
+	private void record(boolean isFailure, long durationNanos) {
+		boolean isSlow = durationNanos >= slowCallNanos;
+		if (state == State.HALF_OPEN) {
+			if (isFailure || isSlow) {
+				transition(State.OPEN);
+			} else if (++halfOpenSuccesses >= halfOpenCalls) {
+				transition(State.CLOSED);
+			}
+			return;
+		}
+		if (state == State.OPEN) {
+			// a call that started before the breaker opened
+			return;
+		}
+
+		if (recorded == windowSize) {
+			failures -= failed[position] ? 1 : 0;
+			slowCalls -= slow[position] ? 1 : 0;
+		} else {
+			recorded++;
+		}
+		failed[position] = isFailure;
+		slow[position] = isSlow;
+		failures += isFailure ? 1 : 0;
+		slowCalls += isSlow ? 1 : 0;
+		position = (position + 1) % windowSize;
+
+		if (recorded >= minimumCalls && (failures * 100 >= failureRateThreshold * recorded
+				|| slowCalls * 100 >= slowCallRateThreshold * recorded)) {
+			transition(State.OPEN);
+		}
+	}
+
+	private void transition(State newState) {
+		logger.info("Circuit breaker {} changes from {} to {} ({} failed and {} slow of the last {} calls)",
+				name, state, newState, failures, slowCalls, recorded);
+		state = newState;
+		halfOpenPermits = 0;
+		halfOpenSuccesses = 0;
+		stateChangedAt = clock.getAsLong();
+		if (newState == State.OPEN) {
+			openings.incrementAndGet();
+		} else if (newState == State.CLOSED) {
+			position = 0;
+			recorded = 0;
+			failures = 0;
+			slowCalls = 0;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the responses of the OData service with gzip or deflate, whichever the client
+ * prefers in Accept-Encoding (gzip on a tie). The first compression.minSize bytes of a body are
+ * held back: smaller bodies are sent as they are with a Content-Length, larger ones are
+ * compressed while they are written, so streamed collections stay streamed. Bodies the servlet
+ * already encoded are passed through.
+ */
+public class CompressionFilter implements Filter {
+
+	private static final AtomicLong compressedResponses = new AtomicLong();
+	private static final AtomicLong bytesIn = new AtomicLong();
+	private static final AtomicLong bytesOut = new AtomicLong();
+
+	private final boolean enabled = ServiceConfig.getBoolean("compression.enabled", true);
+	private final int minSize = Math.max(1, ServiceConfig.getInt("compression.minSize", 1024));
+	private final int bufferSize = Math.max(512, ServiceConfig.getInt("compression.bufferSize", 8192));
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+
+		if (!enabled) {
+			chain.doFilter(req, res);
+			return;
+		}
+		response.addHeader("Vary", "Accept-Encoding");
+		String encoding = "HEAD".equals(request.getMethod()) ? null : negotiate(request.getHeader("Accept-Encoding"));
+		if (encoding == null) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		CompressingResponseWrapper compressingResponse = new CompressingResponseWrapper(response, encoding);
+		try {
+			chain.doFilter(request, compressingResponse);
+			compressingResponse.finish();
+		} finally {
+			compressingResponse.release();
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	/**
+	 * @return gzip, deflate or null if the client accepts neither
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		// -1 for a coding not listed, which is then accepted with the quality of *
+		double gzip = -1;
+		double deflate = -1;
+		double any = 0;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			String name = parts[0].trim().toLowerCase();
+			if ("gzip".equals(name) || "x-gzip".equals(name)) {
+				gzip = quality;
+			} else if ("deflate".equals(name)) {
+				deflate = quality;
+			} else if ("*".equals(name)) {
+				any = quality;
+			}
+		}
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+		if (gzip > 0 && gzip >= deflate) {
+			return "gzip";
+		}
+		return deflate > 0 ? "deflate" : null;
+	}
+
+	public static long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+
+	/**
+	 * @return body bytes written by the servlet into compressed responses
+	 */
+	public static long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return bytes of the compressed responses on the wire
+	 */
+	public static long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * Buffers the beginning of the body until it is known whether it reaches the minimum size,
+	 * then either compresses it or writes it unchanged.
+	 */
+	private final class CompressingResponseWrapper extends HttpServletResponseWrapper {
+
+		private final String encoding;
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream(minSize);
+		private DeflaterOutputStream compressed;
+		private Deflater deflater;
+		private boolean passThrough;
+		private ServletOutputStream outputStream;
+		private PrintWriter writer;
+
+		CompressingResponseWrapper(HttpServletResponse response, String encoding) {
+			super(response);
+			this.encoding = encoding;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null) {
+				outputStream = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						CompressingResponseWrapper.this.write(b, off, len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						CompressingResponseWrapper.this.flush();
+					}
+
+					@Override
+					public boolean isReady() {
+						// held back bytes go to memory
+						if (!passThrough && compressed == null) {
+							return true;
+						}
+						try {
+							return CompressingResponseWrapper.super.getOutputStream().isReady();
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+
+					@Override
+					public void setWriteListener(WriteListener writeListener) {
+						try {
+							CompressingResponseWrapper.super.getOutputStream().setWriteListener(writeListener);
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				};
+			}
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				String characterEncoding = getCharacterEncoding();
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(),
+						characterEncoding == null ? "ISO-8859-1" : characterEncoding));
+			}
+			return writer;
+		}
+
+		private void write(byte[] b, int off, int len) throws IOException {
+			if (passThrough) {
+				super.getOutputStream().write(b, off, len);
+			} else if (compressed != null) {
+				compressed.write(b, off, len);
+				bytesIn.addAndGet(len);
+			} else {
+				pending.write(b, off, len);
+				if (pending.size() >= minSize) {
+					startCompression();
+				}
+			}
+		}
+
+		private void startCompression() throws IOException {
+			OutputStream out = new FilterOutputStream(super.getOutputStream()) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					this.out.write(b, off, len);
+					bytesOut.addAndGet(len);
+				}
+			};
+			super.setHeader("Content-Encoding", encoding);
+			if ("gzip".equals(encoding)) {
+				GzipStream gzip = new GzipStream(out, bufferSize);
+				deflater = gzip.getDeflater();
+				compressed = gzip;
+			} else {
+				deflater = new Deflater();
+				compressed = new DeflaterOutputStream(out, deflater, bufferSize);
+			}
+			compressedResponses.incrementAndGet();
+			bytesIn.addAndGet(pending.size());
+			pending.writeTo(compressed);
+			pending = null;
+		}
+
+		private void flush() throws IOException {
+			// held back bytes stay held back, a flush must not decide against compression
+			if (passThrough) {
+				super.getOutputStream().flush();
+			} else if (compressed != null) {
+				compressed.flush();
+			}
+		}
+
+		/**
+		 * Writes the held back bytes, or the end of the compressed stream.
+		 */
+		void finish() throws IOException {
+			try {
+				if (writer != null) {
+					writer.flush();
+				}
+				if (compressed != null) {
+					compressed.finish();
+				} else if (pending != null && pending.size() > 0 && !isCommitted()) {
+					super.setContentLength(pending.size());
+					pending.writeTo(super.getOutputStream());
+				}
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Frees the native memory of the deflater, also when the servlet or {@link #finish()}
+		 * failed; the response is not completed then.
+		 */
+		void release() {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+
+		@Override
+		public void setContentLength(int length) {
+			setContentLengthLong(length);
+		}
+
+		@Override
+		public void setContentLengthLong(long length) {
+			// a body known to stay below the minimum size is not held back
+			if (compressed == null && pending != null && pending.size() == 0 && length < minSize) {
+				passThrough = true;
+			}
+			if (passThrough) {
+				super.setContentLengthLong(length);
+			}
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if ("Content-Length".equalsIgnoreCase(name) && value != null) {
+				setContentLengthLong(Long.parseLong(value));
+				return;
+			}
+			passThroughEncoded(name);
+			super.setHeader(name, value);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if ("Content-Length".equalsIgnoreCase(name) && value != null) {
+				setContentLengthLong(Long.parseLong(value));
+				return;
+			}
+			passThroughEncoded(name);
+			super.addHeader(name, value);
+		}
+
+		private void passThroughEncoded(String name) {
+			if (compressed == null && "Content-Encoding".equalsIgnoreCase(name)) {
+				passThrough = true;
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (passThrough || compressed != null) {
+				flush();
+				super.flushBuffer();
+			}
+		}
+
+		@Override
+		public void sendError(int status) throws IOException {
+			discard();
+			super.sendError(status);
+		}
+
+		@Override
+		public void sendError(int status, String message) throws IOException {
+			discard();
+			super.sendError(status, message);
+		}
+
+		@Override
+		public void resetBuffer() {
+			super.resetBuffer();
+			discard();
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			discard();
+			super.addHeader("Vary", "Accept-Encoding");
+		}
+
+		/**
+		 * Drops the body written so far; whatever is written next starts a new body.
+		 */
+		private void discard() {
+			if (compressed != null) {
+				release();
+				compressed = null;
+			}
+			pending = new ByteArrayOutputStream(minSize);
+			passThrough = false;
+		}
+	}
+
+	/**
+	 * Exposes the deflater of a gzip stream, so it can be released without closing the response.
+	 */
+	private static final class GzipStream extends GZIPOutputStream {
+
+		GzipStream(OutputStream out, int size) throws IOException {
+			super(out, size);
+		}
+
+		Deflater getDeflater() {
+			return def;
+		}
+	}
+}
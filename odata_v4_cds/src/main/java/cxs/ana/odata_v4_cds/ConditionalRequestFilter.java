@@ -0,0 +1,139 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.NamingException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Conditional reads of single SalesOrders and SalesOrderLineItems: GET responses carry an ETag
+ * header and an @odata.etag annotation derived from ChangedAt (see {@link ChangeTracking}). The
+ * handler reads ChangedAt with the entity and hands it over by {@link #setChangedAt}. Only a
+ * request with If-None-Match costs a primary key lookup of ChangedAt up front; while it still
+ * matches, the request is answered with 304 Not Modified without reading and serializing the
+ * entity. If-Match on updates and deletes is checked by the handlers.
+ */
+public class ConditionalRequestFilter implements Filter {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConditionalRequestFilter.class);
+
+	private static final String CHANGED_AT = ConditionalRequestFilter.class.getName() + ".changedAt";
+	private static final String CONTEXT_PREFIX = "{\"@odata.context\":\"";
+
+	// /EPMSampleService/<entity set>('<key>') or /EPMSampleService/<entity set>(<key property>='<key>')
+	private static final Pattern ENTITY_PATH = Pattern.compile("/EPMSampleService/(\\w+)\\((?:\\w+=)?'((?:[^']|'')*)'\\)");
+
+	private final boolean enabled = ServiceConfig.getBoolean("etag.enabled", true);
+	private final CDSDataAccess dataAccess = CDSDataAccess.getInstance();
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+
+		String pathInfo = request.getPathInfo();
+		// with $expand the response also depends on the related entities
+		Matcher matcher = enabled && "GET".equals(request.getMethod()) && pathInfo != null && request.getParameter("$expand") == null
+				? ENTITY_PATH.matcher(pathInfo) : null;
+		EPMSampleModel.EntitySet entitySet = matcher != null && matcher.matches() ? EPMSampleModel.getEntitySet(matcher.group(1)) : null;
+		if (entitySet == null) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			Long changedAt = readChangedAt(entitySet, matcher.group(2).replace("''", "'"), pathInfo);
+			if (changedAt != null && ChangeTracking.matches(ifNoneMatch, changedAt)) {
+				response.setHeader("ETag", ChangeTracking.toETag(changedAt));
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		}
+
+		// the header has to be set before the body, which is only known after the handler read the row
+		BufferedResponseWrapper bufferedResponse = new BufferedResponseWrapper(response);
+		chain.doFilter(req, bufferedResponse);
+		RequestContext context = RequestContext.current();
+		Long changedAt = context == null ? null : context.<Long>getAttribute(CHANGED_AT);
+		byte[] body = bufferedResponse.toByteArray();
+		if (changedAt != null && bufferedResponse.getStatus() == HttpServletResponse.SC_OK) {
+			String etag = ChangeTracking.toETag(changedAt);
+			response.setHeader("ETag", etag);
+			body = annotate(body, etag);
+		}
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	/**
+	 * Hands the ChangedAt of the entity read by the current request over to the filter.
+	 *
+	 * @param changedAt ChangedAt in epoch microseconds, 0 for an entity never stamped
+	 */
+	static void setChangedAt(long changedAt) {
+		RequestContext context = RequestContext.current();
+		if (context != null) {
+			context.setAttribute(CHANGED_AT, changedAt);
+		}
+	}
+
+	private Long readChangedAt(EPMSampleModel.EntitySet entitySet, String key, String pathInfo) {
+		try (ServiceMetrics.Operation operation = ServiceMetrics.getInstance().start(entitySet.getName(), "etag")) {
+			Long changedAt;
+			try (CDSSession session = dataAccess.openSession()) {
+				changedAt = ChangeTracking.readChangedAt(session.getConnection(), entitySet, key);
+			} catch (SQLException | NamingException e) {
+				// no 304 then; the OData runtime answers as usual
+				logger.error("==> Exception while reading the ETag of {}: {}", pathInfo, e.getMessage());
+				operation.failed(e);
+				changedAt = null;
+			}
+			operation.setRows(changedAt == null ? 0 : 1);
+			return changedAt;
+		}
+	}
+
+	/**
+	 * Adds the @odata.etag annotation to a JSON entity, after its @odata.context; other bodies are
+	 * returned as they are.
+	 */
+	static byte[] annotate(byte[] body, String etag) {
+		String json = new String(body, StandardCharsets.UTF_8);
+		if (!json.startsWith(CONTEXT_PREFIX)) {
+			return body;
+		}
+		// the end of the context URL, a JSON string
+		int end = CONTEXT_PREFIX.length();
+		while (end < json.length() && json.charAt(end) != '"') {
+			end += json.charAt(end) == '\\' ? 2 : 1;
+		}
+		if (end >= json.length()) {
+			return body;
+		}
+		String annotation = ",\"@odata.etag\":\"" + etag.replace("\"", "\\\"") + "\"";
+		return (json.substring(0, end + 1) + annotation + json.substring(end + 1)).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
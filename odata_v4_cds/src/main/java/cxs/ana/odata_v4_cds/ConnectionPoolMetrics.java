@@ -0,0 +1,68 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * Snapshot of the HDI connection pool usage. Idle and size are -1 when the container pool
+ * does not expose them.
+ */
+public class ConnectionPoolMetrics {
+
+	private final int active;
+	private final int peakActive;
+	private final int idle;
+	private final int size;
+	private final long acquisitions;
+	private final long failures;
+	private final long averageWaitNanos;
+	private final long maxWaitNanos;
+
+	public ConnectionPoolMetrics(int active, int peakActive, int idle, int size, long acquisitions, long failures,
+			long averageWaitNanos, long maxWaitNanos) {
+		this.active = active;
+		this.peakActive = peakActive;
+		this.idle = idle;
+		this.size = size;
+		this.acquisitions = acquisitions;
+		this.failures = failures;
+		this.averageWaitNanos = averageWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	public int getActive() {
+		return active;
+	}
+
+	public int getPeakActive() {
+		return peakActive;
+	}
+
+	public int getIdle() {
+		return idle;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public long getAcquisitions() {
+		return acquisitions;
+	}
+
+	public long getFailures() {
+		return failures;
+	}
+
+	public long getAverageWaitNanos() {
+		return averageWaitNanos;
+	}
+
+	public long getMaxWaitNanos() {
+		return maxWaitNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "active=" + active + ", peakActive=" + peakActive + ", idle=" + idle + ", size=" + size
+				+ ", acquisitions=" + acquisitions + ", failures=" + failures
+				+ ", avgWaitMs=" + (averageWaitNanos / 1000000.0) + ", maxWaitMs=" + (maxWaitNanos / 1000000.0);
+	}
+}
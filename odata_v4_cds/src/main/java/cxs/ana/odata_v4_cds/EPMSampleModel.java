@@ -0,0 +1,154 @@
+package cxs.ana.odata_v4_cds;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CDS backed entity sets of EPMSample.hdbcds as seen by the JDBC code paths that bypass the
+ * CDS handler. Keep in sync with EPMSample.hdbcds and edmx/EPMSampleService.xml; the row writers
+ * are generated from both and fail to generate when they disagree.
+ * <p>
+ * Products is only a CDS backed entity set, and SalesOrderLineItems only navigates to it, while
+ * the {@link ProductReplicationJob} keeps the Products table in sync with the backend.
+ */
+public final class EPMSampleModel {
+
+	public static final String NAMESPACE = "EPMSample";
+
+	public static final EntitySet PRODUCTS = new EntitySet("Products", "ProductID",
+			new String[] { "ProductID", "Name", "Description", "Category" },
+			new String[] { "Edm.String", "Edm.String", "Edm.String", "Edm.String" }, new ProductRowWriter());
+
+	public static final EntitySet SALES_ORDERS = new EntitySet("SalesOrders", "SalesOrderID",
+			new String[] { "SalesOrderID", "Note", "CustomerName", "GrossAmount" },
+			new String[] { "Edm.String", "Edm.String", "Edm.String", "Edm.Int32" }, new SalesOrderRowWriter());
+
+	public static final EntitySet SALES_ORDER_LINE_ITEMS = new EntitySet("SalesOrderLineItems", "SOLineItemID",
+			new String[] { "SOLineItemID", "SalesOrderID", "ItemPosition", "ProductID", "Quantity", "GrossAmount" },
+			new String[] { "Edm.String", "Edm.String", "Edm.Int32", "Edm.String", "Edm.Int32", "Edm.Int32" },
+			new SalesOrderLineItemRowWriter());
+
+	private static final Map<String, EntitySet> entitySets = new LinkedHashMap<>();
+
+	static {
+		entitySets.put(SALES_ORDERS.getName(), SALES_ORDERS);
+		entitySets.put(SALES_ORDER_LINE_ITEMS.getName(), SALES_ORDER_LINE_ITEMS);
+		if (ProductReplicationJob.isEnabled()) {
+			entitySets.put(PRODUCTS.getName(), PRODUCTS);
+			SALES_ORDER_LINE_ITEMS.addNavigation("Product", "ProductID", PRODUCTS);
+		}
+	}
+
+	private EPMSampleModel() {
+	}
+
+	/**
+	 * @return the CDS entity set with the given name or null if the set is not stored in CDS
+	 */
+	public static EntitySet getEntitySet(String name) {
+		return entitySets.get(name);
+	}
+
+	public static Collection<EntitySet> getEntitySets() {
+		return Collections.unmodifiableCollection(entitySets.values());
+	}
+
+	public static final class EntitySet {
+
+		private final String name;
+		private final String key;
+		private final List<String> properties;
+		private final Map<String, String> types = new LinkedHashMap<>();
+		private final RowWriter rowWriter;
+		/** to-one navigation property -> foreign key column and target */
+		private final Map<String, Navigation> navigations = new LinkedHashMap<>();
+
+		EntitySet(String name, String key, String[] properties, String[] types, RowWriter rowWriter) {
+			this.name = name;
+			this.key = key;
+			this.properties = Collections.unmodifiableList(Arrays.asList(properties));
+			this.rowWriter = rowWriter;
+			for (int i = 0; i < properties.length; i++) {
+				this.types.put(properties[i], types[i]);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public List<String> getProperties() {
+			return properties;
+		}
+
+		public boolean hasProperty(String property) {
+			return types.containsKey(property);
+		}
+
+		/**
+		 * @param property a property, or a property of a to-one navigation such as Product/Category
+		 */
+		public String getType(String property) {
+			int slash = property.indexOf('/');
+			Navigation navigation = slash < 0 ? null : navigations.get(property.substring(0, slash));
+			return navigation == null ? types.get(property) : navigation.target.getType(property.substring(slash + 1));
+		}
+
+		/**
+		 * @param property a property, or a property of a to-one navigation such as Product/Category
+		 * @return the SQL expression of the property in a query on {@link #getTableName()} without a
+		 *         table alias, or null if there is no such property
+		 */
+		public String getExpression(String property) {
+			if (hasProperty(property)) {
+				return "\"" + property + "\"";
+			}
+			int slash = property.indexOf('/');
+			Navigation navigation = slash < 0 ? null : navigations.get(property.substring(0, slash));
+			String targetProperty = property.substring(slash + 1);
+			if (navigation == null || !navigation.target.hasProperty(targetProperty)) {
+				return null;
+			}
+			// a scalar subquery on the target key, which HANA unnests into a join
+			return "(SELECT n.\"" + targetProperty + "\" FROM " + navigation.target.getTableName() + " n WHERE n.\""
+					+ navigation.target.getKey() + "\" = " + getTableName() + ".\"" + navigation.foreignKey + "\")";
+		}
+
+		void addNavigation(String name, String foreignKey, EntitySet target) {
+			navigations.put(name, new Navigation(foreignKey, target));
+		}
+
+		/**
+		 * Writes rows that select all {@link #getProperties()} in their order.
+		 */
+		public RowWriter getRowWriter() {
+			return rowWriter;
+		}
+
+		/**
+		 * Quoted name of the table HDI generates for the CDS entity.
+		 */
+		public String getTableName() {
+			return "\"" + NAMESPACE + "." + name + "\"";
+		}
+	}
+
+	private static final class Navigation {
+
+		private final String foreignKey;
+		private final EntitySet target;
+
+		Navigation(String foreignKey, EntitySet target) {
+			this.foreignKey = foreignKey;
+			this.target = target;
+		}
+	}
+}
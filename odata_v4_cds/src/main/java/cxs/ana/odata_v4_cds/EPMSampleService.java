@@ -1,15 +1,19 @@
 package cxs.ana.odata_v4_cds;
 
-import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,13 +21,9 @@ import org.slf4j.LoggerFactory;
 import com.sap.cloud.sdk.hana.connectivity.cds.CDSException;
 import com.sap.cloud.sdk.hana.connectivity.cds.CDSQuery;
 import com.sap.cloud.sdk.hana.connectivity.cds.CDSSelectQueryBuilder;
-import com.sap.cloud.sdk.hana.connectivity.cds.CDSSelectQueryResult;
 import com.sap.cloud.sdk.hana.connectivity.cds.ConditionBuilder;
 import com.sap.cloud.sdk.hana.connectivity.handler.CDSDataSourceHandler;
-import com.sap.cloud.sdk.hana.connectivity.handler.DataSourceHandlerFactory;
 import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
-import com.sap.cloud.sdk.odatav2.connectivity.ODataQueryBuilder;
-import com.sap.cloud.sdk.odatav2.connectivity.ODataQueryResult;
 import com.sap.cloud.sdk.service.prov.api.DatasourceExceptionType;
 import com.sap.cloud.sdk.service.prov.api.EntityData;
 import com.sap.cloud.sdk.service.prov.api.Severity;
@@ -40,7 +40,9 @@ import com.sap.cloud.sdk.service.prov.api.request.UpdateRequest;
 import com.sap.cloud.sdk.service.prov.api.response.CreateResponse;
 import com.sap.cloud.sdk.service.prov.api.response.DeleteResponse;
 import com.sap.cloud.sdk.service.prov.api.response.ErrorResponse;
+import com.sap.cloud.sdk.service.prov.api.response.ErrorResponseBuilder;
 import com.sap.cloud.sdk.service.prov.api.response.QueryResponse;
+import com.sap.cloud.sdk.service.prov.api.response.QueryResponseBuilder;
 import com.sap.cloud.sdk.service.prov.api.response.ReadResponse;
 import com.sap.cloud.sdk.service.prov.api.response.UpdateResponse;
 
@@ -48,303 +50,565 @@ public class EPMSampleService {
 
 	Logger logger = LoggerFactory.getLogger(EPMSampleService.class);
 
-	 private static final String DESTINATION_NAME = "ErpQueryEndpoint";
-	 
-	//Implementation of QUERY operation, for Products 	
-	@Query(serviceName = "EPMSampleService", entity = "Products")
-	public QueryResponse getProducts(QueryRequest queryRequest) { // the name of the method can be arbitrary
-		logger.debug("==> now call backend OData V2 service");		
+	private final CDSDataAccess dataAccess = CDSDataAccess.getInstance();
 
-		QueryResponse queryResponse = null;
-		try {
-
-			logger.debug("==> now execute query on Products");
+	private final ProductCache productCache = ProductCache.getInstance();
 
-			ODataQueryResult result = ODataQueryBuilder
-					.withEntity("/sap/opu/odata/IWBEP/GWSAMPLE_BASIC", "ProductSet") 
-					.select("ProductID", "Name", "Description", "Category")
-					.build()
-					.execute(DESTINATION_NAME);
+	// Products are read from the replica in HANA instead of the backend, see ProductReplicationJob
+	private final boolean productsReplicated = ProductReplicationJob.isEnabled();
 
-			logger.debug("==> After calling backend OData V2 service: result: " + result);		
+	private final ServiceMetrics metrics = ServiceMetrics.getInstance();
 
-			final List<ProductEntity> v2ProductList = result.asList(ProductEntity.class);
+	// Request context attribute: SOLineItemID -> Product of the line items read by this request
+	private static final String PREFETCHED_PRODUCTS = "EPMSampleService.prefetchedProducts";
+	// Request context attribute: SalesOrderID -> SalesOrderLineItems of the sales orders read by this request
+	private static final String PREFETCHED_LINE_ITEMS = "EPMSampleService.prefetchedLineItems";
+	private static final String INLINE_COUNT = "EPMSampleService.inlineCount";
 
-			queryResponse = QueryResponse.setSuccess().setData(v2ProductList).response();
+	// Maximum number of values in one IN (...) condition
+	private static final int IN_LIST_SIZE = 500;
+	 
+	//Implementation of QUERY operation, for Products 	
+	@Query(serviceName = "EPMSampleService", entity = "Products")
+	public QueryResponse getProducts(QueryRequest queryRequest) { // the name of the method can be arbitrary
+		try (ServiceMetrics.Operation operation = metrics.start("Products", "query")) {
+			if (productsReplicated) {
+				try{
+					List<EntityData> products = getEntitySet(queryRequest);
+					operation.setRows(products.size());
+					return collection(products);
+				}catch(UnsupportedOperationException e){
+					operation.failed(e);
+					return QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(501).response());
+				}catch(Exception e){
+					operation.failed(e);
+					return QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+				}
+			}
+			logger.debug("==> now call backend OData V2 service");		
+
+			QueryResponse queryResponse = null;
+			try {
+
+				final List<ProductEntity> v2ProductList = productCache.getAll();
+				operation.setRows(v2ProductList.size());
+
+				queryResponse = QueryResponse.setSuccess().setData(v2ProductList).response();
+				return queryResponse;
+
+			} catch (BackendUnavailableException e) {
+				logger.error("==> Backend OData V2 service unavailable for Query of Products: {}", e.getMessage());
+				operation.failed(e);
+				queryResponse = QueryResponse.setError(ErrorResponse.getBuilder()
+						.setMessage(e.getMessage())
+						.setStatusCode(e.getStatusCode())
+						.response());
+			} catch (IllegalArgumentException | ODataException e) {
+				logger.error("==> Exception calling backend OData V2 service for Query of Products: {}", e.getMessage());
+				operation.failed(e);
+
+
+				ErrorResponse errorResponse = ErrorResponse.getBuilder()
+						.setMessage("There is an error.  Check the logs for the details.")
+						.setStatusCode(500)
+						.setCause(e)
+						.response();
+				queryResponse = QueryResponse.setError(errorResponse);
+			}
 			return queryResponse;
-
-		} catch (IllegalArgumentException | ODataException e) {
-			logger.error("==> Exception calling backend OData V2 service for Query of Products: " + e.getMessage());
-
-
-			ErrorResponse errorResponse = ErrorResponse.getBuilder()
-					.setMessage("There is an error.  Check the logs for the details.")
-					.setStatusCode(500)
-					.setCause(e)
-					.response();
-			queryResponse = QueryResponse.setError(errorResponse);
 		}
-		return queryResponse;
 	}
 
 	// Implementation of READ operation, for Products
 	@Read(entity = "Products", serviceName = "EPMSampleService")
 	public ReadResponse getProduct(ReadRequest readRequest) {
-		logger.debug("==> now call backend OData V2 service");		
-
-		ReadResponse readResponse = null;
-		try {
-
-			logger.debug("==> now execute read for ProductID: " + readRequest.getKeys().get("ProductID").toString());
-
-			ODataQueryResult result = ODataQueryBuilder.
-					withEntity("/sap/opu/odata/IWBEP/GWSAMPLE_BASIC", "ProductSet('"+readRequest.getKeys().get("ProductID").toString()+"')" )
-					.select("ProductID", "Name", "Description", "Category")
-					.build()
-					.execute(DESTINATION_NAME);
-
-			logger.debug("==> After calling backend OData V2 service: result: " + result);		
-
-			final ProductEntity v2Product = result.as(ProductEntity.class);
-
-			readResponse = ReadResponse.setSuccess().setData(v2Product).response();
+		try (ServiceMetrics.Operation operation = metrics.start("Products", "read")) {
+			if (productsReplicated) {
+				try{
+					EntityData product = readEntity(readRequest);
+					operation.setRows(product == null ? 0 : 1);
+					return ReadResponse.setSuccess().setData(product).response();
+				}catch(Exception e){
+					operation.failed(e);
+					return ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+				}
+			}
+			logger.debug("==> now call backend OData V2 service");		
+
+			ReadResponse readResponse = null;
+			try {
+
+				final ProductEntity v2Product = productCache.get(readRequest.getKeys().get("ProductID").toString());
+				operation.setRows(v2Product == null ? 0 : 1);
+
+				readResponse = ReadResponse.setSuccess().setData(v2Product).response();
+				return readResponse;
+
+			} catch (BackendUnavailableException e) {
+				logger.error("==> Backend OData V2 service unavailable for Read of a Product: {}", e.getMessage());
+				operation.failed(e);
+				readResponse = ReadResponse.setError(ErrorResponse.getBuilder()
+						.setMessage(e.getMessage())
+						.setStatusCode(e.getStatusCode())
+						.response());
+			} catch (IllegalArgumentException | ODataException e) {
+				logger.error("==> Exception calling backend OData V2 service for Read of a Product: {}", e.getMessage());
+				operation.failed(e);
+
+
+				ErrorResponse errorResponse = ErrorResponse.getBuilder()
+						.setMessage("There is an error.  Check the logs for the details.")
+						.setStatusCode(500)
+						.setCause(e)
+						.response();
+				readResponse = ReadResponse.setError(errorResponse);
+			}
 			return readResponse;
-
-		} catch (IllegalArgumentException | ODataException e) {
-			logger.error("==> Exception calling backend OData V2 service for Read of a Product: " + e.getMessage());
-
-
-			ErrorResponse errorResponse = ErrorResponse.getBuilder()
-					.setMessage("There is an error.  Check the logs for the details.")
-					.setStatusCode(500)
-					.setCause(e)
-					.response();
-			readResponse = ReadResponse.setError(errorResponse);
 		}
-		return readResponse;
 	}
 	// Reading a Product for a SalesOrderLineItem
 	@Read(entity = "Products", serviceName = "EPMSampleService", sourceEntity = "SalesOrderLineItems")
 	public ReadResponse getProductForSOItem(ReadRequest readRequest) {
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrderLineItems/Products", "read")) {
 
-		ReadResponse readResponse = null;			
-		EntityData SOItemEntity;
-		try{
-			String sourceEntityName = readRequest.getSourceEntityName();
-
-			//Read SalesOrderLineItems to check if the passed SOLineItemID exists
-			if ( sourceEntityName.equals("SalesOrderLineItems")) {	
-
-				SOItemEntity = readSalesOrderLineItem(readRequest.getSourceKeys());				
-				if (SOItemEntity == null) {
-					ErrorResponse errorResponse = ErrorResponse.getBuilder()
-							.setMessage("Parent SalesOrderLineItem does not exist")
-							.setStatusCode(401)
-							.response();
-					readResponse = ReadResponse.setError(errorResponse);
-				} else {
-					String productID = SOItemEntity.getElementValue("ProductID").toString();
-
-					try {
-
-						logger.debug("==> now execute");
-						ODataQueryResult result = ODataQueryBuilder.
-								withEntity("/sap/opu/odata/IWBEP/GWSAMPLE_BASIC", "ProductSet('"+productID+"')" )
-								.select("ProductID", "Name", "Description", "Category")
-								.build()
-								.execute(DESTINATION_NAME);
-
-						logger.debug("==> After calling backend OData V2 service: result: " + result);		
-
-						final ProductEntity v2Product = result.as(ProductEntity.class);
-						readResponse = ReadResponse.setSuccess().setData(v2Product).response();
-						return readResponse;
-
-					} catch (IllegalArgumentException | ODataException e) {
-						logger.error("==> Exception calling backend OData V2 service: " + e.getMessage());
+			ReadResponse readResponse = null;			
+			EntityData SOItemEntity;
+			try{
+				String sourceEntityName = readRequest.getSourceEntityName();
+
+				//Read SalesOrderLineItems to check if the passed SOLineItemID exists
+				if ( sourceEntityName.equals("SalesOrderLineItems")) {	
+
+					// Expanding Product over a page of line items: both the line item and its product are already known
+					ProductEntity prefetched = getPrefetchedProduct(readRequest.getSourceKeys());
+					if (prefetched != null) {
+						operation.setRows(1);
+						return ReadResponse.setSuccess().setData(prefetched).response();
+					}
+
+					if (productsReplicated) {
+						try (CDSSession session = dataAccess.openSession()) {
+							String lineItemID = String.valueOf(readRequest.getSourceKeys().get("SOLineItemID"));
+							ProductEntity product = readReplicatedProducts(session, Collections.singletonList(lineItemID)).get(lineItemID);
+							// without a product, only a missing line item is an error; that is reported below
+							if (product != null || readSalesOrderLineItem(session, readRequest.getSourceKeys()) != null) {
+								operation.setRows(product == null ? 0 : 1);
+								return ReadResponse.setSuccess().setData(product).response();
+							}
+						}
+					}
+
+					try (CDSSession session = dataAccess.openSession()) {
+						SOItemEntity = readSalesOrderLineItem(session, readRequest.getSourceKeys());
+					}				
+					if (SOItemEntity == null) {
 						ErrorResponse errorResponse = ErrorResponse.getBuilder()
-								.setMessage("Error error error")
-								.setStatusCode(500)
-								.setCause(e)
+								.setMessage("Parent SalesOrderLineItem does not exist")
+								.setStatusCode(401)
 								.response();
+						operation.failed("PARENT_NOT_FOUND");
 						readResponse = ReadResponse.setError(errorResponse);
+					} else {
+						String productID = SOItemEntity.getElementValue("ProductID").toString();
+
+						try {
+
+							final ProductEntity v2Product = productCache.get(productID);
+							operation.setRows(v2Product == null ? 0 : 1);
+							readResponse = ReadResponse.setSuccess().setData(v2Product).response();
+							return readResponse;
+
+						} catch (BackendUnavailableException e) {
+							logger.error("==> Backend OData V2 service unavailable: {}", e.getMessage());
+							operation.failed(e);
+							readResponse = ReadResponse.setError(ErrorResponse.getBuilder()
+									.setMessage(e.getMessage())
+									.setStatusCode(e.getStatusCode())
+									.response());
+						} catch (IllegalArgumentException | ODataException e) {
+							logger.error("==> Exception calling backend OData V2 service: {}", e.getMessage());
+							operation.failed(e);
+							ErrorResponse errorResponse = ErrorResponse.getBuilder()
+									.setMessage("Error error error")
+									.setStatusCode(500)
+									.setCause(e)
+									.response();
+							readResponse = ReadResponse.setError(errorResponse);
+						}
 					}
 				}
+			}catch(Exception e){
+				operation.failed(e);
+				readResponse = ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
 			}
-		}catch(Exception e){
-			readResponse = ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
-		}
 
-		return readResponse;
+			return readResponse;
+		}
 	}
 
 
 	@Query(entity = "SalesOrders", serviceName = "EPMSampleService")
 	public QueryResponse getAllSalesOrders(QueryRequest queryRequest) {
-		QueryResponse queryResponse = null;
-		try{
-			queryResponse =  QueryResponse.setSuccess().setEntityData(getEntitySet(queryRequest)).response();
-		}catch(Exception e){
-			queryResponse =  QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders", "query")) {
+			QueryResponse queryResponse = null;
+			try{
+				List<EntityData> salesOrders = getEntitySet(queryRequest);
+				operation.setRows(salesOrders.size());
+				prefetchLineItems(salesOrders);
+				queryResponse =  collection(salesOrders);
+			}catch(UnsupportedOperationException e){
+				operation.failed(e);
+				queryResponse =  QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(501).response());
+			}catch(Exception e){
+				operation.failed(e);
+				queryResponse =  QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+			}
+			return queryResponse;
 		}
-		return queryResponse;
 	}
 
 	@Create(entity = "SalesOrders", serviceName = "EPMSampleService")
 	public CreateResponse createSalesOrder(CreateRequest createRequest) {
-		return createSalesOrderEntity( createRequest);
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders", "create")) {
+			return createSalesOrderEntity( createRequest, operation);
+		}
 	}
 
 	@Read(entity = "SalesOrders", serviceName = "EPMSampleService")
 	public ReadResponse getSalesOrder(ReadRequest readRequest) {
-		ReadResponse readResponse = null;
-		try{
-			readResponse = ReadResponse.setSuccess().setData(readEntity(readRequest)).response();
-		}catch (Exception e){
-			readResponse = ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders", "read")) {
+			ReadResponse readResponse = null;
+			try{
+				EntityData salesOrder = readEntity(readRequest);
+				operation.setRows(salesOrder == null ? 0 : 1);
+				readResponse = ReadResponse.setSuccess().setData(salesOrder).response();
+			}catch (Exception e){
+				operation.failed(e);
+				readResponse = ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+			}
+			return readResponse;
 		}
-		return readResponse;
 	}
 	@Update(entity = "SalesOrders", serviceName = "EPMSampleService")
 	public UpdateResponse updateSalesOrder(UpdateRequest updateRequest) {
-		UpdateResponse updateResponse  = null;
-		try{
-			updateEntity(updateRequest);
-			updateResponse = UpdateResponse.setSuccess().response();
-		}catch (Exception e){
-			updateResponse = UpdateResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders", "update")) {
+			UpdateResponse updateResponse  = null;
+			try{
+				enterBatchPart(BatchRequest.UPDATE, "SalesOrders");
+				updateEntity(updateRequest);
+				completeBatchPart();
+				operation.setRows(1);
+				updateResponse = UpdateResponse.setSuccess().response();
+			}catch (Exception e){
+				updateResponse = UpdateResponse.setError(writeError(e, operation));
+			}
+			return updateResponse;
 		}
-		return updateResponse;
 	}
 	@Delete(entity = "SalesOrders", serviceName = "EPMSampleService")
 	public DeleteResponse deleteSalesOrder(DeleteRequest deleteRequest) {
-		DeleteResponse deleteResponse = null;
-		try{
-			deleteEntity(deleteRequest);
-			deleteResponse = DeleteResponse.setSuccess().response();
-		}catch(Exception e){
-			deleteResponse = DeleteResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders", "delete")) {
+			DeleteResponse deleteResponse = null;
+			try{
+				enterBatchPart(BatchRequest.DELETE, "SalesOrders");
+				deleteEntity(deleteRequest);
+				completeBatchPart();
+				operation.setRows(1);
+				deleteResponse = DeleteResponse.setSuccess().response();
+			}catch(Exception e){
+				deleteResponse = DeleteResponse.setError(writeError(e, operation));
+			}
+			return deleteResponse;
 		}
-		return deleteResponse;
 	}
 	@Query(entity = "SalesOrderLineItems", serviceName = "EPMSampleService")
 	public QueryResponse getAllSOLineItems(QueryRequest queryRequest) {
-		QueryResponse queryResponse = null;
-		try{
-			queryResponse =  QueryResponse.setSuccess().setEntityData(getEntitySet(queryRequest)).response();
-		}catch(Exception e){
-			queryResponse =  QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrderLineItems", "query")) {
+			QueryResponse queryResponse = null;
+			try{
+				List<EntityData> lineItems = getEntitySet(queryRequest);
+				operation.setRows(lineItems.size());
+				prefetchProducts(lineItems);
+				queryResponse =  collection(lineItems);
+			}catch(UnsupportedOperationException e){
+				operation.failed(e);
+				queryResponse =  QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(501).response());
+			}catch(Exception e){
+				operation.failed(e);
+				queryResponse =  QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+			}
+			return queryResponse;
 		}
-		return queryResponse;
 	} 
 	@Query(entity = "SalesOrderLineItems", serviceName = "EPMSampleService", sourceEntity = "SalesOrders")
 	public QueryResponse getSOLineItemsForSO(QueryRequest queryRequest) {
-		QueryResponse queryResponse = null;
-		EntityData SOEntity;
-		try{
-			String sourceEntityName = queryRequest.getSourceEntityName();
-
-			//Read SalesOrders to check if the passed SalesOrderID exists
-			if ( sourceEntityName.equals("SalesOrders")) {
-
-				SOEntity = readSalesOrder(queryRequest.getSourceKeys());
-
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders/SalesOrderLineItems", "query")) {
+			QueryResponse queryResponse = null;
+			EntityData SOEntity;
+			try{
+				String sourceEntityName = queryRequest.getSourceEntityName();
+
+				if ( sourceEntityName.equals("SalesOrders")) {
+
+					// Expanding SalesOrderLineItems over a page of sales orders: the children were read with the page
+					List<EntityData> prefetched = getPrefetchedLineItems(queryRequest.getSourceKeys());
+					if (prefetched != null) {
+						operation.setRows(prefetched.size());
+						return QueryResponse.setSuccess().setEntityData(prefetched).response();
+					}
 
-				if (SOEntity == null) {
-					ErrorResponse errorResponse = ErrorResponse.getBuilder()
-							.setMessage("Parent SalesOrder does not exist")
-							.setStatusCode(401)
-							.response();
-					queryResponse = QueryResponse.setError(errorResponse);
-				} 
-				else {
-					queryResponse =  QueryResponse.setSuccess().setEntityData(getSOItemsForSO(queryRequest.getSourceKeys())).response();
+					try (CDSSession session = dataAccess.openSession()) {
+						List<EntityData> lineItems = getSOItemsForSO(session, queryRequest);
+
+						//Line items prove that the SalesOrder exists; only check it explicitly if there are none
+						SOEntity = lineItems.isEmpty() ? readSalesOrder(session, queryRequest.getSourceKeys()) : null;
+						if (lineItems.isEmpty() && SOEntity == null) {
+							ErrorResponse errorResponse = ErrorResponse.getBuilder()
+									.setMessage("Parent SalesOrder does not exist")
+									.setStatusCode(401)
+									.response();
+							operation.failed("PARENT_NOT_FOUND");
+							queryResponse = QueryResponse.setError(errorResponse);
+						} 
+						else {
+							operation.setRows(lineItems.size());
+							prefetchProducts(lineItems);
+							queryResponse =  collection(lineItems);
+						}
+					}
 				}
+			}catch(UnsupportedOperationException e){
+				operation.failed(e);
+				queryResponse = QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(501).response());
+			}catch(Exception e){
+				logger.error("==> Exception fetching SOItems for a SO from CDS: {}", e.getMessage());
+				operation.failed(e);
+				queryResponse = QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setCause(e).response());
 			}
-		}catch(Exception e){
-			logger.error("==> Exception fetching SOItems for a SO from CDS: " + e.getMessage());
-			queryResponse = QueryResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setCause(e).response());
-		}
 
-		return queryResponse;
+			return queryResponse;
+		}
 	}    
 
 	@Read(entity = "SalesOrderLineItems", serviceName = "EPMSampleService")
 	public ReadResponse getSOItem(ReadRequest readRequest) {
-		ReadResponse readResponse = null;
-		try{
-			readResponse = ReadResponse.setSuccess().setData(readEntity(readRequest)).response();
-		}catch(Exception e){
-			readResponse = ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrderLineItems", "read")) {
+			ReadResponse readResponse = null;
+			try{
+				EntityData lineItem = readEntity(readRequest);
+				operation.setRows(lineItem == null ? 0 : 1);
+				readResponse = ReadResponse.setSuccess().setData(lineItem).response();
+			}catch(Exception e){
+				operation.failed(e);
+				readResponse = ReadResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+			}
+			return readResponse;
 		}
-		return readResponse;
 	}
 	@Create(entity = "SalesOrderLineItems", serviceName = "EPMSampleService")
 	public CreateResponse createSalesOrderLineItems(CreateRequest createRequest) {
-		CreateResponse createResponse = null;
-		try{
-			createResponse = CreateResponse.setSuccess().setData(createEntity( createRequest)).response();
-		}catch(Exception e){
-			createResponse = CreateResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(500).response());
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrderLineItems", "create")) {
+			CreateResponse createResponse = null;
+			try{
+				enterBatchPart(BatchRequest.CREATE, "SalesOrderLineItems");
+				EntityData lineItem = createEntity(createRequest);
+				completeBatchPart();
+				createResponse = CreateResponse.setSuccess().setData(lineItem).response();
+				operation.setRows(1);
+			}catch(Exception e){
+				createResponse = CreateResponse.setError(writeError(e, operation));
+			}
+			return createResponse;
 		}
-		return createResponse;
 	}
 	@Create(entity = "SalesOrderLineItems", serviceName = "EPMSampleService", sourceEntity = "SalesOrders")
 	public CreateResponse createSalesOrderLineItemForSalesOrder(CreateRequest createRequest) {
+		try (ServiceMetrics.Operation operation = metrics.start("SalesOrders/SalesOrderLineItems", "create")) {
 
-		CreateResponse createResponse = null;				
-		EntityData SOEntity;
-		try{
-			String sourceEntityName = createRequest.getSourceEntityName();
+			CreateResponse createResponse = null;				
+			EntityData SOEntity;
+			try{
+				enterBatchPart(BatchRequest.CREATE, "SalesOrderLineItems");
+				String sourceEntityName = createRequest.getSourceEntityName();
 
-			//Read SalesOrders to check if the passed SalesOrderID exists
-			if ( sourceEntityName.equals("SalesOrders")) {
+				//Read SalesOrders to check if the passed SalesOrderID exists
+				if ( sourceEntityName.equals("SalesOrders")) {
 
-				SOEntity = readSalesOrder(createRequest.getSourceKeys());
+					try (CDSSession session = dataAccess.openSession()) {
+						SOEntity = readSalesOrder(session, createRequest.getSourceKeys());
+					}
 
 
-				if (SOEntity == null) {
-					ErrorResponse errorResponse = ErrorResponse.getBuilder()
-							.setMessage("Parent SalesOrder does not exist")
-							.setStatusCode(401)
-							.response();
-					createResponse = CreateResponse.setError(errorResponse);
-				} 
-				else {
-					// you can do further validation to check that the payload data contains the SalesOrderID same as that in the URL
-					// for that you can use the createRequest.getData() and further find the specific property's value			
+					if (SOEntity == null) {
+						ErrorResponse errorResponse = ErrorResponse.getBuilder()
+								.setMessage("Parent SalesOrder does not exist")
+								.setStatusCode(401)
+								.response();
+						operation.failed("PARENT_NOT_FOUND");
+						failChangeSet();
+						createResponse = CreateResponse.setError(errorResponse);
+					} 
+					else {
+						// you can do further validation to check that the payload data contains the SalesOrderID same as that in the URL
+						// for that you can use the createRequest.getData() and further find the specific property's value			
+
+						EntityData lineItem = createEntity(createRequest);
+						completeBatchPart();
+						createResponse = CreateResponse.setSuccess().setData(lineItem).response();
+						operation.setRows(1);
+
+					}}
+			}catch(Exception e){
+				logger.error("==> Exception while creating a SOItem for a SO in CDS: {}", e.getMessage());
+				createResponse = CreateResponse.setError(writeError(e, operation));
+			}
+			return createResponse;
+		}
+	}
 
-					createResponse = CreateResponse.setSuccess().setData(createEntity(createRequest)).response();
+	/**
+	 * When the client expands Product over a page of line items, the OData runtime reads the
+	 * product of every line item separately. Resolve all of them here with one backend call for
+	 * the products not yet cached, or one join per chunk with the replica, and keep them for the
+	 * per-item reads of this request.
+	 */
+	private void prefetchProducts(List<EntityData> lineItems) {
+		RequestContext context = RequestContext.current();
+		if (context != null && context.isExpanded("Product")) {
+			resolveProducts(context, lineItems);
+		}
+	}
 
-				}}
-		}catch(Exception e){
-			logger.error("==> Exception while creating a SOItem for a SO in CDS: " + e.getMessage());
-			createResponse = CreateResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setCause(e).response());
+	private void resolveProducts(RequestContext context, List<EntityData> lineItems) {
+		if (lineItems.isEmpty()) {
+			return;
+		}
+		Map<String, String> productIDs = new HashMap<>();
+		for (EntityData lineItem : lineItems) {
+			Object productID = lineItem.getElementValue("ProductID");
+			if (productID != null) {
+				productIDs.put(lineItem.getElementValue("SOLineItemID").toString(), productID.toString());
+			}
+		}
+		try {
+			Map<String, ProductEntity> lineItemProducts = context.getAttribute(PREFETCHED_PRODUCTS);
+			if (lineItemProducts == null) {
+				lineItemProducts = new HashMap<>();
+			}
+			if (productsReplicated) {
+				try (CDSSession session = dataAccess.openSession()) {
+					lineItemProducts.putAll(readReplicatedProducts(session, productIDs.keySet()));
+				}
+			} else {
+				Map<String, ProductEntity> products = productCache.getAll(new HashSet<>(productIDs.values()));
+				for (Map.Entry<String, String> lineItem : productIDs.entrySet()) {
+					ProductEntity product = products.get(lineItem.getValue());
+					if (product != null) {
+						lineItemProducts.put(lineItem.getKey(), product);
+					}
+				}
+			}
+			context.setAttribute(PREFETCHED_PRODUCTS, lineItemProducts);
+		} catch (Exception e) {
+			// the per-item reads fall back to reading the products one by one
+			logger.error("==> Exception prefetching {} products: {}", productIDs.size(), e.getMessage());
+		}
+	}
+
+	private ProductEntity getPrefetchedProduct(Map<String, Object> lineItemKeys) {
+		RequestContext context = RequestContext.current();
+		Map<String, ProductEntity> lineItemProducts = context == null ? null : context.<Map<String, ProductEntity>>getAttribute(PREFETCHED_PRODUCTS);
+		return lineItemProducts == null ? null : lineItemProducts.get(String.valueOf(lineItemKeys.get("SOLineItemID")));
+	}
+
+	/**
+	 * When the client expands SalesOrderLineItems over a page of sales orders, the OData runtime
+	 * queries the line items of every order separately. Read the line items of the whole page with
+	 * one SalesOrderID IN (...) query per chunk instead and keep them grouped by order for the
+	 * per-order queries of this request. Expands with nested options other than $expand are left
+	 * to the per-order queries, which apply those options.
+	 */
+	private void prefetchLineItems(List<EntityData> salesOrders) throws Exception {
+		RequestContext context = RequestContext.current();
+		String nestedOptions = context == null ? null : ExpandOption.getNestedOptions(context.getQueryOption("$expand"), "SalesOrderLineItems");
+		if (nestedOptions == null || salesOrders.isEmpty()) {
+			return;
 		}
-		return createResponse;
+		String nestedExpand = ExpandOption.getNestedOption(nestedOptions, "$expand");
+		if (!nestedOptions.trim().isEmpty() && !nestedOptions.trim().equals("$expand=" + nestedExpand)) {
+			return;
+		}
+
+		Map<String, List<EntityData>> lineItemsBySalesOrder = new LinkedHashMap<>();
+		for (EntityData salesOrder : salesOrders) {
+			lineItemsBySalesOrder.put(salesOrder.getElementValue("SalesOrderID").toString(), new ArrayList<EntityData>());
+		}
+		List<String> salesOrderIDs = new ArrayList<>(lineItemsBySalesOrder.keySet());
+		List<EntityData> allLineItems = new ArrayList<>();
+		try (CDSSession session = dataAccess.openSession()) {
+			CDSDataSourceHandler dsHandler = session.getHandler("EPMSample");
+			for (int start = 0; start < salesOrderIDs.size(); start += IN_LIST_SIZE) {
+				List<String> chunk = salesOrderIDs.subList(start, Math.min(start + IN_LIST_SIZE, salesOrderIDs.size()));
+				CDSQuery cdsQuery = new CDSSelectQueryBuilder("EPMSample.SalesOrderLineItems")
+						.where(new ConditionBuilder().columnName("SalesOrderID").IN(chunk.toArray()).build())
+						.orderBy("SalesOrderID", false).orderBy("SOLineItemID", false).build();
+				long cdsStart = System.nanoTime();
+				List<EntityData> lineItems = dsHandler.executeQuery(cdsQuery).getResult();
+				metrics.recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - cdsStart);
+				for (EntityData lineItem : lineItems) {
+					lineItemsBySalesOrder.get(lineItem.getElementValue("SalesOrderID").toString()).add(lineItem);
+				}
+				allLineItems.addAll(lineItems);
+			}
+		} catch (CDSException e) {
+			logger.error("Exception while reading the SalesOrder Items of {} SalesOrders in CDS: {}", salesOrderIDs.size(), e.getMessage());
+			throw e;
+		}
+		context.setAttribute(PREFETCHED_LINE_ITEMS, lineItemsBySalesOrder);
+		if (ExpandOption.contains(nestedExpand, "Product")) {
+			resolveProducts(context, allLineItems);
+		}
+	}
+
+	private List<EntityData> getPrefetchedLineItems(Map<String, Object> salesOrderKeys) {
+		RequestContext context = RequestContext.current();
+		Map<String, List<EntityData>> lineItemsBySalesOrder = context == null ? null : context.<Map<String, List<EntityData>>>getAttribute(PREFETCHED_LINE_ITEMS);
+		return lineItemsBySalesOrder == null ? null : lineItemsBySalesOrder.get(String.valueOf(salesOrderKeys.get("SalesOrderID")));
 	}
 
 	private EntityData createEntity(CreateRequest createRequest)throws Exception
 	{    
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), createRequest.getEntityMetadata().getNamespace());
-		EntityData ed = null;
-		try{
-			ed = dsHandler.executeInsert(createRequest.getData(), true);
-		}catch(CDSException e){
-			logger.error("Exception while creating an entity in CDS: "+e.getMessage());
+		EPMSampleModel.EntitySet entitySet = getCDSEntitySet(createRequest.getEntityMetadata().getName());
+		ChangeSet changeSet = ChangeSet.current();
+		if (changeSet != null) {
+			changeSet.insert(entitySet, createRequest.getData());
+			changeSet.flush();
+			return createRequest.getData();
+		}
+		// a change set of its own adds the line item to the GrossAmount of its order in the same transaction
+		try (ChangeSet insert = ChangeSet.begin()) {
+			insert.insert(entitySet, createRequest.getData());
+			insert.commit();
+		}catch(SQLException e){
+			logger.error("Exception while creating an entity in CDS: {}", e.getMessage());
 			throw e;
 		}
-		return ed;
+		// respond with the posted data; ChangedAt is not part of the OData model
+		return createRequest.getData();
 	}
 
-	private CreateResponse createSalesOrderEntity(CreateRequest createRequest)
+	private CreateResponse createSalesOrderEntity(CreateRequest createRequest, ServiceMetrics.Operation operation)
 	{   
 		EntityData ed = null;
-		try{
-			CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), createRequest.getEntityMetadata().getNamespace());
-			ed = dsHandler.executeInsert(createRequest.getData(), true);
+		try {
+			enterBatchPart(BatchRequest.CREATE, "SalesOrders");
+			ed = insertSalesOrder(createRequest);
+			completeBatchPart();
+			List<EntityData> lineItems = createRequest.getData().getNavigationData() == null ? null : createRequest.getData().getNavigationData().get("SalesOrderLineItems");
+			operation.setRows(1 + (lineItems == null ? 0 : lineItems.size()));
 		}catch(CDSException e){
-			logger.error("Exception while creating a sales order entity in CDS: "+e.getMessage());
+			logger.error("Exception while creating a sales order entity in CDS: {}", e.getMessage());
+			operation.failed(e);
 			ErrorResponse errorResponse = null;
 			if(e.getType().equals(DatasourceExceptionType.INTEGRITY_CONSTRAINT_VIOLATION)){
 				createRequest.getMessageContainer().addErrorMessage("INTEGRITY_CONSTRAINT_ERROR", "CDS");
@@ -355,108 +619,331 @@ public class EPMSampleService {
 			}else{
 				errorResponse =ErrorResponse.getBuilder().setStatusCode(500).setMessage("Exception during CDS create operation: "+e.getMessage()).response();
 			}
+			failChangeSet();
+			return CreateResponse.setError(errorResponse);
+		}catch(SQLException e){
+			logger.error("Exception while creating a sales order entity in CDS: {}", e.getMessage());
+			operation.failed(e);
+			failChangeSet();
+			ErrorResponse errorResponse = null;
+			if(e.getSQLState() != null && e.getSQLState().startsWith("23")){
+				createRequest.getMessageContainer().addErrorMessage("INTEGRITY_CONSTRAINT_ERROR", "CDS");
+				errorResponse =ErrorResponse.getBuilder().setStatusCode(500).addContainerMessages(Severity.ERROR).response();
+			}else{
+				errorResponse =ErrorResponse.getBuilder().setStatusCode(500).setMessage("Exception during CDS create operation: "+e.getMessage()).response();
+			}
 			return CreateResponse.setError(errorResponse);
 		}catch(Exception e){
-			logger.error("==> Exception while creating a SO in CDS: " + e.getMessage());
-			return CreateResponse.setError(ErrorResponse.getBuilder().setMessage(e.getMessage()).setCause(e).response());
+			logger.error("==> Exception while creating a SO in CDS: {}", e.getMessage());
+			return CreateResponse.setError(writeError(e, operation));
 		}
 		return CreateResponse.setSuccess().setData(ed).response();
 	}
 
+	/**
+	 * Inserts a sales order. Line items posted inline (deep insert) are written in the same
+	 * transaction with one JDBC batch, inside the change set of the $batch request if there is one.
+	 * The GrossAmount of the order is the total of these line items (see {@link GrossAmountRollup}).
+	 */
+	private EntityData insertSalesOrder(CreateRequest createRequest) throws Exception {
+		EntityData data = createRequest.getData();
+		Map<String, List<EntityData>> navigationData = data.getNavigationData();
+		List<EntityData> lineItems = navigationData == null ? null : navigationData.get("SalesOrderLineItems");
+		long grossAmount = GrossAmountRollup.total(lineItems);
+		// before anything is written
+		GrossAmountRollup.checkRange(grossAmount);
+		ChangeSet changeSet = ChangeSet.current();
+		if (changeSet != null) {
+			insertSalesOrder(changeSet, data, lineItems);
+		} else {
+			try (ChangeSet deepInsert = ChangeSet.begin()) {
+				insertSalesOrder(deepInsert, data, lineItems);
+				deepInsert.commit();
+			}
+		}
+		return GrossAmountRollup.withGrossAmount(data, grossAmount);
+	}
+
+	private void insertSalesOrder(ChangeSet changeSet, EntityData salesOrder, List<EntityData> lineItems) throws SQLException {
+		changeSet.insert(EPMSampleModel.SALES_ORDERS, salesOrder);
+		if (lineItems != null) {
+			Object salesOrderID = salesOrder.getElementValue("SalesOrderID");
+			for (EntityData lineItem : lineItems) {
+				Map<String, Object> values = new HashMap<>(lineItem.asMap());
+				values.put("SalesOrderID", salesOrderID);
+				changeSet.insert(EPMSampleModel.SALES_ORDER_LINE_ITEMS, values);
+			}
+		}
+		// written before the handler answers, the line items with one JDBC batch
+		changeSet.flush();
+	}
+
+	private static EPMSampleModel.EntitySet getCDSEntitySet(String entitySetName) {
+		EPMSampleModel.EntitySet entitySet = EPMSampleModel.getEntitySet(entitySetName);
+		if (entitySet == null) {
+			throw new IllegalArgumentException(entitySetName + " is not stored in CDS");
+		}
+		return entitySet;
+	}
+
+	// Writes of a $batch request run in the change set of their part (see BatchRequest)
+	private static void enterBatchPart(String operation, String entitySetName) throws SQLException, NamingException {
+		BatchRequest batch = BatchRequest.current();
+		if (batch != null) {
+			batch.enter(operation, entitySetName);
+		}
+	}
+
+	private static void completeBatchPart() throws SQLException {
+		BatchRequest batch = BatchRequest.current();
+		if (batch != null) {
+			batch.completed();
+		}
+	}
+
+	// A failed write inside a change set rolls back its other writes
+	private static void failChangeSet() {
+		BatchRequest batch = BatchRequest.current();
+		if (batch != null) {
+			batch.failed();
+		}
+	}
+
+	/**
+	 * Records a failed write, fails its change set and answers it with the status of the exception:
+	 * 400 for invalid data, 404 for an unknown entity, 412 for an outdated and 428 for a missing
+	 * If-Match, 500 otherwise.
+	 */
+	private static ErrorResponse writeError(Exception e, ServiceMetrics.Operation operation) {
+		operation.failed(e);
+		failChangeSet();
+		int statusCode = getStatusCode(e);
+		ErrorResponseBuilder builder = ErrorResponse.getBuilder().setMessage(e.getMessage()).setStatusCode(statusCode);
+		return (statusCode == 500 ? builder.setCause(e) : builder).response();
+	}
+
+	private static int getStatusCode(Exception e) {
+		if (e instanceof BadRequestException) {
+			return 400;
+		}
+		if (e instanceof EntityNotFoundException) {
+			return 404;
+		}
+		if (e instanceof PreconditionFailedException) {
+			return 412;
+		}
+		if (e instanceof PreconditionRequiredException) {
+			return 428;
+		}
+		return 500;
+	}
+
 	private void updateEntity(UpdateRequest updateRequest) throws Exception{
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), updateRequest.getEntityMetadata().getNamespace());
-		try{
-			dsHandler.executeUpdate(updateRequest.getData(), updateRequest.getKeys(), false);
-		}catch(CDSException e){
-			logger.error("Exception while updatiing an entity in CDS: "+e.getMessage());
+		EPMSampleModel.EntitySet entitySet = getCDSEntitySet(updateRequest.getEntityMetadata().getName());
+		String ifMatch = ChangeTracking.getIfMatch();
+		ChangeSet changeSet = ChangeSet.current();
+		if (changeSet != null) {
+			changeSet.update(entitySet, updateRequest.getData(), updateRequest.getKeys(), ifMatch);
+			return;
+		}
+		// a change set of its own keeps the GrossAmount of the orders in the same transaction
+		try (ChangeSet update = ChangeSet.begin()) {
+			update.update(entitySet, updateRequest.getData(), updateRequest.getKeys(), ifMatch);
+			update.commit();
+		}catch(SQLException e){
+			logger.error("Exception while updatiing an entity in CDS: {}", e.getMessage());
 			throw e;
 		}
 	}
 	
 	private void deleteEntity(DeleteRequest deleteRequest) throws Exception{
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), deleteRequest.getEntityMetadata().getNamespace());
-		try{
-			dsHandler.executeDelete(deleteRequest.getEntityMetadata().getName(), deleteRequest.getKeys());
-		}catch(CDSException e){
-			logger.error("Exception while deleting an entity in CDS: "+e.getMessage());
+		EPMSampleModel.EntitySet entitySet = getCDSEntitySet(deleteRequest.getEntityMetadata().getName());
+		String ifMatch = ChangeTracking.getIfMatch();
+		ChangeSet changeSet = ChangeSet.current();
+		if (changeSet != null) {
+			changeSet.delete(entitySet, deleteRequest.getKeys(), ifMatch);
+			return;
+		}
+		// a change set of its own writes the tombstone in the same transaction as the delete
+		try (ChangeSet delete = ChangeSet.begin()) {
+			delete.delete(entitySet, deleteRequest.getKeys(), ifMatch);
+			delete.commit();
+		}catch(SQLException e){
+			logger.error("Exception while deleting an entity in CDS: {}", e.getMessage());
 			throw e;
 		}
 	}
+	// Reads the entity together with its ChangedAt, from which the ConditionalRequestFilter derives
+	// the entity tag without a lookup of its own.
 	private EntityData readEntity(ReadRequest readRequest)throws Exception {
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), readRequest.getEntityMetadata().getNamespace());
+		EPMSampleModel.EntitySet entitySet = getCDSEntitySet(readRequest.getEntityMetadata().getName());
+		List<String> properties = entitySet.getProperties();
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (String property : properties) {
+			sql.append('"').append(property).append("\", ");
+		}
+		sql.append('"').append(ChangeTracking.CHANGED_AT).append("\" FROM ").append(entitySet.getTableName())
+				.append(" WHERE \"").append(entitySet.getKey()).append("\" = ?");
 		EntityData ed = null;
-		try{
-			ed = dsHandler.executeRead(readRequest.getEntityMetadata().getName(), readRequest.getKeys(), readRequest.getEntityMetadata().getElementNames());
-		}catch(CDSException e){
-			logger.error("Exception while reading an entity in CDS: "+e.getMessage());
+		try (CDSSession session = dataAccess.openSession()) {
+			long cdsStart = System.nanoTime();
+			PreparedStatement statement = session.prepare(sql.toString());
+			statement.setObject(1, readRequest.getKeys().get(entitySet.getKey()));
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (resultSet.next()) {
+					Map<String, Object> values = new LinkedHashMap<>();
+					for (int i = 0; i < properties.size(); i++) {
+						values.put(properties.get(i), resultSet.getObject(i + 1));
+					}
+					Timestamp changedAt = resultSet.getTimestamp(properties.size() + 1);
+					ConditionalRequestFilter.setChangedAt(changedAt == null ? 0 : ChangeTracking.toMicros(changedAt));
+					ed = EntityData.createFromMap(values, Collections.singletonList(entitySet.getKey()), entitySet.getName());
+				}
+			}
+			metrics.recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - cdsStart);
+		}catch(SQLException e){
+			logger.error("Exception while reading an entity in CDS: {}", e.getMessage());
 			throw e;
 		}
 		return ed;
 	}
+	// Queries, navigations and parent checks bind their values to cached statements instead of
+	// going through a CDS query with the values as literals.
 	private List<EntityData> getEntitySet(QueryRequest queryRequest) throws Exception{
-		String fullQualifiedName = queryRequest.getEntityMetadata().getNamespace()+"."+queryRequest.getEntityMetadata().getName();
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), queryRequest.getEntityMetadata().getNamespace());
-		try {
-			CDSQuery cdsQuery = new CDSSelectQueryBuilder(fullQualifiedName).orderBy("SalesOrderID", false).build();                    			
-			CDSSelectQueryResult cdsSelectQueryResult = dsHandler.executeQuery(cdsQuery);
-			return cdsSelectQueryResult.getResult();
-		} catch (CDSException e) {
-			logger.error("==> Exception while fetching query data from CDS: " + e.getMessage());
+		QueryOptionsTranslator.SqlQuery query = QueryOptionsTranslator.toSql(queryRequest,
+				getCDSEntitySet(queryRequest.getEntityMetadata().getName()), null, null);
+		try (CDSSession session = dataAccess.openSession()) {
+			return executeQuery(session, query);
+		} catch (SQLException e) {
+			logger.error("==> Exception while fetching query data from CDS: {}", e.getMessage());
 			throw e;
 		}
 	}
 	
-	private List<EntityData> getSOItemsForSO(Map<String,Object> SalesOrderID) throws Exception{
-		String fullQualifiedName = "EPMSample.SalesOrderLineItems";
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), "EPMSample");
+	private List<EntityData> getSOItemsForSO(CDSSession session, QueryRequest queryRequest) throws Exception{
+		QueryOptionsTranslator.SqlQuery query = QueryOptionsTranslator.toSql(queryRequest, EPMSampleModel.SALES_ORDER_LINE_ITEMS,
+				"SalesOrderID", queryRequest.getSourceKeys().get("SalesOrderID").toString());
 		try {
-			CDSQuery cdsQuery = new CDSSelectQueryBuilder(fullQualifiedName).where(new ConditionBuilder().columnName("SalesOrderID").EQ(SalesOrderID.get("SalesOrderID").toString()).build())
-					.orderBy("SOLineItemID", false).build();
-			//.orderBy(queryRequest.getOrderByProperties().iterator().next().toString(), false).build();
-			CDSSelectQueryResult cdsSelectQueryResult = dsHandler.executeQuery(cdsQuery);
-			return cdsSelectQueryResult.getResult();
-		} catch (CDSException e) {
-			logger.error("Exception while reading SalesOrder Item in CDS: "+e.getMessage());
+			return executeQuery(session, query);
+		} catch (SQLException e) {
+			logger.error("Exception while reading SalesOrder Item in CDS: {}", e.getMessage());
 			throw e;
 		}
 		
 	}
 
-	private EntityData readSalesOrder(Map<String,Object> SalesOrderID) throws Exception{
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), "EPMSample");
-		List <String> properties = Arrays.asList("SalesOrderID");
-		EntityData ed = null;
+	private List<EntityData> executeQuery(CDSSession session, QueryOptionsTranslator.SqlQuery query) throws SQLException{
+		long cdsStart = System.nanoTime();
+		PreparedStatement statement = session.prepare(query.getSql());
+		query.bind(statement);
+		List<EntityData> entities = new ArrayList<>();
+		try (ResultSet resultSet = statement.executeQuery()) {
+			while (resultSet.next()) {
+				entities.add(query.toEntityData(resultSet));
+			}
+		}
+		RequestContext context = RequestContext.current();
+		if (query.getCountSql() != null) {
+			PreparedStatement countStatement = session.prepare(query.getCountSql());
+			query.bind(countStatement);
+			try (ResultSet resultSet = countStatement.executeQuery()) {
+				resultSet.next();
+				context.setAttribute(INLINE_COUNT, resultSet.getInt(1));
+			}
+		}
+		metrics.recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - cdsStart);
+		return entities;
+	}
+
+	/**
+	 * @return a response with the entities of a collection, and the count of all matching entities if
+	 *         $top or $skip limited the collection
+	 */
+	private static QueryResponse collection(List<EntityData> entities) {
+		RequestContext context = RequestContext.current();
+		Integer count = context == null ? null : context.<Integer>getAttribute(INLINE_COUNT);
+		QueryResponseBuilder builder = QueryResponse.setSuccess().setEntityData(entities);
+		if (count != null) {
+			builder.setInlineCount(count);
+		}
+		return builder.response();
+	}
+
+	/**
+	 * Joins the given line items with their products in the replica, one query per chunk. The IN
+	 * list is padded to a power of two, so a few statements serve every chunk size.
+	 *
+	 * @return SOLineItemID -> Product, without the line items whose product is not replicated
+	 */
+	private Map<String, ProductEntity> readReplicatedProducts(CDSSession session, Collection<String> lineItemIDs) throws SQLException{
+		List<String> ids = new ArrayList<>(lineItemIDs);
+		Map<String, ProductEntity> products = new HashMap<>();
+		for (int start = 0; start < ids.size(); start += IN_LIST_SIZE) {
+			List<String> chunk = ids.subList(start, Math.min(start + IN_LIST_SIZE, ids.size()));
+			int size = Math.min(Integer.highestOneBit(chunk.size() * 2 - 1), IN_LIST_SIZE);
+			StringBuilder sql = new StringBuilder("SELECT i.\"SOLineItemID\"");
+			for (String property : EPMSampleModel.PRODUCTS.getProperties()) {
+				sql.append(", p.\"").append(property).append('"');
+			}
+			sql.append(" FROM ").append(EPMSampleModel.SALES_ORDER_LINE_ITEMS.getTableName()).append(" i JOIN ")
+					.append(EPMSampleModel.PRODUCTS.getTableName()).append(" p ON p.\"ProductID\" = i.\"ProductID\" WHERE i.\"SOLineItemID\" IN (?");
+			for (int i = 1; i < size; i++) {
+				sql.append(", ?");
+			}
+			sql.append(')');
+			long cdsStart = System.nanoTime();
+			PreparedStatement statement = session.prepare(sql.toString());
+			for (int i = 0; i < size; i++) {
+				statement.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					Map<String, Object> values = new HashMap<>();
+					for (int i = 0; i < EPMSampleModel.PRODUCTS.getProperties().size(); i++) {
+						values.put(EPMSampleModel.PRODUCTS.getProperties().get(i), resultSet.getObject(i + 2));
+					}
+					products.put(resultSet.getString(1), ProductEntity.fromMap(values));
+				}
+			}
+			metrics.recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - cdsStart);
+		}
+		return products;
+	}
+
+	private EntityData readSalesOrder(CDSSession session, Map<String,Object> SalesOrderID) throws Exception{
 		try{
-			ed = dsHandler.executeRead("SalesOrders", SalesOrderID, properties);
-		}catch(CDSException e){
-			logger.error("Exception while reading SalesOrder entity in CDS: "+e.getMessage());
+			return readByKey(session, EPMSampleModel.SALES_ORDERS, SalesOrderID, "SalesOrderID");
+		}catch(SQLException e){
+			logger.error("Exception while reading SalesOrder entity in CDS: {}", e.getMessage());
 			throw e;
 		}
-		return ed;
 	}
-	private EntityData readSalesOrderLineItem(Map<String,Object> SalesOrderLineItemID) throws Exception{
-		CDSDataSourceHandler dsHandler = DataSourceHandlerFactory.getInstance().getCDSHandler(getConnection(), "EPMSample");
-		List <String> properties = Arrays.asList("ProductID");
-		EntityData ed = null;
+	private EntityData readSalesOrderLineItem(CDSSession session, Map<String,Object> SalesOrderLineItemID) throws Exception{
 		try{
-			ed = dsHandler.executeRead("SalesOrderLineItems", SalesOrderLineItemID, properties);
-		}catch(CDSException e){
-			logger.error("Exception while reading SalesOrderLineItems entity in CDS: "+e.getMessage());
+			return readByKey(session, EPMSampleModel.SALES_ORDER_LINE_ITEMS, SalesOrderLineItemID, "ProductID");
+		}catch(SQLException e){
+			logger.error("Exception while reading SalesOrderLineItems entity in CDS: {}", e.getMessage());
 			throw e;
 		}
-		return ed;
-	}	
+	}
 
-	private static Connection getConnection() throws SQLException ,NamingException{
-		Connection conn = null;
-		Context ctx;
-		try {
-			ctx = new InitialContext();
-			conn = ((DataSource) ctx.lookup("java:comp/env/jdbc/java-hdi-container")).getConnection();
-		} catch (SQLException | NamingException e) {
-			e.printStackTrace();
-			throw e;
+	/**
+	 * @return the given property of the entity with the key, or null if it does not exist
+	 */
+	private EntityData readByKey(CDSSession session, EPMSampleModel.EntitySet entitySet, Map<String,Object> keys, String property) throws SQLException{
+		long cdsStart = System.nanoTime();
+		PreparedStatement statement = session.prepare("SELECT \"" + property + "\" FROM " + entitySet.getTableName()
+				+ " WHERE \"" + entitySet.getKey() + "\" = ?");
+		statement.setObject(1, keys.get(entitySet.getKey()));
+		EntityData ed = null;
+		try (ResultSet resultSet = statement.executeQuery()) {
+			if (resultSet.next()) {
+				Map<String, Object> values = new LinkedHashMap<>();
+				values.put(property, resultSet.getObject(1));
+				ed = EntityData.createFromMap(values, Collections.<String>emptyList(), entitySet.getName());
+			}
 		}
-		return conn;
+		metrics.recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - cdsStart);
+		return ed;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package cxs.ana.odata_v4_cds;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts and stops the background work of the service together with the web application.
+ */
+public class EPMSampleServiceListener implements ServletContextListener {
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ServiceWarmup warmup = ServiceWarmup.getInstance();
+		// with the warm-up enabled, it loads the product cache or the replica itself
+		if (ProductReplicationJob.isEnabled()) {
+			ProductReplicationJob.getInstance().start(!warmup.isEnabled());
+		} else {
+			ProductCache.getInstance().start(!warmup.isEnabled());
+		}
+		warmup.start();
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ServiceWarmup.getInstance().stop();
+		ProductCache.getInstance().stop();
+		ProductReplicationJob.getInstance().stop();
+		BackendExecutor.getInstance().shutdown();
+	}
+}
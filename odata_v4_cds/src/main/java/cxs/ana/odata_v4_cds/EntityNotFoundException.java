@@ -0,0 +1,14 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * An update or delete found no entity with the given key. The handlers answer with 404 Not
+ * Found.
+ */
+public class EntityNotFoundException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public EntityNotFoundException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,289 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A collection request on a CDS entity set, parsed from the raw URL query options for the JDBC
+ * streaming path. Supports $filter (see {@link SqlFilter}), $select, $orderby, $top, $skip,
+ * $skiptoken, $count and $deltatoken; {@link #parse} returns null for any other system query
+ * option so the request can be left to the OData runtime.
+ * <p>
+ * With $deltatoken only the entities changed since the token are selected (see
+ * {@link ChangeTracking}). The pages of a change-tracked result carry the tracking start in their
+ * $skiptoken (&lt;skip&gt;~&lt;tracking start&gt;), so that the delta link of the last page covers
+ * the changes made while the client was paging.
+ */
+public class EntitySetQuery implements StreamableQuery {
+
+	private static final Set<String> SUPPORTED_OPTIONS = new LinkedHashSet<>(
+			Arrays.asList("$filter", "$select", "$orderby", "$top", "$skip", "$skiptoken", "$count", "$deltatoken", "$format"));
+
+	private final EPMSampleModel.EntitySet entitySet;
+	private final List<String> columns;
+	private final List<String> orderBy;
+	private final SqlFilter filter;
+	private final int skip;
+	private final int top;
+	private final boolean countRequested;
+	private final long deltaToken;
+	private final long trackingStart;
+
+	private EntitySetQuery(EPMSampleModel.EntitySet entitySet, List<String> columns, List<String> orderBy, SqlFilter filter,
+			int skip, int top, boolean countRequested, long deltaToken, long trackingStart) {
+		this.entitySet = entitySet;
+		this.columns = columns;
+		this.orderBy = orderBy;
+		this.filter = filter;
+		this.skip = skip;
+		this.top = top;
+		this.countRequested = countRequested;
+		this.deltaToken = deltaToken;
+		this.trackingStart = trackingStart;
+	}
+
+	/**
+	 * @return the parsed query, or null if the request uses options this path does not handle
+	 * @throws IllegalArgumentException if a supported option has an invalid value
+	 */
+	public static EntitySetQuery parse(EPMSampleModel.EntitySet entitySet, Map<String, String[]> parameters) {
+		for (String name : parameters.keySet()) {
+			if (name.startsWith("$") && !SUPPORTED_OPTIONS.contains(name)) {
+				return null;
+			}
+		}
+		String format = first(parameters, "$format");
+		if (format != null && !format.startsWith("json") && !format.startsWith("application/json")) {
+			return null;
+		}
+
+		List<String> columns = new ArrayList<>();
+		String select = first(parameters, "$select");
+		if (select == null || "*".equals(select.trim())) {
+			columns.addAll(entitySet.getProperties());
+		} else {
+			Set<String> selected = new LinkedHashSet<>();
+			selected.add(entitySet.getKey());
+			for (String property : select.split(",")) {
+				property = property.trim();
+				if (!entitySet.hasProperty(property)) {
+					// navigation properties and the like are left to the OData runtime
+					return null;
+				}
+				selected.add(property);
+			}
+			columns.addAll(selected);
+		}
+
+		List<String> orderBy = new ArrayList<>();
+		Set<String> ordered = new LinkedHashSet<>();
+		String orderByOption = first(parameters, "$orderby");
+		if (orderByOption != null) {
+			for (String item : orderByOption.split(",")) {
+				String[] parts = item.trim().split("\\s+");
+				String expression = entitySet.getExpression(parts[0]);
+				if (expression == null || parts.length > 2
+						|| (parts.length == 2 && !"asc".equals(parts[1]) && !"desc".equals(parts[1]))) {
+					throw new IllegalArgumentException("Invalid $orderby item '" + item.trim() + "'");
+				}
+				if (ordered.add(parts[0])) {
+					orderBy.add(expression + (parts.length == 2 && "desc".equals(parts[1]) ? " DESC" : ""));
+				}
+			}
+		}
+		// the key as last sort criterion keeps paging stable
+		if (ordered.add(entitySet.getKey())) {
+			orderBy.add("\"" + entitySet.getKey() + "\"");
+		}
+
+		String filterOption = first(parameters, "$filter");
+		SqlFilter filter = filterOption == null ? null : SqlFilter.parse(filterOption, entitySet);
+
+		int skip = nonNegative(parameters, "$skip", 0);
+		long trackingStart = -1;
+		String skipToken = first(parameters, "$skiptoken");
+		if (skipToken != null) {
+			int separator = skipToken.indexOf('~');
+			if (separator >= 0) {
+				trackingStart = nonNegative("$skiptoken", skipToken.substring(separator + 1));
+				skipToken = skipToken.substring(0, separator);
+			}
+			skip += (int) nonNegative("$skiptoken", skipToken);
+		}
+		int top = nonNegative(parameters, "$top", -1);
+		String deltaToken = first(parameters, "$deltatoken");
+		return new EntitySetQuery(entitySet, Collections.unmodifiableList(columns), orderBy, filter, skip, top,
+				bool(parameters, "$count"), deltaToken == null ? -1 : nonNegative("$deltatoken", deltaToken), trackingStart);
+	}
+
+	@Override
+	public EPMSampleModel.EntitySet getEntitySet() {
+		return entitySet;
+	}
+
+	/**
+	 * @return the entity set, followed by the selected properties if $select narrows the columns
+	 */
+	@Override
+	public String getContext() {
+		if (columns.equals(entitySet.getProperties())) {
+			return entitySet.getName();
+		}
+		return entitySet.getName() + "(" + String.join(",", columns) + ")";
+	}
+
+	@Override
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	@Override
+	public int getSkip() {
+		return skip;
+	}
+
+	@Override
+	public int getTop() {
+		return top;
+	}
+
+	@Override
+	public boolean isCountRequested() {
+		return countRequested;
+	}
+
+	public boolean isDelta() {
+		return deltaToken >= 0;
+	}
+
+	/**
+	 * @return the $deltatoken, or -1 if this is not a delta request
+	 */
+	public long getDeltaToken() {
+		return deltaToken;
+	}
+
+	/**
+	 * @return the tracking start carried by the $skiptoken of a change-tracked page, or -1
+	 */
+	public long getTrackingStart() {
+		return trackingStart;
+	}
+
+	@Override
+	public String toSql(int limit) {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append('"').append(columns.get(i)).append('"');
+		}
+		sql.append(" FROM ").append(entitySet.getTableName());
+		appendWhere(sql);
+		appendOrderBy(sql, orderBy);
+		appendLimit(sql, limit, skip);
+		return sql.toString();
+	}
+
+	@Override
+	public String toCountSql() {
+		StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM ").append(entitySet.getTableName());
+		appendWhere(sql);
+		return sql.toString();
+	}
+
+	@Override
+	public void bind(PreparedStatement statement) throws SQLException {
+		int index = 1;
+		if (filter != null) {
+			for (Object parameter : filter.getParameters()) {
+				statement.setObject(index++, parameter);
+			}
+		}
+		if (deltaToken >= 0) {
+			statement.setTimestamp(index, new Timestamp(deltaToken));
+		}
+	}
+
+	private void appendWhere(StringBuilder sql) {
+		if (filter != null) {
+			sql.append(" WHERE (").append(filter.getSql()).append(')');
+		}
+		if (deltaToken >= 0) {
+			sql.append(filter == null ? " WHERE " : " AND ").append('"').append(ChangeTracking.CHANGED_AT).append("\" >= ?");
+		}
+	}
+
+	static void appendOrderBy(StringBuilder sql, List<String> orderBy) {
+		if (orderBy.isEmpty()) {
+			return;
+		}
+		sql.append(" ORDER BY ");
+		for (int i = 0; i < orderBy.size(); i++) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append(orderBy.get(i));
+		}
+	}
+
+	static void appendLimit(StringBuilder sql, int limit, int skip) {
+		if (limit >= 0) {
+			sql.append(" LIMIT ").append(limit);
+			if (skip > 0) {
+				sql.append(" OFFSET ").append(skip);
+			}
+		} else if (skip > 0) {
+			sql.append(" LIMIT ").append(Integer.MAX_VALUE).append(" OFFSET ").append(skip);
+		}
+	}
+
+	static String first(Map<String, String[]> parameters, String name) {
+		String[] values = parameters.get(name);
+		return values == null || values.length == 0 ? null : values[0];
+	}
+
+	static boolean bool(Map<String, String[]> parameters, String name) {
+		String value = first(parameters, name);
+		if (value == null || "false".equals(value.trim())) {
+			return false;
+		}
+		if ("true".equals(value.trim())) {
+			return true;
+		}
+		throw new IllegalArgumentException("Invalid value '" + value + "' for " + name);
+	}
+
+	static int nonNegative(Map<String, String[]> parameters, String name, int defaultValue) {
+		String value = first(parameters, name);
+		if (value == null) {
+			return defaultValue;
+		}
+		long result = nonNegative(name, value);
+		if (result > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid value '" + value + "' for " + name);
+		}
+		return (int) result;
+	}
+
+	private static long nonNegative(String name, String value) {
+		try {
+			long result = Long.parseLong(value.trim());
+			if (result < 0) {
+				throw new IllegalArgumentException(name + " must not be negative");
+			}
+			return result;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value '" + value + "' for " + name);
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers collection requests on CDS entity sets straight from the JDBC cursor. Rows are written
+ * to the response as they are fetched, so the heap used per request is bounded by the fetch size
+ * and not by the size of the result. The rows of the first fetch are held back until it has
+ * succeeded, so a failing query still gets an error response; a failure after that leaves the
+ * body incomplete and is thrown, so that the connection is closed without the end of the
+ * response (see {@link StreamingQueryFilter}). Pages are capped at the configured maximum page size and
+ * continued with an {@code @odata.nextLink} carrying a $skiptoken. Counts ($count=true and
+ * /$count) are computed by HANA with COUNT(*).
+ * <p>
+ * With {@code Prefer: odata.track-changes} the last page ends with an {@code @odata.deltaLink};
+ * following it returns the entities created or updated since, and the deleted ones as
+ * $deletedEntity entries (see {@link ChangeTracking}).
+ * <p>
+ * Responses are written with odata.metadata=minimal, or without the context URL for
+ * odata.metadata=none (in $format or Accept); full metadata is left to the OData runtime.
+ */
+public class EntitySetStreamer {
+
+	private static final Logger logger = LoggerFactory.getLogger(EntitySetStreamer.class);
+
+	static final String METADATA_NONE = "none";
+	static final String METADATA_MINIMAL = "minimal";
+	static final String METADATA_FULL = "full";
+
+	private final CDSDataAccess dataAccess = CDSDataAccess.getInstance();
+	private final int fetchSize = ServiceConfig.getInt("streaming.fetchSize", 500);
+	private final int bufferSize = ServiceConfig.getInt("streaming.bufferSize", 8192);
+
+	/**
+	 * Maximum number of entities per page for the entity set; 0 disables server-driven paging.
+	 */
+	public static int getMaxPageSize(String entitySetName) {
+		return ServiceConfig.getInt("paging.maxPageSize." + entitySetName, ServiceConfig.getInt("paging.maxPageSize", 1000));
+	}
+
+	/**
+	 * Page size of a request on the entity set: the maximum page size, or the smaller
+	 * odata.maxpagesize the client prefers, which is then added to the applied preferences.
+	 *
+	 * @return the page size; 0 or less if the entity set is not paged
+	 */
+	static int getPageSize(String entitySetName, HttpServletRequest request, List<String> preferencesApplied) {
+		int pageSize = getMaxPageSize(entitySetName);
+		int preferredPageSize = getPreferredPageSize(request);
+		if (preferredPageSize > 0 && (pageSize <= 0 || preferredPageSize < pageSize)) {
+			pageSize = preferredPageSize;
+			preferencesApplied.add("odata.maxpagesize=" + preferredPageSize);
+		}
+		return pageSize;
+	}
+
+	/**
+	 * @return the number of entities written
+	 */
+	public int stream(StreamableQuery query, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, SQLException, NamingException {
+		String entitySetName = query.getEntitySet().getName();
+		List<String> preferencesApplied = new ArrayList<>(2);
+		int pageSize = getPageSize(entitySetName, request, preferencesApplied);
+
+		long trackingStart = -1;
+		if (query instanceof EntitySetQuery) {
+			EntitySetQuery entitySetQuery = (EntitySetQuery) query;
+			if (entitySetQuery.isDelta() && ChangeTracking.isExpired(entitySetQuery.getDeltaToken())) {
+				response.sendError(HttpServletResponse.SC_GONE, "The delta link has expired, read " + entitySetName + " again");
+				return 0;
+			}
+			boolean trackChanges = prefersTrackChanges(request);
+			if (entitySetQuery.getTrackingStart() >= 0) {
+				trackingStart = entitySetQuery.getTrackingStart();
+			} else if (trackChanges || entitySetQuery.isDelta()) {
+				// taken before the query runs, so nothing written while the client pages is lost
+				trackingStart = ChangeTracking.newDeltaToken();
+			}
+			if (trackChanges) {
+				preferencesApplied.add("odata.track-changes");
+			}
+		}
+		if (!preferencesApplied.isEmpty()) {
+			response.setHeader("Preference-Applied", String.join(",", preferencesApplied));
+		}
+
+		boolean metadata = !METADATA_NONE.equals(getMetadataLevel(request));
+		int limit = query.getTop();
+		boolean paged = pageSize > 0 && (limit < 0 || limit > pageSize);
+		if (paged) {
+			limit = pageSize;
+		}
+
+		try (CDSSession session = dataAccess.openSession()) {
+			long count = query.isCountRequested() ? count(session, query) : -1;
+			return stream(session, query, paged, limit, count, trackingStart, metadata, request, response);
+		}
+	}
+
+	/**
+	 * Answers /$count on an entity set.
+	 *
+	 * @return the number of entities
+	 */
+	public long streamCount(EntitySetQuery query, HttpServletResponse response) throws IOException, SQLException, NamingException {
+		long count;
+		try (CDSSession session = dataAccess.openSession()) {
+			count = count(session, query);
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setHeader("OData-Version", "4.0");
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().print(count);
+		logger.debug("Counted {} {}", count, query.getEntitySet().getName());
+		return count;
+	}
+
+	private long count(CDSSession session, StreamableQuery query) throws SQLException {
+		long start = System.nanoTime();
+		try (PreparedStatement statement = session.getConnection().prepareStatement(query.toCountSql())) {
+			query.bind(statement);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				return resultSet.getLong(1);
+			}
+		} finally {
+			ServiceMetrics.getInstance().recordPhase(ServiceMetrics.PHASE_CDS, System.nanoTime() - start);
+		}
+	}
+
+	private int stream(CDSSession session, StreamableQuery query, boolean paged, int limit, long count, long trackingStart,
+			boolean metadata, HttpServletRequest request, HttpServletResponse response) throws IOException, SQLException {
+		String entitySetName = query.getEntitySet().getName();
+		EntitySetQuery delta = query instanceof EntitySetQuery && ((EntitySetQuery) query).isDelta() ? (EntitySetQuery) query : null;
+		// one extra row tells whether there is a next page
+		try (PreparedStatement statement = session.getConnection().prepareStatement(query.toSql(paged ? limit + 1 : limit))) {
+			statement.setFetchSize(fetchSize);
+			query.bind(statement);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setHeader("OData-Version", "4.0");
+				response.setContentType("application/json;odata.metadata=" + (metadata ? METADATA_MINIMAL : METADATA_NONE));
+				response.setCharacterEncoding("UTF-8");
+				response.setBufferSize(bufferSize);
+
+				HeldBackOutputStream body = new HeldBackOutputStream(response.getOutputStream(), bufferSize);
+				JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), bufferSize));
+				json.beginObject();
+				if (metadata) {
+					json.name("@odata.context").value(getServiceRoot(request) + "$metadata#" + query.getContext()
+							+ (delta != null ? "/$delta" : ""));
+				}
+				if (count >= 0) {
+					json.name("@odata.count").value(count);
+				}
+				json.name("value").beginArray();
+
+				List<String> columns = query.getColumns();
+				// whole entities are written by the generated row writer, without boxing the values
+				RowWriter rowWriter = columns.equals(query.getEntitySet().getProperties()) ? query.getEntitySet().getRowWriter() : null;
+				int rows = 0;
+				boolean hasMore = false;
+				while (resultSet.next()) {
+					if (paged && rows == limit) {
+						hasMore = true;
+						break;
+					}
+					json.beginObject();
+					if (rowWriter != null) {
+						rowWriter.write(resultSet, json);
+					} else {
+						for (int i = 0; i < columns.size(); i++) {
+							json.name(columns.get(i)).value(resultSet.getObject(i + 1));
+						}
+					}
+					json.endObject();
+					rows++;
+					if (rows == fetchSize) {
+						// the first round trip has succeeded
+						json.flush();
+						body.release();
+					}
+				}
+				int deleted = 0;
+				if (delta != null && !hasMore) {
+					deleted = writeDeletedEntities(session, delta, json);
+				}
+				json.endArray();
+				if (hasMore) {
+					json.name("@odata.nextLink").value(getNextLink(request, query.getTop(), query.getSkip(), rows, trackingStart));
+				} else if (trackingStart >= 0) {
+					json.name("@odata.deltaLink").value(getDeltaLink(request, trackingStart));
+				}
+				json.endObject();
+				json.flush();
+				body.release();
+				logger.debug("Streamed {} {} (deleted: {}, more: {})", rows, entitySetName, deleted, hasMore);
+				return rows + deleted;
+			}
+		}
+	}
+
+	/**
+	 * Writes the entities deleted since the delta token as $deletedEntity entries.
+	 *
+	 * @return the number of entries written
+	 */
+	private int writeDeletedEntities(CDSSession session, EntitySetQuery query, JsonWriter json) throws SQLException, IOException {
+		EPMSampleModel.EntitySet entitySet = query.getEntitySet();
+		try (PreparedStatement statement = session.getConnection().prepareStatement(ChangeTracking.deletedKeysSql(entitySet))) {
+			statement.setString(1, entitySet.getName());
+			statement.setTimestamp(2, new Timestamp(query.getDeltaToken()));
+			try (ResultSet resultSet = statement.executeQuery()) {
+				int deleted = 0;
+				while (resultSet.next()) {
+					json.beginObject();
+					json.name("@odata.context").value("#" + entitySet.getName() + "/$deletedEntity");
+					json.name("id").value(entitySet.getName() + "('" + resultSet.getString(1).replace("'", "''") + "')");
+					json.name("reason").value("deleted");
+					json.endObject();
+					deleted++;
+				}
+				return deleted;
+			}
+		}
+	}
+
+	/**
+	 * @return the odata.metadata parameter of $format, or else of the Accept header, in lower case;
+	 *         minimal if neither has one
+	 */
+	static String getMetadataLevel(HttpServletRequest request) {
+		String format = request.getParameter("$format");
+		String mediaType = format != null ? format : request.getHeader("Accept");
+		int start = mediaType == null ? -1 : mediaType.indexOf("odata.metadata=");
+		if (start < 0) {
+			return METADATA_MINIMAL;
+		}
+		start += "odata.metadata=".length();
+		int end = start;
+		while (end < mediaType.length() && Character.isLetter(mediaType.charAt(end))) {
+			end++;
+		}
+		return mediaType.substring(start, end).toLowerCase();
+	}
+
+	static boolean prefersTrackChanges(HttpServletRequest request) {
+		String prefer = request.getHeader("Prefer");
+		if (prefer == null) {
+			return false;
+		}
+		for (String preference : prefer.split(",")) {
+			if ("odata.track-changes".equals(preference.trim())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static int getPreferredPageSize(HttpServletRequest request) {
+		String prefer = request.getHeader("Prefer");
+		if (prefer == null) {
+			return -1;
+		}
+		for (String preference : prefer.split(",")) {
+			String[] parts = preference.trim().split("=", 2);
+			if (parts.length == 2 && "odata.maxpagesize".equals(parts[0].trim())) {
+				try {
+					return Integer.parseInt(parts[1].trim());
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Absolute URL of the service document, ending with a slash.
+	 */
+	static String getServiceRoot(HttpServletRequest request) {
+		String url = request.getRequestURL().toString();
+		String pathInfo = request.getPathInfo();
+		// pathInfo is /<service>/<entity set>; keep /<service>/
+		int serviceEnd = pathInfo.indexOf('/', 1);
+		return url.substring(0, url.length() - pathInfo.length() + serviceEnd + 1);
+	}
+
+	/**
+	 * @param top $top of the request, -1 without one
+	 * @param skip rows skipped before the current page, by $skip and $skiptoken
+	 * @param rows rows on the current page
+	 */
+	static String getNextLink(HttpServletRequest request, int top, int skip, int rows, long trackingStart) {
+		StringBuilder link = new StringBuilder(request.getRequestURL());
+		char separator = appendParameters(link, request, "$skip", "$skiptoken", "$top");
+		if (top >= 0) {
+			link.append(separator).append("$top=").append(top - rows);
+			separator = '&';
+		}
+		link.append(separator).append("$skiptoken=").append(skip + rows);
+		if (trackingStart >= 0) {
+			link.append('~').append(trackingStart);
+		}
+		return link.toString();
+	}
+
+	/**
+	 * The delta link repeats the defining query ($filter, $select) without the paging options.
+	 */
+	private static String getDeltaLink(HttpServletRequest request, long deltaToken) {
+		StringBuilder link = new StringBuilder(request.getRequestURL());
+		char separator = appendParameters(link, request, "$skip", "$skiptoken", "$top", "$count", "$deltatoken");
+		return link.append(separator).append("$deltatoken=").append(deltaToken).toString();
+	}
+
+	/**
+	 * @return the separator for the next parameter
+	 */
+	private static char appendParameters(StringBuilder link, HttpServletRequest request, String... excluded) {
+		List<String> excludedNames = Arrays.asList(excluded);
+		char separator = '?';
+		for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+			String name = parameter.getKey();
+			if (excludedNames.contains(name)) {
+				continue;
+			}
+			for (String value : parameter.getValue()) {
+				link.append(separator).append(encode(name)).append('=').append(encode(value));
+				separator = '&';
+			}
+		}
+		return separator;
+	}
+
+	/**
+	 * Keeps what is written in memory until {@link #release()}, then writes through.
+	 */
+	private static final class HeldBackOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private ByteArrayOutputStream heldBack;
+
+		HeldBackOutputStream(OutputStream out, int initialSize) {
+			this.out = out;
+			this.heldBack = new ByteArrayOutputStream(initialSize);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (heldBack != null) {
+				heldBack.write(b, off, len);
+			} else {
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (heldBack == null) {
+				out.flush();
+			}
+		}
+
+		void release() throws IOException {
+			if (heldBack != null) {
+				heldBack.writeTo(out);
+				heldBack = null;
+			}
+		}
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("%24", "$");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package cxs.ana.odata_v4_cds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers to inspect a raw $expand value such as {@code SalesOrderLineItems($select=Quantity;$expand=Product)}.
+ */
+final class ExpandOption {
+
+	private ExpandOption() {
+	}
+
+	/**
+	 * @return true if the top level of the expand names the navigation property
+	 */
+	static boolean contains(String expand, String navigationProperty) {
+		return getNestedOptions(expand, navigationProperty) != null;
+	}
+
+	/**
+	 * @return the options in parentheses after the navigation property, an empty string if it has
+	 *         none, or null if the property is not expanded at the top level
+	 */
+	static String getNestedOptions(String expand, String navigationProperty) {
+		if (expand == null) {
+			return null;
+		}
+		for (String item : splitTopLevel(expand, ',')) {
+			item = item.trim();
+			int parenthesis = item.indexOf('(');
+			String name = parenthesis < 0 ? item : item.substring(0, parenthesis).trim();
+			if (name.equals(navigationProperty)) {
+				return parenthesis < 0 ? "" : item.substring(parenthesis + 1, item.lastIndexOf(')'));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value of a system query option inside nested expand options, e.g. $expand
+	 */
+	static String getNestedOption(String nestedOptions, String option) {
+		if (nestedOptions == null) {
+			return null;
+		}
+		for (String item : splitTopLevel(nestedOptions, ';')) {
+			int equals = item.indexOf('=');
+			if (equals > 0 && item.substring(0, equals).trim().equals(option)) {
+				return item.substring(equals + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	private static List<String> splitTopLevel(String value, char separator) {
+		List<String> parts = new ArrayList<>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (c == separator && depth == 0) {
+				parts.add(value.substring(start, i));
+				start = i + 1;
+			}
+		}
+		parts.add(value.substring(start));
+		return parts;
+	}
+}
@@ -0,0 +1,216 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.sap.cloud.sdk.service.prov.api.EntityData;
+
+/**
+ * SalesOrders.GrossAmount is the sum of the GrossAmount of the order's line items, maintained by
+ * the service instead of aggregated on every read: a {@link ChangeSet} collects the change of
+ * each written line item per order and applies the differences with one UPDATE per order, in the
+ * same transaction. A sales order is created with the total of the line items posted inline
+ * (0 without). The property is annotated Core.Computed in the service metadata, and a value the
+ * client sends anyway is ignored, so an entity read with GET can be sent back with PUT.
+ * <p>
+ * A write whose total would leave the range of the Edm type of GrossAmount fails with
+ * {@link BadRequestException}: a deep insert before anything is written, the line item writes of
+ * a change set when it commits.
+ * <p>
+ * Line items are locked while their old amount is read, so concurrent updates of the same item
+ * cannot both apply a difference against the same old value. {@link #recompute} repairs totals
+ * written outside of the service, e.g. by an import.
+ */
+public final class GrossAmountRollup {
+
+	public static final String GROSS_AMOUNT = "GrossAmount";
+
+	private static final String SALES_ORDER_ID = "SalesOrderID";
+
+	// sales orders checked with one statement
+	private static final int CHECK_CHUNK_SIZE = 500;
+
+	private GrossAmountRollup() {
+	}
+
+	/**
+	 * @return whether the property is maintained by the service rather than written by clients
+	 */
+	static boolean isDerived(EPMSampleModel.EntitySet entitySet, String property) {
+		return entitySet == EPMSampleModel.SALES_ORDERS && GROSS_AMOUNT.equals(property);
+	}
+
+	/**
+	 * @throws BadRequestException if the Edm type of SalesOrders.GrossAmount cannot hold the total
+	 */
+	static void checkRange(long grossAmount) {
+		if (isInt32() && (grossAmount < Integer.MIN_VALUE || grossAmount > Integer.MAX_VALUE)) {
+			throw new BadRequestException("The GrossAmount of the line items adds up to " + grossAmount
+					+ ", which is out of the range of Edm.Int32");
+		}
+	}
+
+	private static boolean isInt32() {
+		return "Edm.Int32".equals(EPMSampleModel.SALES_ORDERS.getType(GROSS_AMOUNT));
+	}
+
+	/**
+	 * @return the total of the line items, null amounts counting as 0
+	 */
+	public static long total(List<EntityData> lineItems) {
+		long total = 0;
+		if (lineItems != null) {
+			for (EntityData lineItem : lineItems) {
+				total += amount(lineItem.getElementValue(GROSS_AMOUNT));
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return a copy of the sales order with the given GrossAmount, for the response to a create
+	 * @throws BadRequestException if the Edm type of GrossAmount cannot hold the total
+	 */
+	public static EntityData withGrossAmount(EntityData salesOrder, long grossAmount) {
+		checkRange(grossAmount);
+		Object value = isInt32() ? Integer.valueOf((int) grossAmount) : Long.valueOf(grossAmount);
+		return EntityData.getBuilder(salesOrder).removeElement(GROSS_AMOUNT).addElement(GROSS_AMOUNT, value)
+				.buildEntityData(salesOrder.getEntityName());
+	}
+
+	static long amount(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : value == null ? 0 : Long.parseLong(value.toString());
+	}
+
+	/**
+	 * Adds the difference of a line item write to the pending differences per sales order.
+	 *
+	 * @param oldItem SalesOrderID and GrossAmount before the write, null for an insert
+	 * @param newItem SalesOrderID and GrossAmount after the write, null for a delete
+	 */
+	static void addDifference(Map<Object, Long> differences, LineItem oldItem, LineItem newItem) {
+		if (oldItem != null && oldItem.salesOrderID != null) {
+			differences.merge(oldItem.salesOrderID, -oldItem.grossAmount, Long::sum);
+		}
+		if (newItem != null && newItem.salesOrderID != null) {
+			differences.merge(newItem.salesOrderID, newItem.grossAmount, Long::sum);
+		}
+	}
+
+	/**
+	 * @return the line item with its values after an update with the given data
+	 */
+	static LineItem updated(LineItem oldItem, Map<String, Object> data) {
+		Object salesOrderID = data.containsKey(SALES_ORDER_ID) ? data.get(SALES_ORDER_ID) : oldItem.salesOrderID;
+		long grossAmount = data.containsKey(GROSS_AMOUNT) ? amount(data.get(GROSS_AMOUNT)) : oldItem.grossAmount;
+		return new LineItem(salesOrderID, grossAmount);
+	}
+
+	static LineItem inserted(Map<String, Object> data) {
+		return new LineItem(data.get(SALES_ORDER_ID), amount(data.get(GROSS_AMOUNT)));
+	}
+
+	/**
+	 * @return whether an update with the given data can change a total
+	 */
+	static boolean affectsTotal(Map<String, Object> data) {
+		return data.containsKey(SALES_ORDER_ID) || data.containsKey(GROSS_AMOUNT);
+	}
+
+	/**
+	 * Reads SalesOrderID and GrossAmount of a line item and locks it until the end of the
+	 * transaction.
+	 *
+	 * @return the line item or null if it does not exist
+	 */
+	static LineItem lock(Connection connection, Object lineItemID) throws SQLException {
+		EPMSampleModel.EntitySet lineItems = EPMSampleModel.SALES_ORDER_LINE_ITEMS;
+		try (PreparedStatement statement = connection.prepareStatement("SELECT \"" + SALES_ORDER_ID + "\", \"" + GROSS_AMOUNT
+				+ "\" FROM " + lineItems.getTableName() + " WHERE \"" + lineItems.getKey() + "\" = ? FOR UPDATE")) {
+			statement.setObject(1, lineItemID);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? new LineItem(resultSet.getObject(1), resultSet.getLong(2)) : null;
+			}
+		}
+	}
+
+	/**
+	 * Locks the sales orders whose totals are about to change and checks the new totals. Totals of
+	 * orders that do not exist are not checked, {@link #addSql()} does not change them either.
+	 *
+	 * @param differences SalesOrderID -> change of GrossAmount
+	 * @throws BadRequestException if a new total is out of the range of the Edm type of GrossAmount
+	 */
+	static void checkRange(Connection connection, Map<Object, Long> differences) throws SQLException {
+		if (!isInt32() || differences.isEmpty()) {
+			return;
+		}
+		List<Object> salesOrderIDs = new ArrayList<>(differences.keySet());
+		for (int start = 0; start < salesOrderIDs.size(); start += CHECK_CHUNK_SIZE) {
+			List<Object> chunk = salesOrderIDs.subList(start, Math.min(start + CHECK_CHUNK_SIZE, salesOrderIDs.size()));
+			StringBuilder sql = new StringBuilder("SELECT \"").append(SALES_ORDER_ID).append("\", \"").append(GROSS_AMOUNT)
+					.append("\" FROM ").append(EPMSampleModel.SALES_ORDERS.getTableName()).append(" WHERE \"").append(SALES_ORDER_ID)
+					.append("\" IN (");
+			for (int i = 0; i < chunk.size(); i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			try (PreparedStatement statement = connection.prepareStatement(sql.append(") FOR UPDATE").toString())) {
+				for (int i = 0; i < chunk.size(); i++) {
+					statement.setObject(i + 1, chunk.get(i));
+				}
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						Long difference = differences.get(resultSet.getObject(1));
+						if (difference != null) {
+							checkRange(resultSet.getLong(2) + difference);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parameters: difference, ChangedAt, SalesOrderID.
+	 */
+	static String addSql() {
+		return "UPDATE " + EPMSampleModel.SALES_ORDERS.getTableName() + " SET \"" + GROSS_AMOUNT + "\" = IFNULL(\"" + GROSS_AMOUNT
+				+ "\", 0) + ?, \"" + ChangeTracking.CHANGED_AT + "\" = ? WHERE \"" + SALES_ORDER_ID + "\" = ?";
+	}
+
+	/**
+	 * Sets every GrossAmount that differs from the total of its line items, and stamps ChangedAt
+	 * of those orders so delta links report them.
+	 *
+	 * @return the number of sales orders corrected
+	 */
+	public static int recompute(Connection connection) throws SQLException {
+		String total = "(SELECT IFNULL(SUM(i.\"" + GROSS_AMOUNT + "\"), 0) FROM " + EPMSampleModel.SALES_ORDER_LINE_ITEMS.getTableName()
+				+ " i WHERE i.\"" + SALES_ORDER_ID + "\" = o.\"" + SALES_ORDER_ID + "\")";
+		try (PreparedStatement statement = connection.prepareStatement("UPDATE " + EPMSampleModel.SALES_ORDERS.getTableName()
+				+ " o SET \"" + GROSS_AMOUNT + "\" = " + total + ", \"" + ChangeTracking.CHANGED_AT + "\" = ? WHERE o.\"" + GROSS_AMOUNT
+				+ "\" IS NULL OR o.\"" + GROSS_AMOUNT + "\" <> " + total)) {
+			statement.setTimestamp(1, ChangeTracking.now());
+			return statement.executeUpdate();
+		}
+	}
+
+	/**
+	 * The values of a line item that its sales order's total depends on.
+	 */
+	static final class LineItem {
+
+		private final Object salesOrderID;
+		private final long grossAmount;
+
+		LineItem(Object salesOrderID, long grossAmount) {
+			this.salesOrderID = salesOrderID;
+			this.grossAmount = grossAmount;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal forward-only JSON writer used by the streaming response paths. The caller is
+ * responsible for well-formed nesting; the writer only takes care of separators and escaping.
+ */
+public class JsonWriter {
+
+	private final Writer out;
+	private boolean needsSeparator;
+
+	public JsonWriter(Writer out) {
+		this.out = out;
+	}
+
+	public JsonWriter beginObject() throws IOException {
+		separator();
+		out.write('{');
+		needsSeparator = false;
+		return this;
+	}
+
+	public JsonWriter endObject() throws IOException {
+		out.write('}');
+		needsSeparator = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() throws IOException {
+		separator();
+		out.write('[');
+		needsSeparator = false;
+		return this;
+	}
+
+	public JsonWriter endArray() throws IOException {
+		out.write(']');
+		needsSeparator = true;
+		return this;
+	}
+
+	public JsonWriter name(String name) throws IOException {
+		separator();
+		string(name);
+		out.write(':');
+		needsSeparator = false;
+		return this;
+	}
+
+	public JsonWriter value(String value) throws IOException {
+		separator();
+		if (value == null) {
+			out.write("null");
+		} else {
+			string(value);
+		}
+		needsSeparator = true;
+		return this;
+	}
+
+	public JsonWriter value(Number value) throws IOException {
+		separator();
+		out.write(value == null ? "null" : value.toString());
+		needsSeparator = true;
+		return this;
+	}
+
+	public JsonWriter value(long value) throws IOException {
+		separator();
+		out.write(Long.toString(value));
+		needsSeparator = true;
+		return this;
+	}
+
+	public JsonWriter nullValue() throws IOException {
+		separator();
+		out.write("null");
+		needsSeparator = true;
+		return this;
+	}
+
+	public JsonWriter value(boolean value) throws IOException {
+		separator();
+		out.write(value ? "true" : "false");
+		needsSeparator = true;
+		return this;
+	}
+
+	/**
+	 * Writes numbers as JSON numbers and everything else as strings.
+	 */
+	public JsonWriter value(Object value) throws IOException {
+		if (value == null || value instanceof Number) {
+			return value((Number) value);
+		}
+		if (value instanceof Boolean) {
+			return value(((Boolean) value).booleanValue());
+		}
+		return value(value.toString());
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void separator() throws IOException {
+		if (needsSeparator) {
+			out.write(',');
+		}
+	}
+
+	private void string(String value) throws IOException {
+		out.write('"');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+}
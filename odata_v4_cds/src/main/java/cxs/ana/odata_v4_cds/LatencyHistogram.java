@@ -0,0 +1,54 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed buckets, written in the Prometheus histogram format.
+ */
+public class LatencyHistogram {
+
+	// upper bounds of the buckets in seconds; the last, implicit bucket is +Inf
+	private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+	private final LongAdder sumNanos = new LongAdder();
+
+	public void record(long nanos) {
+		double seconds = nanos / 1e9;
+		int bucket = 0;
+		while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		sumNanos.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the cumulative buckets, sum and count of this histogram.
+	 *
+	 * @param labels label pairs without braces, e.g. entity="SalesOrders", or an empty string
+	 */
+	public void write(PrintWriter out, String name, String labels) {
+		String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS.length; i++) {
+			cumulative += counts.get(i);
+			out.println(name + "_bucket" + prefix + "le=\"" + BUCKETS[i] + "\"} " + cumulative);
+		}
+		cumulative += counts.get(BUCKETS.length);
+		out.println(name + "_bucket" + prefix + "le=\"+Inf\"} " + cumulative);
+		String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.println(name + "_sum" + suffix + " " + sumNanos.sum() / 1e9);
+		out.println(name + "_count" + suffix + " " + cumulative);
+	}
+}
@@ -0,0 +1,116 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the XML $metadata document from memory. The OData runtime builds it from the EDMX on
+ * every request. The model only changes with a deployment, so the first successful response is
+ * kept and replayed with a weak ETag, and a matching If-None-Match is answered with 304. The tag
+ * is weak because {@link CompressionFilter} sends the same document gzip, deflate or identity
+ * encoded, and a strong tag must differ between encodings.
+ * JSON metadata ($format=json or Accept: application/json) is left to the runtime.
+ */
+public class MetadataFilter implements Filter {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetadataFilter.class);
+
+	private static final String METADATA_PATH = "/EPMSampleService/$metadata";
+
+	private final boolean enabled = ServiceConfig.getBoolean("metadata.cache.enabled", true);
+
+	private volatile CachedDocument document;
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+
+		if (!enabled || !"GET".equals(request.getMethod()) || !METADATA_PATH.equals(request.getPathInfo()) || isJson(request)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		CachedDocument cached = document;
+		if (cached == null) {
+			BufferedResponseWrapper buffered = new BufferedResponseWrapper(response);
+			chain.doFilter(req, buffered);
+			if (buffered.getStatus() != HttpServletResponse.SC_OK) {
+				buffered.writeTo(response);
+				return;
+			}
+			cached = new CachedDocument(buffered.toByteArray(), buffered.getContentType());
+			document = cached;
+			logger.debug("Cached $metadata ({} bytes)", cached.body.length);
+		}
+
+		response.setHeader("OData-Version", "4.0");
+		response.setHeader("ETag", cached.etag);
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		// If-None-Match compares weakly, with or without W/
+		if (ifNoneMatch != null && (ifNoneMatch.contains(cached.opaqueTag) || "*".equals(ifNoneMatch.trim()))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(cached.contentType);
+		response.setContentLength(cached.body.length);
+		response.getOutputStream().write(cached.body);
+	}
+
+	@Override
+	public void destroy() {
+		document = null;
+	}
+
+	private static boolean isJson(HttpServletRequest request) {
+		String format = request.getParameter("$format");
+		if (format != null) {
+			return !format.startsWith("xml") && !format.startsWith("application/xml");
+		}
+		String accept = request.getHeader("Accept");
+		return accept != null && accept.contains("json");
+	}
+
+	private static final class CachedDocument {
+
+		private final byte[] body;
+		private final String contentType;
+		private final String opaqueTag;
+		private final String etag;
+
+		private CachedDocument(byte[] body, String contentType) {
+			this.body = body;
+			this.contentType = contentType == null ? "application/xml" : contentType;
+			this.opaqueTag = "\"" + hash(body) + "\"";
+			this.etag = "W/" + opaqueTag;
+		}
+
+		private static String hash(byte[] body) {
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+				return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+
+import javax.naming.NamingException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the runtime metrics of the service in Prometheus text format under /monitoring/metrics
+ * and lets operators invalidate the product cache. /monitoring/ready is the readiness check of the
+ * platform and answers 503 until the {@link ServiceWarmup} is over. web.xml restricts everything
+ * but the readiness check to the Operator role.
+ */
+public class MonitoringServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean enabled = ServiceConfig.getBoolean("monitoring.enabled", true);
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String path = request.getPathInfo();
+		if ("/ready".equals(path)) {
+			// also served with monitoring disabled, the health check depends on it
+			boolean ready = ServiceWarmup.getInstance().isReady();
+			response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setContentType("text/plain");
+			response.getWriter().print(ready ? "ready" : "warming up");
+			return;
+		}
+		if (!enabled) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (path == null || "/".equals(path) || "/metrics".equals(path)) {
+			response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+			writeMetrics(response.getWriter());
+		} else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * POST /monitoring/caches/products/invalidate[?ProductID=...] drops one or all cached products.
+	 * POST /monitoring/rollups/grossamount/recompute corrects the GrossAmount of sales orders whose
+	 * line items were written outside of the service.
+	 */
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (enabled && "/rollups/grossamount/recompute".equals(request.getPathInfo())) {
+			recomputeGrossAmounts(response);
+			return;
+		}
+		if (!enabled || !"/caches/products/invalidate".equals(request.getPathInfo())) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String productID = request.getParameter("ProductID");
+		if (productID == null) {
+			ProductCache.getInstance().invalidateAll();
+		} else {
+			ProductCache.getInstance().invalidate(productID);
+		}
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	private void recomputeGrossAmounts(HttpServletResponse response) throws IOException {
+		int corrected;
+		try (CDSSession session = CDSDataAccess.getInstance().openSession()) {
+			corrected = GrossAmountRollup.recompute(session.getConnection());
+		} catch (SQLException | NamingException e) {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+			return;
+		}
+		response.setContentType("text/plain");
+		response.getWriter().print(corrected);
+	}
+
+	private void writeMetrics(PrintWriter out) {
+		ConnectionPoolMetrics pool = CDSDataAccess.getInstance().getPoolMetrics();
+		gauge(out, "epmsample_pool_active_connections", "Connections currently borrowed by the service", pool.getActive());
+		gauge(out, "epmsample_pool_peak_active_connections", "Highest number of connections borrowed at once", pool.getPeakActive());
+		gauge(out, "epmsample_pool_idle_connections", "Idle connections in the container pool (-1 if unknown)", pool.getIdle());
+		gauge(out, "epmsample_pool_size_connections", "Open connections in the container pool (-1 if unknown)", pool.getSize());
+		counter(out, "epmsample_pool_acquisitions_total", "Connections handed out by the pool", pool.getAcquisitions());
+		counter(out, "epmsample_pool_failures_total", "Failed connection requests", pool.getFailures());
+		gauge(out, "epmsample_pool_wait_seconds_avg", "Average time spent waiting for a connection", pool.getAverageWaitNanos() / 1e9);
+		gauge(out, "epmsample_pool_wait_seconds_max", "Longest time spent waiting for a connection", pool.getMaxWaitNanos() / 1e9);
+		counter(out, "epmsample_statement_cache_hits_total", "Prepared statements reused from the pool's statement cache", StatementCacheInterceptor.getHits());
+		counter(out, "epmsample_statement_prepares_total", "Prepared statements the statement cache had to prepare on the database", StatementCacheInterceptor.getPrepares());
+
+		ProductCacheStatistics cache = ProductCache.getInstance().getStatistics();
+		gauge(out, "epmsample_product_cache_size", "Products held in the per-key cache", cache.getSize());
+		gauge(out, "epmsample_product_cache_snapshot_size", "Products in the cached ProductSet snapshot", cache.getSnapshotSize());
+		counter(out, "epmsample_product_cache_hits_total", "Product reads served from memory", cache.getHits());
+		counter(out, "epmsample_product_cache_misses_total", "Product reads that went to the backend", cache.getMisses());
+		gauge(out, "epmsample_product_cache_hit_ratio", "Share of product reads served from memory", cache.getHitRatio());
+		counter(out, "epmsample_product_cache_evictions_total", "Products evicted because the cache was full", cache.getEvictions());
+		counter(out, "epmsample_product_cache_expirations_total", "Product reads that found an entry past its TTL", cache.getExpirations());
+		counter(out, "epmsample_product_cache_loads_total", "Successful loads from the backend", cache.getLoads());
+		counter(out, "epmsample_product_cache_load_failures_total", "Failed loads from the backend", cache.getLoadFailures());
+		counter(out, "epmsample_product_cache_stale_served_total", "Product reads answered with stale data because the backend was unavailable", cache.getStaleServed());
+
+		ProductReplicationJob replication = ProductReplicationJob.getInstance();
+		counter(out, "epmsample_product_replication_runs_total", "Pulls of changed products into the replica", replication.getRuns());
+		counter(out, "epmsample_product_replication_skipped_runs_total", "Pulls skipped because another instance was replicating", replication.getSkippedRuns());
+		counter(out, "epmsample_product_replication_failures_total", "Failed pulls of changed products", replication.getFailures());
+		counter(out, "epmsample_product_replication_upserts_total", "Products written to the replica", replication.getUpserts());
+		counter(out, "epmsample_product_replication_deletes_total", "Products deleted from the replica", replication.getDeletes());
+		gauge(out, "epmsample_product_replication_last_sync_timestamp_seconds", "Start of the last successful pull (0 if none)", replication.getLastSync() / 1e3);
+
+		counter(out, "epmsample_compressed_responses_total", "Responses sent with gzip or deflate", CompressionFilter.getCompressedResponses());
+		counter(out, "epmsample_compression_input_bytes_total", "Body bytes of the compressed responses before compression", CompressionFilter.getBytesIn());
+		counter(out, "epmsample_compression_output_bytes_total", "Body bytes of the compressed responses on the wire", CompressionFilter.getBytesOut());
+
+		BackendExecutor backend = BackendExecutor.getInstance();
+		gauge(out, "epmsample_backend_calls_active", "Backend OData V2 calls currently running", backend.getActiveCount());
+		gauge(out, "epmsample_backend_calls_queued", "Backend OData V2 calls waiting for a thread", backend.getQueueSize());
+		counter(out, "epmsample_backend_bulkhead_rejections_total", "Backend calls rejected because too many were in flight", backend.getBulkheadRejections());
+		counter(out, "epmsample_backend_retries_total", "Backend calls retried after a timeout or transport failure", backend.getRetries());
+		CircuitBreaker breaker = backend.getCircuitBreaker();
+		gauge(out, "epmsample_backend_circuit_breaker_state", "State of the backend circuit breaker (0 = closed, 1 = open, 2 = half-open)", breaker.getState().ordinal());
+		counter(out, "epmsample_backend_circuit_breaker_openings_total", "Times the backend circuit breaker opened", breaker.getOpenings());
+		counter(out, "epmsample_backend_circuit_breaker_rejections_total", "Backend calls rejected by the open circuit breaker", breaker.getRejections());
+
+		ServiceMetrics.getInstance().writeMetrics(out);
+		out.flush();
+	}
+
+	static void gauge(PrintWriter out, String name, String help, double value) {
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " gauge");
+		out.println(name + " " + value);
+	}
+
+	static void counter(PrintWriter out, String name, String help, long value) {
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " counter");
+		out.println(name + " " + value);
+	}
+}
@@ -0,0 +1,14 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * The entity tag in If-Match does not match the entity any more: another client changed or
+ * deleted it since it was read. The handlers answer with 412 Precondition Failed.
+ */
+public class PreconditionFailedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PreconditionFailedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,14 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * A conditional write cannot be checked: the If-Match header of the write is not known. The
+ * handlers answer with 428 Precondition Required rather than writing unconditionally.
+ */
+public class PreconditionRequiredException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PreconditionRequiredException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,117 @@
+package cxs.ana.odata_v4_cds;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.cloud.sdk.odatav2.connectivity.FilterExpression;
+import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
+import com.sap.cloud.sdk.odatav2.connectivity.ODataQueryBuilder;
+import com.sap.cloud.sdk.odatav2.connectivity.ODataQueryResult;
+import com.sap.cloud.sdk.odatav2.connectivity.ODataType;
+
+/**
+ * Calls to the GWSAMPLE_BASIC ProductSet of the backend OData V2 service. The calls run on the
+ * {@link BackendExecutor} pool with a timeout instead of on the request thread. The rows are mapped
+ * by the generated {@link ProductEntity#fromMap} instead of by reflection.
+ */
+public class ProductBackend {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProductBackend.class);
+
+	static final String DESTINATION_NAME = "ErpQueryEndpoint";
+	static final String SERVICE_PATH = "/sap/opu/odata/IWBEP/GWSAMPLE_BASIC";
+	static final String[] PRODUCT_PROPERTIES = { "ProductID", "Name", "Description", "Category" };
+	static final String[] REPLICATED_PROPERTIES = { "ProductID", "Name", "Description", "Category", "ChangedAt" };
+
+	private final int batchSize = Math.max(1, ServiceConfig.getInt("products.batch.size", 40));
+	private final BackendExecutor executor = BackendExecutor.getInstance();
+
+	public List<ProductEntity> fetchAll() throws ODataException {
+		return executor.execute(() -> {
+			logger.debug("==> now execute query on Products");
+			ODataQueryResult result = ODataQueryBuilder
+					.withEntity(SERVICE_PATH, "ProductSet")
+					.select(PRODUCT_PROPERTIES)
+					.build()
+					.execute(DESTINATION_NAME);
+			return ProductEntity.fromMaps(result.asListOfMaps());
+		});
+	}
+
+	public ProductEntity fetchOne(String productID) throws ODataException {
+		return executor.execute(() -> {
+			logger.debug("==> now execute read for ProductID: {}", productID);
+			ODataQueryResult result = ODataQueryBuilder
+					.withEntity(SERVICE_PATH, "ProductSet('" + productID.replace("'", "''") + "')")
+					.select(PRODUCT_PROPERTIES)
+					.build()
+					.execute(DESTINATION_NAME);
+			return ProductEntity.fromMap(result.asMap());
+		});
+	}
+
+	/**
+	 * Reads a page of products with their ChangedAt, in ChangedAt and ProductID order, for the
+	 * {@link ProductReplicationJob}. The page starts after the given position rather than at a
+	 * $skip, so products that change while the pages are read shift no other product out of them.
+	 *
+	 * @param changedAt ChangedAt of the last product already read, null to start at the first one
+	 * @param productID ProductID of the last product already read
+	 */
+	public List<Map<String, Object>> fetchChangedAfter(Calendar changedAt, String productID, int top) throws ODataException {
+		return executor.execute(() -> {
+			logger.debug("==> now execute query on Products changed after {}", changedAt == null ? null : changedAt.getTime());
+			ODataQueryBuilder query = ODataQueryBuilder
+					.withEntity(SERVICE_PATH, "ProductSet")
+					.select(REPLICATED_PROPERTIES)
+					.orderBy("ChangedAt", false)
+					.orderBy("ProductID", false)
+					.top(top);
+			if (changedAt != null) {
+				ODataType since = ODataType.of(changedAt);
+				query.filter(new FilterExpression("ChangedAt", "gt", since)
+						.or(new FilterExpression("ChangedAt", "eq", since).and(new FilterExpression("ProductID", "gt", ODataType.of(productID)))));
+			}
+			return query.build().execute(DESTINATION_NAME).asListOfMaps();
+		});
+	}
+
+	/**
+	 * Reads the given products with one $filter=ProductID eq ... or ... query per chunk of
+	 * products.batch.size IDs, which keeps the request URL within the backend's limits. The
+	 * chunks are fetched concurrently.
+	 */
+	public List<ProductEntity> fetchByIds(Collection<String> productIDs) throws ODataException {
+		List<String> ids = new ArrayList<>(productIDs);
+		List<BackendExecutor.BackendCall<List<ProductEntity>>> calls = new ArrayList<>();
+		for (int start = 0; start < ids.size(); start += batchSize) {
+			List<String> chunk = ids.subList(start, Math.min(start + batchSize, ids.size()));
+			calls.add(() -> {
+				logger.debug("==> now execute query on Products for {} IDs", chunk.size());
+				FilterExpression filter = null;
+				for (String productID : chunk) {
+					FilterExpression eq = new FilterExpression("ProductID", "eq", ODataType.of(productID));
+					filter = filter == null ? eq : filter.or(eq);
+				}
+				ODataQueryResult result = ODataQueryBuilder
+						.withEntity(SERVICE_PATH, "ProductSet")
+						.select(PRODUCT_PROPERTIES)
+						.filter(filter)
+						.build()
+						.execute(DESTINATION_NAME);
+				return ProductEntity.fromMaps(result.asListOfMaps());
+			});
+		}
+		List<ProductEntity> products = new ArrayList<>(ids.size());
+		for (List<ProductEntity> chunkProducts : executor.executeAll(calls)) {
+			products.addAll(chunkProducts);
+		}
+		return products;
+	}
+}
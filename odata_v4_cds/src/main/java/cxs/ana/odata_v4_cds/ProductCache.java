@@ -0,0 +1,435 @@
+package cxs.ana.odata_v4_cds;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
+
+/**
+ * Read-through cache for the backend product master data. Single products are kept in a
+ * size-bounded LRU map keyed by ProductID; the Products collection is served from a snapshot of
+ * the whole ProductSet. Both expire after the configured TTL and can be refreshed in the
+ * background so that requests rarely wait for the backend.
+ * <p>
+ * Expired data is kept for up to products.cache.maxStaleSeconds. While the backend is unavailable
+ * it is served instead of an error, and the response is flagged with a Warning: 110 header.
+ * <p>
+ * Concurrent misses of the same product, and concurrent loads of the snapshot, wait for one
+ * backend call instead of each calling the backend. The snapshot always holds the whole ProductSet;
+ * if that is larger than products.cache.maxSize, loading it only refreshes the products that are
+ * already cached so that it does not evict the ones requested by ID.
+ */
+public final class ProductCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProductCache.class);
+
+	private static final ProductCache instance = new ProductCache(new ProductBackend());
+
+	private static final String STALE = ProductCache.class.getName() + ".stale";
+
+	private final ProductBackend backend;
+	private final int maxSize = ServiceConfig.getInt("products.cache.maxSize", 10000);
+	private final long ttlMillis = ServiceConfig.getLong("products.cache.ttlSeconds", 600) * 1000;
+	private final long refreshSeconds = ServiceConfig.getLong("products.cache.refreshSeconds", 300);
+	private final long maxStaleMillis = ServiceConfig.getLong("products.cache.maxStaleSeconds", 86400) * 1000;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() > maxSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+	private volatile Snapshot snapshot;
+	private final ConcurrentMap<String, CompletableFuture<ProductEntity>> pending = new ConcurrentHashMap<>();
+	private final AtomicReference<CompletableFuture<List<ProductEntity>>> pendingAll = new AtomicReference<>();
+	private ScheduledExecutorService refresher;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadFailures = new AtomicLong();
+	private final AtomicLong staleServed = new AtomicLong();
+
+	ProductCache(ProductBackend backend) {
+		this.backend = backend;
+	}
+
+	public static ProductCache getInstance() {
+		return instance;
+	}
+
+	public List<ProductEntity> getAll() throws ODataException {
+		Snapshot current = snapshot;
+		if (current != null && !current.isExpired(ttlMillis)) {
+			hits.incrementAndGet();
+			return current.products;
+		}
+		misses.incrementAndGet();
+		try {
+			return loadAll();
+		} catch (BackendUnavailableException e) {
+			if (current == null || current.isExpired(maxStaleMillis)) {
+				throw e;
+			}
+			logger.warn("==> Serving the product list from a stale snapshot: {}", e.getMessage());
+			markStale();
+			return current.products;
+		}
+	}
+
+	public ProductEntity get(String productID) throws ODataException {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(productID);
+		}
+		if (entry != null && !entry.isExpired(ttlMillis)) {
+			hits.incrementAndGet();
+			return entry.product;
+		}
+		if (entry != null) {
+			expirations.incrementAndGet();
+		}
+		misses.incrementAndGet();
+		try {
+			return load(productID);
+		} catch (BackendUnavailableException e) {
+			if (entry == null || entry.isExpired(maxStaleMillis)) {
+				throw e;
+			}
+			logger.warn("==> Serving stale product {}: {}", productID, e.getMessage());
+			markStale();
+			return entry.product;
+		}
+	}
+
+	/**
+	 * Returns the requested products, loading all that are not cached with as few backend calls
+	 * as possible. Unknown IDs are missing from the result. If the backend is unavailable, the
+	 * stale entries of the missing products are returned.
+	 */
+	public Map<String, ProductEntity> getAll(Collection<String> productIDs) throws ODataException {
+		Map<String, ProductEntity> products = new HashMap<>();
+		Map<String, ProductEntity> stale = new HashMap<>();
+		Set<String> missing = new LinkedHashSet<>();
+		synchronized (entries) {
+			for (String productID : productIDs) {
+				Entry entry = entries.get(productID);
+				if (entry != null && !entry.isExpired(ttlMillis)) {
+					products.put(productID, entry.product);
+				} else if (!products.containsKey(productID)) {
+					missing.add(productID);
+					if (entry != null && !entry.isExpired(maxStaleMillis)) {
+						stale.put(productID, entry.product);
+					}
+				}
+			}
+		}
+		hits.addAndGet(products.size());
+		if (missing.isEmpty()) {
+			return products;
+		}
+		misses.addAndGet(missing.size());
+		expirations.addAndGet(stale.size());
+		// load the products no other request is loading yet, and wait for the others
+		Map<String, CompletableFuture<ProductEntity>> loading = new LinkedHashMap<>();
+		Map<String, CompletableFuture<ProductEntity>> owned = new LinkedHashMap<>();
+		for (String productID : missing) {
+			CompletableFuture<ProductEntity> future = new CompletableFuture<>();
+			CompletableFuture<ProductEntity> running = pending.putIfAbsent(productID, future);
+			loading.put(productID, running == null ? future : running);
+			if (running == null) {
+				owned.put(productID, future);
+			}
+		}
+		BackendUnavailableException unavailable = null;
+		if (!owned.isEmpty()) {
+			try {
+				load(owned);
+			} catch (BackendUnavailableException e) {
+				unavailable = e;
+			}
+		}
+		Map<String, ProductEntity> served = new HashMap<>();
+		for (Map.Entry<String, CompletableFuture<ProductEntity>> load : loading.entrySet()) {
+			try {
+				ProductEntity product = await(load.getValue());
+				if (product != null) {
+					products.put(load.getKey(), product);
+				}
+			} catch (BackendUnavailableException e) {
+				unavailable = e;
+				ProductEntity product = stale.get(load.getKey());
+				if (product != null) {
+					served.put(load.getKey(), product);
+				}
+			}
+		}
+		if (unavailable != null) {
+			if (served.isEmpty()) {
+				throw unavailable;
+			}
+			logger.warn("==> Serving {} stale products: {}", served.size(), unavailable.getMessage());
+			markStale();
+			products.putAll(served);
+		}
+		return products;
+	}
+
+	public void invalidate(String productID) {
+		synchronized (entries) {
+			entries.remove(productID);
+		}
+		snapshot = null;
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+		}
+		snapshot = null;
+	}
+
+	/**
+	 * Starts refreshing the snapshot in the background if products.cache.refreshSeconds is set.
+	 *
+	 * @param loadNow whether the first refresh runs right away or only after the refresh interval,
+	 *        e.g. because the {@link ServiceWarmup} loads the snapshot
+	 */
+	public synchronized void start(boolean loadNow) {
+		if (refreshSeconds <= 0 || refresher != null) {
+			return;
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "product-cache-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(() -> {
+			try {
+				loadAll();
+			} catch (Exception e) {
+				logger.error("Background refresh of the product cache failed: {}", e.getMessage());
+			}
+		}, loadNow ? 0 : refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	public ProductCacheStatistics getStatistics() {
+		int size;
+		synchronized (entries) {
+			size = entries.size();
+		}
+		Snapshot current = snapshot;
+		return new ProductCacheStatistics(size, current == null ? 0 : current.products.size(), hits.get(), misses.get(),
+				evictions.get(), expirations.get(), loads.get(), loadFailures.get(), staleServed.get());
+	}
+
+	private List<ProductEntity> loadAll() throws ODataException {
+		CompletableFuture<List<ProductEntity>> future = new CompletableFuture<>();
+		while (!pendingAll.compareAndSet(null, future)) {
+			CompletableFuture<List<ProductEntity>> running = pendingAll.get();
+			if (running != null) {
+				return await(running);
+			}
+		}
+		try {
+			List<ProductEntity> products;
+			try {
+				products = Collections.unmodifiableList(backend.fetchAll());
+				loads.incrementAndGet();
+			} catch (ODataException | RuntimeException e) {
+				loadFailures.incrementAndGet();
+				future.completeExceptionally(e);
+				throw e;
+			}
+			snapshot = new Snapshot(products);
+			if (products.size() <= maxSize) {
+				for (ProductEntity product : products) {
+					put(product);
+				}
+			} else {
+				refreshCached(products);
+				logger.debug("The {} products exceed products.cache.maxSize {}, refreshed the cached ones only",
+						products.size(), maxSize);
+			}
+			removeExpired();
+			logger.debug("Loaded {} products into the cache", products.size());
+			future.complete(products);
+			return products;
+		} finally {
+			pendingAll.set(null);
+		}
+	}
+
+	private ProductEntity load(String productID) throws ODataException {
+		CompletableFuture<ProductEntity> future = new CompletableFuture<>();
+		CompletableFuture<ProductEntity> running = pending.putIfAbsent(productID, future);
+		if (running != null) {
+			return await(running);
+		}
+		try {
+			ProductEntity product;
+			try {
+				product = backend.fetchOne(productID);
+				loads.incrementAndGet();
+			} catch (ODataException | RuntimeException e) {
+				loadFailures.incrementAndGet();
+				future.completeExceptionally(e);
+				throw e;
+			}
+			put(product);
+			future.complete(product);
+			return product;
+		} finally {
+			pending.remove(productID, future);
+		}
+	}
+
+	private void load(Map<String, CompletableFuture<ProductEntity>> owned) throws ODataException {
+		try {
+			List<ProductEntity> loaded;
+			try {
+				loaded = backend.fetchByIds(owned.keySet());
+				loads.incrementAndGet();
+			} catch (ODataException | RuntimeException e) {
+				loadFailures.incrementAndGet();
+				for (CompletableFuture<ProductEntity> future : owned.values()) {
+					future.completeExceptionally(e);
+				}
+				throw e;
+			}
+			for (ProductEntity product : loaded) {
+				put(product);
+				CompletableFuture<ProductEntity> future = owned.get(product.getProductID());
+				if (future != null) {
+					future.complete(product);
+				}
+			}
+			// unknown IDs
+			for (CompletableFuture<ProductEntity> future : owned.values()) {
+				future.complete(null);
+			}
+		} finally {
+			for (Map.Entry<String, CompletableFuture<ProductEntity>> load : owned.entrySet()) {
+				pending.remove(load.getKey(), load.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Waits for a load started by another request and rethrows its failure.
+	 */
+	private static <T> T await(CompletableFuture<T> future) throws ODataException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof ODataException) {
+				throw (ODataException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void put(ProductEntity product) {
+		if (product == null || product.getProductID() == null) {
+			return;
+		}
+		synchronized (entries) {
+			entries.put(product.getProductID(), new Entry(product));
+		}
+	}
+
+	private void refreshCached(List<ProductEntity> products) {
+		synchronized (entries) {
+			for (ProductEntity product : products) {
+				if (product.getProductID() != null && entries.containsKey(product.getProductID())) {
+					entries.put(product.getProductID(), new Entry(product));
+				}
+			}
+		}
+	}
+
+	private void removeExpired() {
+		synchronized (entries) {
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				if (it.next().isExpired(maxStaleMillis)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flags the response of the current request as served from stale data (RFC 7234, 5.5.1).
+	 */
+	private void markStale() {
+		staleServed.incrementAndGet();
+		RequestContext context = RequestContext.current();
+		if (context != null && context.getAttribute(STALE) == null) {
+			context.setAttribute(STALE, Boolean.TRUE);
+			context.getResponse().addHeader("Warning", "110 - \"Response is Stale\"");
+		}
+	}
+
+	private static final class Entry {
+		final ProductEntity product;
+		final long loadedAt = System.currentTimeMillis();
+
+		Entry(ProductEntity product) {
+			this.product = product;
+		}
+
+		boolean isExpired(long ttlMillis) {
+			return System.currentTimeMillis() - loadedAt > ttlMillis;
+		}
+	}
+
+	private static final class Snapshot {
+		final List<ProductEntity> products;
+		final long loadedAt = System.currentTimeMillis();
+
+		Snapshot(List<ProductEntity> products) {
+			this.products = products;
+		}
+
+		boolean isExpired(long ttlMillis) {
+			return System.currentTimeMillis() - loadedAt > ttlMillis;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package cxs.ana.odata_v4_cds;
+
+/**
+ * Snapshot of the {@link ProductCache} counters.
+ */
+public class ProductCacheStatistics {
+
+	private final int size;
+	private final int snapshotSize;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long expirations;
+	private final long loads;
+	private final long loadFailures;
+	private final long staleServed;
+
+	public ProductCacheStatistics(int size, int snapshotSize, long hits, long misses, long evictions, long expirations,
+			long loads, long loadFailures, long staleServed) {
+		this.size = size;
+		this.snapshotSize = snapshotSize;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.expirations = expirations;
+		this.loads = loads;
+		this.loadFailures = loadFailures;
+		this.staleServed = staleServed;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getSnapshotSize() {
+		return snapshotSize;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public double getHitRatio() {
+		long requests = hits + misses;
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getExpirations() {
+		return expirations;
+	}
+
+	public long getLoads() {
+		return loads;
+	}
+
+	public long getLoadFailures() {
+		return loadFailures;
+	}
+
+	public long getStaleServed() {
+		return staleServed;
+	}
+}
@@ -1,23 +1,49 @@
+// Generated by cxs.ana.odata_v4_cds.codegen.EntityGenerator from EPMSample.hdbcds and EPMSampleService.xml; do not edit.
+// Regenerate with mvn -P generate-entities generate-sources in odata_v4_cds.
 package cxs.ana.odata_v4_cds;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import com.sap.cloud.sdk.result.ElementName;
 
+/**
+ * The Product entity type, read from the backend OData V2 service. {@link #fromMap}
+ * fills it from a row of {@code ODataQueryResult.asListOfMaps()} without reflection.
+ */
 public class ProductEntity {
-	
-	@ElementName( "ProductID" )
-    private String ProductID;
-
-	@ElementName( "Name" )
-    private String Name;
-
-    @ElementName( "Description" )
-    private String Description;
- 
-    @ElementName( "Category" )
-    private String Category;
-	
-    
-    public String getProductID() {
+
+	@ElementName("ProductID")
+	private String ProductID;
+
+	@ElementName("Name")
+	private String Name;
+
+	@ElementName("Description")
+	private String Description;
+
+	@ElementName("Category")
+	private String Category;
+
+	public static ProductEntity fromMap(Map<String, Object> values) {
+		ProductEntity entity = new ProductEntity();
+		entity.ProductID = string(values.get("ProductID"));
+		entity.Name = string(values.get("Name"));
+		entity.Description = string(values.get("Description"));
+		entity.Category = string(values.get("Category"));
+		return entity;
+	}
+
+	public static List<ProductEntity> fromMaps(List<Map<String, Object>> rows) {
+		List<ProductEntity> entities = new ArrayList<>(rows.size());
+		for (Map<String, Object> row : rows) {
+			entities.add(fromMap(row));
+		}
+		return entities;
+	}
+
+	public String getProductID() {
 		return ProductID;
 	}
 
@@ -49,5 +75,7 @@ public class ProductEntity {
 		this.Category = category;
 	}
 
-	
+	private static String string(Object value) {
+		return value == null ? null : value.toString();
+	}
 }
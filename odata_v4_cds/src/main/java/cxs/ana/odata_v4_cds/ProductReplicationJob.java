@@ -0,0 +1,489 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
+
+/**
+ * Keeps the Products table in HANA in sync with the ProductSet of the backend when
+ * products.replication.enabled is set. Products are then read, filtered and joined with the line
+ * items in the database instead of being fetched from the backend per request.
+ * <p>
+ * Every products.replication.intervalSeconds the job pulls the products changed after the
+ * high-water mark, the latest backend ChangedAt in the table, in pages of
+ * products.replication.pageSize, and upserts every page with one JDBC batch in its own
+ * transaction; a run that fails resumes from the last committed page. Products without a
+ * ChangedAt are replicated, but never move the position the next page is read after. The first
+ * run, and one every products.replication.fullSyncHours, pulls the whole ProductSet instead:
+ * every page is compared with the replicated rows of its products, unchanged products are only
+ * marked as seen (SyncedAt), and the products the pull did not see are deleted afterwards, page
+ * by page, with a tombstone for delta links. The ChangedAt column is the time the replica
+ * changed, so delta links and entity tags of Products work like those of the other CDS entity
+ * sets.
+ * <p>
+ * Only one instance of the application replicates at a time: a run locks the Products row of
+ * ReplicationState with SELECT ... FOR UPDATE NOWAIT in a transaction of its own and is skipped
+ * if another instance holds it. The row also records the last full pull of any instance.
+ */
+public final class ProductReplicationJob {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProductReplicationJob.class);
+
+	private static final boolean enabled = ServiceConfig.getBoolean("products.replication.enabled", false);
+
+	private static final ProductReplicationJob instance = new ProductReplicationJob(new ProductBackend());
+
+	private static final String SOURCE_CHANGED_AT = "SourceChangedAt";
+	private static final String SYNCED_AT = "SyncedAt";
+	private static final String REPLICATION_STATE = "\"" + EPMSampleModel.NAMESPACE + ".ReplicationState\"";
+	// HANA error codes: lock held by another transaction with NOWAIT, lock wait timeout
+	private static final int RESOURCE_BUSY = 146;
+	private static final int LOCK_WAIT_TIMEOUT = 131;
+	// returned by lock() when another instance holds the lock
+	private static final Timestamp NOT_LOCKED = new Timestamp(0);
+	// the replicated properties after ProductID, in the order of the backend properties
+	private static final List<String> VALUES = Arrays.asList("Name", "Description", "Category");
+
+	private final ProductBackend backend;
+	private final long intervalSeconds = Math.max(1, ServiceConfig.getLong("products.replication.intervalSeconds", 60));
+	private final int pageSize = Math.max(1, ServiceConfig.getInt("products.replication.pageSize", 500));
+	private final long fullSyncMillis = TimeUnit.HOURS.toMillis(ServiceConfig.getLong("products.replication.fullSyncHours", 24));
+
+	private ScheduledExecutorService scheduler;
+	private volatile long lastSync;
+
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong skippedRuns = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong upserts = new AtomicLong();
+	private final AtomicLong deletes = new AtomicLong();
+
+	ProductReplicationJob(ProductBackend backend) {
+		this.backend = backend;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static ProductReplicationJob getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts pulling in the background if replication is enabled.
+	 *
+	 * @param runNow whether the first pull runs right away or only after the interval, e.g.
+	 *        because the {@link ServiceWarmup} runs it
+	 */
+	public synchronized void start(boolean runNow) {
+		if (!enabled || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "product-replication");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				run();
+			} catch (Exception e) {
+				logger.error("Replication of the products failed: {}", e.getMessage());
+			}
+		}, runNow ? 0 : intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Pulls the changed products, or all of them if a full pull is due. Does nothing while another
+	 * instance replicates.
+	 */
+	public synchronized void run() throws ODataException, SQLException, NamingException {
+		long start = System.currentTimeMillis();
+		boolean full;
+		runs.incrementAndGet();
+		try (CDSSession lockSession = CDSDataAccess.getInstance().openOwnSession();
+				CDSSession session = CDSDataAccess.getInstance().openOwnSession()) {
+			Connection lock = lockSession.getConnection();
+			lock.setAutoCommit(false);
+			try {
+				Timestamp fullSyncAt = lock(lock);
+				if (fullSyncAt == NOT_LOCKED) {
+					skippedRuns.incrementAndGet();
+					logger.debug("Skipped the replication of the products, another instance is running it");
+					return;
+				}
+				full = fullSyncAt == null || start >= fullSyncAt.getTime() + fullSyncMillis;
+				Connection connection = session.getConnection();
+				connection.setAutoCommit(false);
+				try {
+					pull(connection, full ? ChangeTracking.now() : null);
+				} catch (ODataException | SQLException | RuntimeException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(true);
+				}
+				if (full) {
+					recordFullSync(lock, new Timestamp(start));
+				}
+			} finally {
+				// releases the lock
+				lock.rollback();
+				lock.setAutoCommit(true);
+			}
+		} catch (ODataException | SQLException | NamingException | RuntimeException e) {
+			failures.incrementAndGet();
+			throw e;
+		}
+		lastSync = start;
+		logger.debug("Replicated the {} products in {} ms", full ? "whole set of" : "changed", System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Locks the replication state of Products for the transaction of the connection, creating it
+	 * on the first run.
+	 *
+	 * @return the start of the last full pull, null if there was none, or {@link #NOT_LOCKED}
+	 */
+	private static Timestamp lock(Connection connection) throws SQLException {
+		String entitySet = EPMSampleModel.PRODUCTS.getName();
+		try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + REPLICATION_STATE
+				+ " (\"EntitySet\") SELECT ? FROM DUMMY WHERE NOT EXISTS (SELECT 1 FROM " + REPLICATION_STATE + " WHERE \"EntitySet\" = ?)")) {
+			insert.setString(1, entitySet);
+			insert.setString(2, entitySet);
+			if (insert.executeUpdate() > 0) {
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			// another instance created the row at the same time
+			connection.rollback();
+		}
+		try (PreparedStatement select = connection.prepareStatement("SELECT \"FullSyncAt\" FROM " + REPLICATION_STATE
+				+ " WHERE \"EntitySet\" = ? FOR UPDATE NOWAIT")) {
+			select.setString(1, entitySet);
+			try (ResultSet resultSet = select.executeQuery()) {
+				return resultSet.next() ? resultSet.getTimestamp(1) : null;
+			}
+		} catch (SQLException e) {
+			if (e.getErrorCode() == RESOURCE_BUSY || e.getErrorCode() == LOCK_WAIT_TIMEOUT) {
+				return NOT_LOCKED;
+			}
+			throw e;
+		}
+	}
+
+	private static void recordFullSync(Connection connection, Timestamp start) throws SQLException {
+		try (PreparedStatement update = connection.prepareStatement("UPDATE " + REPLICATION_STATE
+				+ " SET \"FullSyncAt\" = ? WHERE \"EntitySet\" = ?")) {
+			update.setTimestamp(1, start);
+			update.setString(2, EPMSampleModel.PRODUCTS.getName());
+			update.executeUpdate();
+		}
+		connection.commit();
+	}
+
+	/**
+	 * @param syncedAt marks the products seen by a full pull, null for an incremental pull
+	 */
+	private void pull(Connection connection, Timestamp syncedAt) throws ODataException, SQLException {
+		boolean full = syncedAt != null;
+		Object[] highWaterMark = full ? null : readHighWaterMark(connection);
+		Timestamp changedAt = highWaterMark == null ? null : (Timestamp) highWaterMark[0];
+		String productID = highWaterMark == null ? null : (String) highWaterMark[1];
+		List<Map<String, Object>> page;
+		do {
+			page = backend.fetchChangedAfter(toCalendar(changedAt), productID, pageSize);
+			upsert(connection, page, syncedAt);
+			connection.commit();
+			// products without ChangedAt are replicated, but cannot be ordered after the position,
+			// which only ever moves forward; a position of null would start over at the first page
+			Map<String, Object> last = getLastChanged(page);
+			if (last == null) {
+				if (page.size() == pageSize) {
+					logger.warn("==> None of {} products after ChangedAt {} has a ChangedAt, the pull stops there", page.size(), changedAt);
+					// the products after this page were not seen and must not be deleted
+					return;
+				}
+				break;
+			}
+			changedAt = toTimestamp(last.get("ChangedAt"));
+			productID = String.valueOf(last.get("ProductID"));
+		} while (page.size() == pageSize);
+		if (full) {
+			List<String> unseen;
+			do {
+				unseen = readNotSyncedSince(connection, syncedAt, pageSize);
+				if (!unseen.isEmpty()) {
+					delete(connection, unseen);
+					connection.commit();
+				}
+			} while (unseen.size() == pageSize);
+		}
+	}
+
+	/**
+	 * @return the last product of the page that has a ChangedAt, or null if none has
+	 */
+	private static Map<String, Object> getLastChanged(List<Map<String, Object>> page) {
+		for (int i = page.size() - 1; i >= 0; i--) {
+			if (page.get(i).get("ChangedAt") != null) {
+				return page.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param syncedAt for a full pull: the products that are unchanged in the backend are skipped
+	 *        and only marked as seen
+	 */
+	private void upsert(Connection connection, List<Map<String, Object>> products, Timestamp syncedAt) throws SQLException {
+		if (products.isEmpty()) {
+			return;
+		}
+		// ProductID -> Name, Description, Category, SourceChangedAt of the replica, to skip unchanged products
+		Map<String, Object[]> replica = syncedAt == null ? null : readReplica(connection, products);
+		Timestamp now = ChangeTracking.now();
+		int rows = 0;
+		int unchanged = 0;
+		try (PreparedStatement statement = connection.prepareStatement(upsertSql(syncedAt != null));
+				PreparedStatement seen = syncedAt == null ? null : connection.prepareStatement(syncedSql())) {
+			for (Map<String, Object> product : products) {
+				String productID = String.valueOf(product.get("ProductID"));
+				Object[] values = new Object[VALUES.size() + 1];
+				for (int i = 0; i < VALUES.size(); i++) {
+					values[i] = product.get(VALUES.get(i));
+				}
+				values[VALUES.size()] = toTimestamp(product.get("ChangedAt"));
+				Object[] replicated = replica == null ? null : replica.get(productID);
+				if (replicated != null && Arrays.equals(replicated, values)) {
+					seen.setTimestamp(1, syncedAt);
+					seen.setString(2, productID);
+					seen.addBatch();
+					unchanged++;
+					continue;
+				}
+				statement.setString(1, productID);
+				for (int i = 0; i < values.length; i++) {
+					statement.setObject(i + 2, values[i]);
+				}
+				statement.setTimestamp(values.length + 2, now);
+				if (syncedAt != null) {
+					statement.setTimestamp(values.length + 3, syncedAt);
+				}
+				statement.addBatch();
+				rows++;
+			}
+			if (rows > 0) {
+				statement.executeBatch();
+			}
+			if (unchanged > 0) {
+				seen.executeBatch();
+			}
+		}
+		upserts.addAndGet(rows);
+	}
+
+	private void delete(Connection connection, Iterable<String> productIDs) throws SQLException {
+		EPMSampleModel.EntitySet products = EPMSampleModel.PRODUCTS;
+		Timestamp now = ChangeTracking.now();
+		int rows = 0;
+		try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + products.getTableName() + " WHERE \""
+				+ products.getKey() + "\" = ?");
+				PreparedStatement tombstone = connection.prepareStatement(ChangeTracking.insertTombstoneSql())) {
+			for (String productID : productIDs) {
+				delete.setString(1, productID);
+				delete.addBatch();
+				List<Object> values = ChangeTracking.tombstone(products, productID, now);
+				for (int i = 0; i < values.size(); i++) {
+					tombstone.setObject(i + 1, values.get(i));
+				}
+				tombstone.addBatch();
+				rows++;
+			}
+			delete.executeBatch();
+			tombstone.executeBatch();
+		}
+		deletes.addAndGet(rows);
+		logger.info("Deleted {} products that are no longer in the backend", rows);
+	}
+
+	/**
+	 * @param full whether SyncedAt is set too; an incremental pull leaves it as it is
+	 */
+	private static String upsertSql(boolean full) {
+		StringBuilder sql = new StringBuilder("UPSERT ").append(EPMSampleModel.PRODUCTS.getTableName()).append(" (\"ProductID\"");
+		for (String property : VALUES) {
+			sql.append(", \"").append(property).append('"');
+		}
+		sql.append(", \"").append(SOURCE_CHANGED_AT).append("\", \"").append(ChangeTracking.CHANGED_AT).append('"');
+		if (full) {
+			sql.append(", \"").append(SYNCED_AT).append('"');
+		}
+		sql.append(") VALUES (?");
+		for (int i = 0; i < VALUES.size() + (full ? 3 : 2); i++) {
+			sql.append(", ?");
+		}
+		return sql.append(") WITH PRIMARY KEY").toString();
+	}
+
+	private static String syncedSql() {
+		return "UPDATE " + EPMSampleModel.PRODUCTS.getTableName() + " SET \"" + SYNCED_AT + "\" = ? WHERE \"ProductID\" = ?";
+	}
+
+	/**
+	 * @return the replicated values of the products of a page pulled from the backend
+	 */
+	private static Map<String, Object[]> readReplica(Connection connection, List<Map<String, Object>> products) throws SQLException {
+		Map<String, Object[]> replica = new HashMap<>(products.size() * 2);
+		StringBuilder sql = new StringBuilder("SELECT \"ProductID\"");
+		for (String property : VALUES) {
+			sql.append(", \"").append(property).append('"');
+		}
+		sql.append(", \"").append(SOURCE_CHANGED_AT).append("\" FROM ").append(EPMSampleModel.PRODUCTS.getTableName())
+				.append(" WHERE \"ProductID\" IN (");
+		for (int i = 0; i < products.size(); i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(')');
+		try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+			for (int i = 0; i < products.size(); i++) {
+				statement.setString(i + 1, String.valueOf(products.get(i).get("ProductID")));
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					Object[] values = new Object[VALUES.size() + 1];
+					for (int i = 0; i < VALUES.size(); i++) {
+						values[i] = resultSet.getString(i + 2);
+					}
+					values[VALUES.size()] = resultSet.getTimestamp(VALUES.size() + 2);
+					replica.put(resultSet.getString(1), values);
+				}
+			}
+		}
+		return replica;
+	}
+
+	/**
+	 * @return up to limit products the full pull that started at syncedAt did not see in the backend
+	 */
+	private static List<String> readNotSyncedSince(Connection connection, Timestamp syncedAt, int limit) throws SQLException {
+		List<String> productIDs = new ArrayList<>();
+		try (PreparedStatement statement = connection.prepareStatement("SELECT \"ProductID\" FROM " + EPMSampleModel.PRODUCTS.getTableName()
+				+ " WHERE \"" + SYNCED_AT + "\" IS NULL OR \"" + SYNCED_AT + "\" < ? ORDER BY \"ProductID\" LIMIT " + limit)) {
+			statement.setTimestamp(1, syncedAt);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					productIDs.add(resultSet.getString(1));
+				}
+			}
+		}
+		return productIDs;
+	}
+
+	/**
+	 * @return SourceChangedAt and ProductID of the latest replicated product, or null if there is none
+	 */
+	private static Object[] readHighWaterMark(Connection connection) throws SQLException {
+		String table = EPMSampleModel.PRODUCTS.getTableName();
+		try (PreparedStatement statement = connection.prepareStatement("SELECT \"" + SOURCE_CHANGED_AT + "\", \"ProductID\" FROM "
+				+ table + " WHERE \"" + SOURCE_CHANGED_AT + "\" IS NOT NULL ORDER BY \"" + SOURCE_CHANGED_AT + "\" DESC, \"ProductID\" DESC LIMIT 1");
+				ResultSet resultSet = statement.executeQuery()) {
+			return resultSet.next() ? new Object[] { resultSet.getTimestamp(1), resultSet.getString(2) } : null;
+		}
+	}
+
+	/**
+	 * The backend returns Edm.DateTime values as Calendar, Date or /Date(millis)/ depending on the
+	 * SDK version.
+	 */
+	static Timestamp toTimestamp(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Calendar) {
+			return new Timestamp(((Calendar) value).getTimeInMillis());
+		}
+		if (value instanceof Date) {
+			return new Timestamp(((Date) value).getTime());
+		}
+		if (value instanceof Number) {
+			return new Timestamp(((Number) value).longValue());
+		}
+		String text = value.toString();
+		if (text.startsWith("/Date(") && text.endsWith(")/")) {
+			String millis = text.substring(6, text.length() - 2);
+			int offset = Math.max(millis.indexOf('+', 1), millis.indexOf('-', 1));
+			return new Timestamp(Long.parseLong(offset > 0 ? millis.substring(0, offset) : millis));
+		}
+		throw new IllegalArgumentException("Unsupported ChangedAt value " + text);
+	}
+
+	private static Calendar toCalendar(Timestamp timestamp) {
+		if (timestamp == null) {
+			return null;
+		}
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(timestamp.getTime());
+		return calendar;
+	}
+
+	public long getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * @return runs skipped because another instance was replicating
+	 */
+	public long getSkippedRuns() {
+		return skippedRuns.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getUpserts() {
+		return upserts.get();
+	}
+
+	public long getDeletes() {
+		return deletes.get();
+	}
+
+	/**
+	 * @return start of the last successful run in epoch milliseconds, 0 if there was none
+	 */
+	public long getLastSync() {
+		return lastSync;
+	}
+}
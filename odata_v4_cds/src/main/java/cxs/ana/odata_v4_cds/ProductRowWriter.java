@@ -0,0 +1,22 @@
+// Generated by cxs.ana.odata_v4_cds.codegen.EntityGenerator from EPMSample.hdbcds and EPMSampleService.xml; do not edit.
+// Regenerate with mvn -P generate-entities generate-sources in odata_v4_cds.
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Writes a row of the CDS entity Products as the properties of a Product. The
+ * columns are read by position, in the order of {@link EPMSampleModel.EntitySet#getProperties()}.
+ */
+public final class ProductRowWriter implements RowWriter {
+
+	@Override
+	public void write(ResultSet resultSet, JsonWriter json) throws SQLException, IOException {
+		json.name("ProductID").value(resultSet.getString(1));
+		json.name("Name").value(resultSet.getString(2));
+		json.name("Description").value(resultSet.getString(3));
+		json.name("Category").value(resultSet.getString(4));
+	}
+}
@@ -0,0 +1,237 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.sap.cloud.sdk.service.prov.api.EntityData;
+import com.sap.cloud.sdk.service.prov.api.filter.Expression;
+import com.sap.cloud.sdk.service.prov.api.request.OrderByExpression;
+import com.sap.cloud.sdk.service.prov.api.request.QueryRequest;
+
+/**
+ * Translates the OData system query options of a {@link QueryRequest} ($filter, $orderby, $top,
+ * $skip, $select) into parameterized SQL on the table of a CDS entity set, so that HANA only
+ * returns the requested page. $filter is translated by {@link SqlFilter}, like on the streaming
+ * path; its values become bind parameters, so the SQL only differs with the shape of the query
+ * options and its statement is reused from the statement cache of the pool. Properties may go through
+ * a to-one navigation the entity set knows (Product/Category), which HANA resolves with a join.
+ * Filters the translator does not understand raise an {@link UnsupportedOperationException}
+ * rather than being silently dropped.
+ * <p>
+ * Server-driven paging is left to {@link EntitySetStreamer}, which serves the collection
+ * requests it supports; the runtime offers the handlers no way to add an @odata.nextLink, so the
+ * requests that reach them ($expand, odata.metadata=full, ...) are answered whole, limited only
+ * by $top. A $skiptoken of a next link is still honored as an offset.
+ */
+public final class QueryOptionsTranslator {
+
+	private QueryOptionsTranslator() {
+	}
+
+	/**
+	 * @param parentColumn column of the parent key of a navigation, ANDed with $filter; may be null
+	 */
+	public static SqlQuery toSql(QueryRequest queryRequest, EPMSampleModel.EntitySet entitySet, String parentColumn, Object parentKey) {
+		List<String> columns = getSelectedColumns(queryRequest);
+		if (columns.isEmpty()) {
+			columns = entitySet.getProperties();
+		}
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append(column(entitySet, columns.get(i)));
+		}
+		sql.append(" FROM ").append(entitySet.getTableName());
+
+		RequestContext context = RequestContext.current();
+		HttpServletRequest request = context != null && context.isRequestedCollection(entitySet.getName()) ? context.getRequest() : null;
+
+		List<Object> parameters = new ArrayList<>();
+		int whereStart = sql.length();
+		String where = " WHERE ";
+		if (parentColumn != null) {
+			sql.append(where).append(column(entitySet, parentColumn)).append(" = ?");
+			parameters.add(parentKey);
+			where = " AND ";
+		}
+		SqlFilter filter = getFilter(queryRequest, entitySet, request);
+		if (filter != null) {
+			sql.append(where).append('(').append(filter.getSql()).append(')');
+			parameters.addAll(filter.getParameters());
+		}
+		int whereEnd = sql.length();
+
+		// Always end with the key so that paging with $skip/$top is deterministic
+		Set<String> orderedColumns = new LinkedHashSet<>();
+		List<String> orderBy = new ArrayList<>();
+		List<OrderByExpression> orderByProperties = queryRequest.getOrderByProperties();
+		if (orderByProperties != null) {
+			for (OrderByExpression expression : orderByProperties) {
+				if (orderedColumns.add(expression.getOrderByProperty())) {
+					orderBy.add(column(entitySet, expression.getOrderByProperty()) + (expression.isDescending() ? " DESC" : ""));
+				}
+			}
+		}
+		for (String key : queryRequest.getEntityMetadata().getKeyNames()) {
+			if (orderedColumns.add(key)) {
+				orderBy.add(column(entitySet, key));
+			}
+		}
+		EntitySetQuery.appendOrderBy(sql, orderBy);
+
+		int top = getTop(queryRequest, request);
+		int skip = queryRequest.getSkipOptionValue();
+		String countSql = null;
+		if (request != null) {
+			skip += getSkipToken(request);
+			// the runtime would count the returned rows only
+			if (queryRequest.getCountOption() && (top >= 0 || skip > 0)) {
+				countSql = "SELECT COUNT(*) FROM " + entitySet.getTableName() + sql.substring(whereStart, whereEnd);
+			}
+		}
+		EntitySetQuery.appendLimit(sql, top, skip);
+		return new SqlQuery(sql.toString(), countSql, parameters, columns, queryRequest.getEntityMetadata().getKeyNames(),
+				entitySet.getName());
+	}
+
+	/**
+	 * The raw $filter of the URL is used for the collection the URL addresses, so the handlers
+	 * support the same functions as the streaming path; the runtime's expression tree is used
+	 * for $expand and the parts of a $batch request.
+	 */
+	private static SqlFilter getFilter(QueryRequest queryRequest, EPMSampleModel.EntitySet entitySet, HttpServletRequest request) {
+		String rawFilter = request == null ? null : request.getParameter("$filter");
+		Expression expression = queryRequest.getQueryExpression();
+		try {
+			if (rawFilter != null) {
+				return SqlFilter.parse(rawFilter, entitySet);
+			}
+			return expression == null ? null : SqlFilter.from(expression, entitySet);
+		} catch (IllegalArgumentException e) {
+			// the runtime has validated the filter against the model already, so it is just outside the supported subset
+			throw new UnsupportedOperationException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return $top, which may be 0, or -1 if the client did not restrict the result. The value of
+	 *         the runtime does not tell $top=0 from a missing $top, so 0 is only taken from the
+	 *         URL of the collection it addresses; for $expand and $batch parts only a positive
+	 *         $top limits the result.
+	 */
+	private static int getTop(QueryRequest queryRequest, HttpServletRequest request) {
+		int top = queryRequest.getTopOptionValue();
+		if (top > 0) {
+			return top;
+		}
+		return request != null && request.getParameter("$top") != null ? 0 : -1;
+	}
+
+	/**
+	 * @return the offset in the $skiptoken of a next link, 0 without one
+	 */
+	private static int getSkipToken(HttpServletRequest request) {
+		String skipToken = request.getParameter("$skiptoken");
+		if (skipToken == null) {
+			return 0;
+		}
+		int separator = skipToken.indexOf('~');
+		try {
+			return Integer.parseInt(separator < 0 ? skipToken : skipToken.substring(0, separator));
+		} catch (NumberFormatException e) {
+			throw new UnsupportedOperationException("Invalid $skiptoken " + skipToken);
+		}
+	}
+
+	/**
+	 * Columns of $select plus the keys, or an empty list when all columns are requested.
+	 */
+	static List<String> getSelectedColumns(QueryRequest queryRequest) {
+		List<String> select = queryRequest.getSelectProperties();
+		if (select == null || select.isEmpty() || select.contains("*")) {
+			return new ArrayList<>();
+		}
+		Set<String> columns = new LinkedHashSet<>(queryRequest.getEntityMetadata().getKeyNames());
+		List<String> elementNames = queryRequest.getEntityMetadata().getElementNames();
+		for (String property : select) {
+			// navigation properties in $select are resolved by their own handlers
+			if (elementNames.contains(property)) {
+				columns.add(property);
+			}
+		}
+		return new ArrayList<>(columns);
+	}
+
+
+	private static String column(EPMSampleModel.EntitySet entitySet, String property) {
+		String expression = entitySet.getExpression(property);
+		if (expression == null) {
+			throw new UnsupportedOperationException("Unknown property " + property + " of " + entitySet.getName());
+		}
+		return expression;
+	}
+
+	/**
+	 * A query translated by {@link #toSql}: the SQL, its parameter values and the columns it
+	 * selects, in order.
+	 */
+	public static final class SqlQuery {
+
+		private final String sql;
+		private final String countSql;
+		private final List<Object> parameters;
+		private final List<String> columns;
+		private final List<String> keys;
+		private final String entityName;
+
+		SqlQuery(String sql, String countSql, List<Object> parameters, List<String> columns, List<String> keys, String entityName) {
+			this.sql = sql;
+			this.countSql = countSql;
+			this.parameters = Collections.unmodifiableList(parameters);
+			this.columns = columns;
+			this.keys = keys;
+			this.entityName = entityName;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @return the SQL counting all rows for $count=true, ignoring $top and $skip, or null if
+		 *         the runtime can count the result
+		 */
+		public String getCountSql() {
+			return countSql;
+		}
+
+		public void bind(PreparedStatement statement) throws SQLException {
+			for (int i = 0; i < parameters.size(); i++) {
+				statement.setObject(i + 1, parameters.get(i));
+			}
+		}
+
+		/**
+		 * @return the selected columns of the current row as an entity
+		 */
+		public EntityData toEntityData(ResultSet resultSet) throws SQLException {
+			Map<String, Object> values = new LinkedHashMap<>();
+			for (int i = 0; i < columns.size(); i++) {
+				values.put(columns.get(i), resultSet.getObject(i + 1));
+			}
+			return EntityData.createFromMap(values, keys, entityName);
+		}
+	}
+}
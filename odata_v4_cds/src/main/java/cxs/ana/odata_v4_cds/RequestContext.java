@@ -0,0 +1,94 @@
+package cxs.ana.odata_v4_cds;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * State shared by the handler calls the OData runtime makes while processing one HTTP request,
+ * e.g. for every entity of an $expand. Bound to the request thread by {@link RequestContextFilter}.
+ */
+public final class RequestContext {
+
+	private static final ThreadLocal<RequestContext> current = new ThreadLocal<>();
+
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
+	private final Map<String, Object> attributes = new HashMap<>();
+	private long handlerNanos;
+
+	private RequestContext(HttpServletRequest request, HttpServletResponse response) {
+		this.request = request;
+		this.response = response;
+	}
+
+	static RequestContext begin(HttpServletRequest request, HttpServletResponse response) {
+		RequestContext context = new RequestContext(request, response);
+		current.set(context);
+		return context;
+	}
+
+	static void end() {
+		current.remove();
+	}
+
+	/**
+	 * @return the context of the request being processed on this thread, or null outside of a request
+	 */
+	public static RequestContext current() {
+		return current.get();
+	}
+
+	public HttpServletRequest getRequest() {
+		return request;
+	}
+
+	public HttpServletResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return the raw value of a URL query option such as $expand, or null
+	 */
+	public String getQueryOption(String name) {
+		return request.getParameter(name);
+	}
+
+	/**
+	 * @return true if the top level of $expand names the navigation property
+	 */
+	public boolean isExpanded(String navigationProperty) {
+		return ExpandOption.contains(getQueryOption("$expand"), navigationProperty);
+	}
+
+	/**
+	 * @return true if the request URL addresses the collection of the entity set, directly or by
+	 *         navigation; false for $batch, $count and collections read for $expand
+	 */
+	public boolean isRequestedCollection(String entitySetName) {
+		String pathInfo = request.getPathInfo();
+		return "GET".equals(request.getMethod()) && pathInfo != null && pathInfo.endsWith("/" + entitySetName);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(String name) {
+		return (T) attributes.get(name);
+	}
+
+	public void setAttribute(String name, Object value) {
+		attributes.put(name, value);
+	}
+
+	void addHandlerNanos(long nanos) {
+		handlerNanos += nanos;
+	}
+
+	/**
+	 * @return the time spent in the EPMSampleService handlers for this request so far
+	 */
+	long getHandlerNanos() {
+		return handlerNanos;
+	}
+}
@@ -0,0 +1,39 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Binds a {@link RequestContext} to the thread for the duration of each OData request and records
+ * the request in the {@link ServiceMetrics}.
+ */
+public class RequestContextFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		long start = System.nanoTime();
+		RequestContext context = RequestContext.begin((HttpServletRequest) request, (HttpServletResponse) response);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			RequestContext.end();
+			ServiceMetrics.getInstance().recordRequest(System.nanoTime() - start, context.getHandlerNanos());
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
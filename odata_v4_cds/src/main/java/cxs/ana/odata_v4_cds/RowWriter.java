@@ -0,0 +1,15 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Writes the current row of a result set as the properties of a JSON object, with the typed
+ * getter of each column and without boxing or an intermediate map. The implementations are
+ * generated from EPMSample.hdbcds and edmx/EPMSampleService.xml, see ../odata_v4_cds_codegen.
+ */
+public interface RowWriter {
+
+	void write(ResultSet resultSet, JsonWriter json) throws SQLException, IOException;
+}
@@ -0,0 +1,39 @@
+// Generated by cxs.ana.odata_v4_cds.codegen.EntityGenerator from EPMSample.hdbcds and EPMSampleService.xml; do not edit.
+// Regenerate with mvn -P generate-entities generate-sources in odata_v4_cds.
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Writes a row of the CDS entity SalesOrderLineItems as the properties of a SalesOrderLineItem. The
+ * columns are read by position, in the order of {@link EPMSampleModel.EntitySet#getProperties()}.
+ */
+public final class SalesOrderLineItemRowWriter implements RowWriter {
+
+	@Override
+	public void write(ResultSet resultSet, JsonWriter json) throws SQLException, IOException {
+		json.name("SOLineItemID").value(resultSet.getString(1));
+		json.name("SalesOrderID").value(resultSet.getString(2));
+		int itemPosition = resultSet.getInt(3);
+		if (resultSet.wasNull()) {
+			json.name("ItemPosition").nullValue();
+		} else {
+			json.name("ItemPosition").value(itemPosition);
+		}
+		json.name("ProductID").value(resultSet.getString(4));
+		int quantity = resultSet.getInt(5);
+		if (resultSet.wasNull()) {
+			json.name("Quantity").nullValue();
+		} else {
+			json.name("Quantity").value(quantity);
+		}
+		int grossAmount = resultSet.getInt(6);
+		if (resultSet.wasNull()) {
+			json.name("GrossAmount").nullValue();
+		} else {
+			json.name("GrossAmount").value(grossAmount);
+		}
+	}
+}
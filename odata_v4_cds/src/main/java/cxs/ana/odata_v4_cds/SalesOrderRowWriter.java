@@ -0,0 +1,27 @@
+// Generated by cxs.ana.odata_v4_cds.codegen.EntityGenerator from EPMSample.hdbcds and EPMSampleService.xml; do not edit.
+// Regenerate with mvn -P generate-entities generate-sources in odata_v4_cds.
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Writes a row of the CDS entity SalesOrders as the properties of a SalesOrder. The
+ * columns are read by position, in the order of {@link EPMSampleModel.EntitySet#getProperties()}.
+ */
+public final class SalesOrderRowWriter implements RowWriter {
+
+	@Override
+	public void write(ResultSet resultSet, JsonWriter json) throws SQLException, IOException {
+		json.name("SalesOrderID").value(resultSet.getString(1));
+		json.name("Note").value(resultSet.getString(2));
+		json.name("CustomerName").value(resultSet.getString(3));
+		int grossAmount = resultSet.getInt(4);
+		if (resultSet.wasNull()) {
+			json.name("GrossAmount").nullValue();
+		} else {
+			json.name("GrossAmount").value(grossAmount);
+		}
+	}
+}
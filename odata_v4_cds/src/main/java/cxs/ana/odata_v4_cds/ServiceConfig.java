@@ -0,0 +1,80 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tuning knobs of the EPMSampleService, read from epmsample.properties on the classpath.
+ * Every key can be overridden with a system property of the same name or with an environment
+ * variable in upper case with dots replaced by underscores (e.g. MONITORING_ENABLED), so
+ * values can be changed per space in manifest.yml without rebuilding the WAR.
+ */
+public final class ServiceConfig {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServiceConfig.class);
+
+	private static final String RESOURCE_NAME = "epmsample.properties";
+
+	private static final Properties properties = load();
+
+	private ServiceConfig() {
+	}
+
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = System.getenv(key.toUpperCase().replace('.', '_').replace('-', '_'));
+		}
+		if (value == null) {
+			value = properties.getProperty(key);
+		}
+		return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring invalid integer value '{}' for {}", value, key);
+			return defaultValue;
+		}
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring invalid long value '{}' for {}", value, key);
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	private static Properties load() {
+		Properties props = new Properties();
+		try (InputStream in = ServiceConfig.class.getClassLoader().getResourceAsStream(RESOURCE_NAME)) {
+			if (in != null) {
+				props.load(in);
+			}
+		} catch (IOException e) {
+			logger.error("Unable to read {}: {}", RESOURCE_NAME, e.getMessage());
+		}
+		return props;
+	}
+}
@@ -0,0 +1,203 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sap.cloud.sdk.hana.connectivity.cds.CDSException;
+import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
+
+/**
+ * Registry of the request metrics of the service: latency, rows, backend calls and errors per
+ * entity and operation of the EPMSampleService handlers, plus the time spent in the phases of a
+ * request (connection acquisition, CDS execution, backend round-trip and the OData runtime
+ * including serialization). Written by {@link MonitoringServlet}.
+ */
+public final class ServiceMetrics {
+
+	private static final ServiceMetrics instance = new ServiceMetrics();
+
+	private static final ThreadLocal<Operation> currentOperation = new ThreadLocal<>();
+
+	public static final String PHASE_CONNECTION = "connection";
+	public static final String PHASE_CDS = "cds";
+	public static final String PHASE_BACKEND = "backend";
+	public static final String PHASE_RUNTIME = "runtime";
+
+	// keyed by the Prometheus labels of the operation
+	private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LongAdder> backendCalls = new ConcurrentHashMap<>();
+	private final LatencyHistogram requests = new LatencyHistogram();
+
+	private ServiceMetrics() {
+	}
+
+	public static ServiceMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts timing a handler call; close the returned operation when the handler returns.
+	 *
+	 * @param entity the entity set, prefixed with the source entity set for navigations
+	 * @param operation query, read, create, update or delete
+	 */
+	public Operation start(String entity, String operation) {
+		Operation started = new Operation("entity=\"" + entity + "\",operation=\"" + operation + "\"");
+		currentOperation.set(started);
+		return started;
+	}
+
+	public void recordPhase(String phase, long nanos) {
+		phases.computeIfAbsent(phase, name -> new LatencyHistogram()).record(nanos);
+	}
+
+	/**
+	 * Counts one call to the backend OData V2 service and attributes it to the handler running on
+	 * this thread, if any.
+	 */
+	public void recordBackendCall(String outcome, long nanos) {
+		backendCalls.computeIfAbsent(outcome, name -> new LongAdder()).increment();
+		recordPhase(PHASE_BACKEND, nanos);
+	}
+
+	public void countBackendCalls(int calls) {
+		Operation operation = currentOperation.get();
+		if (operation != null) {
+			operation.backendCalls += calls;
+		}
+	}
+
+	/**
+	 * Records a whole HTTP request; the time not spent in handlers is accounted to the OData runtime.
+	 */
+	public void recordRequest(long nanos, long handlerNanos) {
+		requests.record(nanos);
+		recordPhase(PHASE_RUNTIME, Math.max(0, nanos - handlerNanos));
+	}
+
+	/**
+	 * Classifies an exception for the error counters; CDS errors by their DatasourceExceptionType.
+	 */
+	public static String getErrorType(Throwable e) {
+		if (e instanceof CDSException && ((CDSException) e).getType() != null) {
+			return ((CDSException) e).getType().name();
+		}
+		if (e instanceof SQLException) {
+			String sqlState = ((SQLException) e).getSQLState();
+			return sqlState != null && sqlState.startsWith("23") ? "INTEGRITY_CONSTRAINT_VIOLATION" : "SQL_ERROR";
+		}
+		if (e instanceof BackendUnavailableException) {
+			return "BACKEND_UNAVAILABLE";
+		}
+		if (e instanceof ODataException) {
+			return "BACKEND_ERROR";
+		}
+		if (e instanceof UnsupportedOperationException) {
+			return "NOT_IMPLEMENTED";
+		}
+		if (e instanceof PreconditionFailedException) {
+			return "PRECONDITION_FAILED";
+		}
+		return e.getClass().getSimpleName();
+	}
+
+	public void writeMetrics(PrintWriter out) {
+		Map<String, OperationMetrics> sortedOperations = new TreeMap<>(operations);
+		out.println("# HELP epmsample_operation_duration_seconds Duration of the EPMSampleService handler calls");
+		out.println("# TYPE epmsample_operation_duration_seconds histogram");
+		for (Map.Entry<String, OperationMetrics> operation : sortedOperations.entrySet()) {
+			operation.getValue().latency.write(out, "epmsample_operation_duration_seconds", operation.getKey());
+		}
+		out.println("# HELP epmsample_operation_rows_total Entities returned or written by the handler calls");
+		out.println("# TYPE epmsample_operation_rows_total counter");
+		for (Map.Entry<String, OperationMetrics> operation : sortedOperations.entrySet()) {
+			out.println("epmsample_operation_rows_total{" + operation.getKey() + "} " + operation.getValue().rows.sum());
+		}
+		out.println("# HELP epmsample_operation_backend_calls_total Backend OData V2 calls made by the handler calls");
+		out.println("# TYPE epmsample_operation_backend_calls_total counter");
+		for (Map.Entry<String, OperationMetrics> operation : sortedOperations.entrySet()) {
+			out.println("epmsample_operation_backend_calls_total{" + operation.getKey() + "} " + operation.getValue().backendCalls.sum());
+		}
+		out.println("# HELP epmsample_operation_errors_total Failed handler calls by error type");
+		out.println("# TYPE epmsample_operation_errors_total counter");
+		for (Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()) {
+			out.println("epmsample_operation_errors_total{" + error.getKey() + "} " + error.getValue().sum());
+		}
+		out.println("# HELP epmsample_phase_duration_seconds Time spent per phase of a request");
+		out.println("# TYPE epmsample_phase_duration_seconds histogram");
+		for (Map.Entry<String, LatencyHistogram> phase : new TreeMap<>(phases).entrySet()) {
+			phase.getValue().write(out, "epmsample_phase_duration_seconds", "phase=\"" + phase.getKey() + "\"");
+		}
+		out.println("# HELP epmsample_backend_calls_total Backend OData V2 calls by outcome");
+		out.println("# TYPE epmsample_backend_calls_total counter");
+		for (Map.Entry<String, LongAdder> outcome : new TreeMap<>(backendCalls).entrySet()) {
+			out.println("epmsample_backend_calls_total{outcome=\"" + outcome.getKey() + "\"} " + outcome.getValue().sum());
+		}
+		out.println("# HELP epmsample_request_duration_seconds Duration of the HTTP requests to the OData service");
+		out.println("# TYPE epmsample_request_duration_seconds histogram");
+		requests.write(out, "epmsample_request_duration_seconds", "");
+	}
+
+	private static final class OperationMetrics {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder rows = new LongAdder();
+		final LongAdder backendCalls = new LongAdder();
+	}
+
+	/**
+	 * One handler call being timed.
+	 */
+	public final class Operation implements AutoCloseable {
+
+		private final String labels;
+		private final long start = System.nanoTime();
+		private int rows;
+		private int backendCalls;
+		private String errorType;
+
+		Operation(String labels) {
+			this.labels = labels;
+		}
+
+		public void setRows(int rows) {
+			this.rows = rows;
+		}
+
+		public void failed(Throwable e) {
+			failed(getErrorType(e));
+		}
+
+		/**
+		 * Marks the call as failed without an exception, e.g. because the parent entity is missing.
+		 */
+		public void failed(String type) {
+			errorType = type;
+		}
+
+		@Override
+		public void close() {
+			long nanos = System.nanoTime() - start;
+			if (currentOperation.get() == this) {
+				currentOperation.remove();
+			}
+			OperationMetrics metrics = operations.computeIfAbsent(labels, key -> new OperationMetrics());
+			metrics.latency.record(nanos);
+			metrics.rows.add(rows);
+			metrics.backendCalls.add(backendCalls);
+			if (errorType != null) {
+				errors.computeIfAbsent(labels + ",type=\"" + errorType + "\"", key -> new LongAdder()).increment();
+			}
+			RequestContext context = RequestContext.current();
+			if (context != null) {
+				context.addHandlerNanos(nanos);
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms a new instance up before it takes traffic. The warm-up opens warmup.connections pooled
+ * connections and sets up the CDS handler on them. It also prepares the primary key reads of the
+ * CDS entity sets, loads the product cache (or brings the product replica up to date) and starts
+ * the backend threads. Finally it sends a
+ * few requests, $metadata among them, to its own OData endpoint. The OData runtime parses the
+ * EDMX and builds its handler registry on first use, and offers no hook to do that at build
+ * time. /monitoring/ready answers 503 until the warm-up is over. manifest.yml uses it as health
+ * check, so no user request is routed to a cold instance.
+ */
+public final class ServiceWarmup {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServiceWarmup.class);
+
+	private static final ServiceWarmup instance = new ServiceWarmup();
+
+	// the handler paths of the OData runtime; collection GETs without $expand would be streamed
+	private static final String[] RESOURCES = { "$metadata", "SalesOrders?$top=1&$expand=SalesOrderLineItems",
+			"SalesOrderLineItems?$top=1&$expand=Product", "Products?$top=1" };
+
+	private final boolean enabled = ServiceConfig.getBoolean("warmup.enabled", true);
+	private final int connections = ServiceConfig.getInt("warmup.connections", 4);
+	private final long timeoutMillis = TimeUnit.SECONDS.toMillis(ServiceConfig.getInt("warmup.timeoutSeconds", 60));
+	private final String serviceUrl = ServiceConfig.getString("warmup.serviceUrl", getDefaultServiceUrl());
+
+	private volatile boolean ready;
+	private Thread thread;
+
+	private ServiceWarmup() {
+	}
+
+	public static ServiceWarmup getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return true once the warm-up has finished, successfully or not
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Runs the warm-up in the background; the servlet container has to be up for its last step.
+	 */
+	public synchronized void start() {
+		if (!enabled) {
+			ready = true;
+			return;
+		}
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(this::run, "service-warmup");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	private void run() {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			warmConnections();
+			warmProductCache();
+			BackendExecutor.getInstance().prestartThreads();
+			warmODataRuntime(deadline);
+			logger.info("Warm-up finished in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			// a partial warm-up must not keep the instance from serving
+			logger.warn("Warm-up incomplete after {} ms: {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e.getMessage());
+		} finally {
+			ready = true;
+		}
+	}
+
+	/**
+	 * Holds warmup.connections connections at once so the pool opens that many, and runs the
+	 * primary key read of every CDS entity set on each, which also fills the statement caches.
+	 */
+	private void warmConnections() throws Exception {
+		List<CDSSession> sessions = new ArrayList<>(connections);
+		try {
+			for (int i = 0; i < connections; i++) {
+				CDSSession session = CDSDataAccess.getInstance().openOwnSession();
+				sessions.add(session);
+				session.getHandler(EPMSampleModel.NAMESPACE);
+				for (EPMSampleModel.EntitySet entitySet : EPMSampleModel.getEntitySets()) {
+					try (PreparedStatement statement = session.getConnection().prepareStatement(
+							"SELECT * FROM " + entitySet.getTableName() + " WHERE \"" + entitySet.getKey() + "\" = ?")) {
+						statement.setString(1, "");
+						try (ResultSet resultSet = statement.executeQuery()) {
+							resultSet.next();
+						}
+					}
+				}
+			}
+		} finally {
+			for (CDSSession session : sessions) {
+				session.close();
+			}
+		}
+		logger.debug("Warmed up {} connections", connections);
+		if (!StatementCacheInterceptor.isInstalled()) {
+			logger.warn("The pool has no statement cache; check the jdbcInterceptors of the resource in META-INF/context.xml");
+		}
+	}
+
+	private void warmProductCache() {
+		try {
+			if (ProductReplicationJob.isEnabled()) {
+				ProductReplicationJob.getInstance().run();
+			} else {
+				logger.debug("Loaded {} products", ProductCache.getInstance().getAll().size());
+			}
+		} catch (Exception e) {
+			// the backend may be down; the cache then loads on demand, the replica on the next run
+			logger.warn("Unable to load the products during warm-up: {}", e.getMessage());
+		}
+	}
+
+	private void warmODataRuntime(long deadline) throws InterruptedException, IOException {
+		if (serviceUrl.isEmpty()) {
+			return;
+		}
+		for (String resource : RESOURCES) {
+			while (true) {
+				try {
+					int status = get(serviceUrl + resource);
+					logger.debug("Warm-up request {} answered with {}", resource, status);
+					break;
+				} catch (ConnectException e) {
+					// the connector is started after the web application
+					if (System.currentTimeMillis() > deadline) {
+						throw e;
+					}
+					Thread.sleep(200);
+				}
+			}
+		}
+	}
+
+	private static int get(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(2000);
+		connection.setReadTimeout(30000);
+		connection.setRequestProperty("Accept", url.endsWith("$metadata") ? "application/xml" : "application/json");
+		int status = connection.getResponseCode();
+		try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0) {
+					// discard
+				}
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Cloud Foundry passes the port of the instance in PORT; elsewhere the last step is skipped
+	 * unless warmup.serviceUrl is set.
+	 */
+	private static String getDefaultServiceUrl() {
+		String port = System.getenv("PORT");
+		return port == null ? "" : "http://localhost:" + port + "/odata/v4/EPMSampleService/";
+	}
+}
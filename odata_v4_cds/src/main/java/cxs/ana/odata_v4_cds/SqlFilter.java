@@ -0,0 +1,378 @@
+package cxs.ana.odata_v4_cds;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sap.cloud.sdk.service.prov.api.filter.BinaryExpressionNode;
+import com.sap.cloud.sdk.service.prov.api.filter.Expression;
+import com.sap.cloud.sdk.service.prov.api.filter.LiteralNode;
+import com.sap.cloud.sdk.service.prov.api.filter.PropertyNode;
+import com.sap.cloud.sdk.service.prov.api.filter.UnaryExpressionNode;
+
+/**
+ * Translates the subset of $filter the JDBC code paths support into a parameterized SQL
+ * condition: comparisons (eq, ne, gt, ge, lt, le) between a property and a literal, contains,
+ * startswith, endswith, and, or, not and parentheses. Property names are checked against the
+ * entity set, and may go through a to-one navigation (Product/Category) the entity set knows;
+ * literal values always become bind parameters.
+ * <p>
+ * The filter is either parsed from the raw $filter ({@link #parse}) or taken from the expression
+ * tree the OData runtime hands to the handlers ({@link #from}); both feed the same SQL generator,
+ * so the streaming path and the handlers translate a filter the same way.
+ */
+public final class SqlFilter {
+
+	private final String sql;
+	private final List<Object> parameters;
+
+	private SqlFilter(String sql, List<Object> parameters) {
+		this.sql = sql;
+		this.parameters = Collections.unmodifiableList(parameters);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public List<Object> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the filter is malformed or outside the supported subset
+	 */
+	public static SqlFilter parse(String filter, EPMSampleModel.EntitySet entitySet) {
+		Parser parser = new Parser(filter, new Generator(entitySet));
+		parser.orExpression();
+		if (parser.peek() != null) {
+			throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in $filter");
+		}
+		return parser.generator.build();
+	}
+
+	/**
+	 * @param expression the $filter as parsed by the OData runtime
+	 * @throws UnsupportedOperationException for an expression outside the supported subset
+	 * @throws IllegalArgumentException if the filter does not fit the entity set
+	 */
+	public static SqlFilter from(Expression expression, EPMSampleModel.EntitySet entitySet) {
+		Generator generator = new Generator(entitySet);
+		append(generator, expression);
+		return generator.build();
+	}
+
+	private static void append(Generator generator, Expression expression) {
+		if (expression instanceof UnaryExpressionNode) {
+			UnaryExpressionNode node = (UnaryExpressionNode) expression;
+			if (!"not".equalsIgnoreCase(node.getOperator())) {
+				throw new UnsupportedOperationException("Unsupported $filter operator: " + node.getOperator());
+			}
+			generator.append("NOT (");
+			append(generator, node.getOperand());
+			generator.append(")");
+			return;
+		}
+		if (!(expression instanceof BinaryExpressionNode)) {
+			throw new UnsupportedOperationException("Unsupported $filter expression: " + expression);
+		}
+		BinaryExpressionNode node = (BinaryExpressionNode) expression;
+		String operator = node.getOperator().toLowerCase();
+		if ("and".equals(operator) || "or".equals(operator)) {
+			generator.append("(");
+			append(generator, node.getLeftOperand());
+			generator.append(") " + operator.toUpperCase() + " (");
+			append(generator, node.getRightOperand());
+			generator.append(")");
+		} else if (node.getLeftOperand() instanceof PropertyNode && node.getRightOperand() instanceof LiteralNode) {
+			generator.comparison(((PropertyNode) node.getLeftOperand()).getPath(), operator,
+					literalValue((LiteralNode) node.getRightOperand()));
+		} else if (node.getLeftOperand() instanceof LiteralNode && node.getRightOperand() instanceof PropertyNode) {
+			// 5 lt Quantity is the same as Quantity gt 5
+			generator.comparison(((PropertyNode) node.getRightOperand()).getPath(), mirror(operator),
+					literalValue((LiteralNode) node.getLeftOperand()));
+		} else {
+			throw new UnsupportedOperationException("Only comparisons between a property and a literal are supported in $filter");
+		}
+	}
+
+	/**
+	 * The runtime passes string literals with their quotes.
+	 */
+	private static Object literalValue(LiteralNode literal) {
+		Object value = literal.getValue();
+		if (value instanceof String) {
+			String text = (String) value;
+			if (text.length() >= 2 && text.startsWith("'") && text.endsWith("'")) {
+				return text.substring(1, text.length() - 1).replace("''", "'");
+			}
+		}
+		return value;
+	}
+
+	private static String mirror(String operator) {
+		switch (operator == null ? "" : operator) {
+		case "gt":
+			return "lt";
+		case "ge":
+			return "le";
+		case "lt":
+			return "gt";
+		case "le":
+			return "ge";
+		default:
+			return operator;
+		}
+	}
+
+	/**
+	 * Writes the SQL condition and collects its parameters.
+	 */
+	private static final class Generator {
+
+		private final EPMSampleModel.EntitySet entitySet;
+		private final StringBuilder sql = new StringBuilder();
+		private final List<Object> parameters = new ArrayList<>();
+
+		Generator(EPMSampleModel.EntitySet entitySet) {
+			this.entitySet = entitySet;
+		}
+
+		boolean isProperty(String name) {
+			return name != null && entitySet.getExpression(name) != null;
+		}
+
+		void append(String text) {
+			sql.append(text);
+		}
+
+		/**
+		 * @param operator eq, ne, gt, ge, lt or le, with the property on the left
+		 */
+		void comparison(String property, String operator, Object value) {
+			String column = column(property);
+			if (value == null) {
+				if ("eq".equals(operator)) {
+					sql.append(column).append(" IS NULL");
+				} else if ("ne".equals(operator)) {
+					sql.append(column).append(" IS NOT NULL");
+				} else {
+					throw new IllegalArgumentException("null can only be compared with eq or ne");
+				}
+				return;
+			}
+			sql.append(column).append(' ').append(sqlOperator(operator)).append(" ?");
+			parameters.add(parameterValue(property, value));
+		}
+
+		/**
+		 * @param function contains, startswith or endswith
+		 */
+		void like(String function, String property, Object value) {
+			String column = column(property);
+			if (!(value instanceof String)) {
+				throw new IllegalArgumentException(function + " expects a string literal");
+			}
+			String pattern = ((String) value).replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+			if ("contains".equals(function)) {
+				pattern = "%" + pattern + "%";
+			} else if ("startswith".equals(function)) {
+				pattern = pattern + "%";
+			} else {
+				pattern = "%" + pattern;
+			}
+			sql.append(column).append(" LIKE ? ESCAPE '\\'");
+			parameters.add(pattern);
+		}
+
+		SqlFilter build() {
+			return new SqlFilter(sql.toString(), parameters);
+		}
+
+		private String column(String property) {
+			String expression = property == null ? null : entitySet.getExpression(property);
+			if (expression == null) {
+				throw new IllegalArgumentException("Unknown property '" + property + "' in $filter");
+			}
+			return expression;
+		}
+
+		/**
+		 * Numbers may come as their literal text; JDBC needs them as numbers for integer columns.
+		 */
+		private Object parameterValue(String property, Object value) {
+			String type = entitySet.getType(property);
+			if (value instanceof String && ("Edm.Int32".equals(type) || "Edm.Int64".equals(type))) {
+				try {
+					return Long.valueOf((String) value);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("'" + value + "' is not a number for " + property + " in $filter");
+				}
+			}
+			return value;
+		}
+
+		private static String sqlOperator(String operator) {
+			switch (operator == null ? "" : operator) {
+			case "eq":
+				return "=";
+			case "ne":
+				return "<>";
+			case "gt":
+				return ">";
+			case "ge":
+				return ">=";
+			case "lt":
+				return "<";
+			case "le":
+				return "<=";
+			default:
+				throw new IllegalArgumentException("Unsupported operator '" + operator + "' in $filter");
+			}
+		}
+	}
+
+	private static final class Parser {
+
+		private final List<String> tokens = new ArrayList<>();
+		private final Generator generator;
+		private int position;
+
+		Parser(String filter, Generator generator) {
+			this.generator = generator;
+			tokenize(filter);
+		}
+
+		void orExpression() {
+			andExpression();
+			while ("or".equals(peek())) {
+				position++;
+				generator.append(" OR ");
+				andExpression();
+			}
+		}
+
+		private void andExpression() {
+			unaryExpression();
+			while ("and".equals(peek())) {
+				position++;
+				generator.append(" AND ");
+				unaryExpression();
+			}
+		}
+
+		private void unaryExpression() {
+			String token = peek();
+			if ("not".equals(token)) {
+				position++;
+				generator.append("NOT ");
+				unaryExpression();
+			} else if ("(".equals(token)) {
+				position++;
+				generator.append("(");
+				orExpression();
+				expect(")");
+				generator.append(")");
+			} else if ("contains".equals(token) || "startswith".equals(token) || "endswith".equals(token)) {
+				position++;
+				expect("(");
+				String property = next();
+				expect(",");
+				Object value = literal(next());
+				expect(")");
+				generator.like(token, property, value);
+			} else {
+				comparison();
+			}
+		}
+
+		private void comparison() {
+			String left = next();
+			String operator = next();
+			String right = next();
+			if (generator.isProperty(left)) {
+				generator.comparison(left, operator, literal(right));
+			} else if (generator.isProperty(right)) {
+				generator.comparison(right, mirror(operator), literal(left));
+			} else {
+				throw new IllegalArgumentException("Comparison without a property of " + generator.entitySet.getName() + " in $filter");
+			}
+		}
+
+		private Object literal(String token) {
+			if (token == null) {
+				throw new IllegalArgumentException("Unexpected end of $filter");
+			}
+			if (token.startsWith("'")) {
+				return token.substring(1, token.length() - 1).replace("''", "'");
+			}
+			if ("null".equals(token)) {
+				return null;
+			}
+			if ("true".equals(token) || "false".equals(token)) {
+				return Boolean.valueOf(token);
+			}
+			try {
+				return token.indexOf('.') < 0 ? (Object) Long.valueOf(token) : new BigDecimal(token);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unsupported literal '" + token + "' in $filter");
+			}
+		}
+
+		String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private String next() {
+			return position < tokens.size() ? tokens.get(position++) : null;
+		}
+
+		private void expect(String token) {
+			if (!token.equals(next())) {
+				throw new IllegalArgumentException("Expected '" + token + "' in $filter");
+			}
+		}
+
+		private void tokenize(String filter) {
+			int i = 0;
+			int length = filter.length();
+			while (i < length) {
+				char c = filter.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '(' || c == ')' || c == ',') {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else if (c == '\'') {
+					int end = i + 1;
+					while (true) {
+						if (end >= length) {
+							throw new IllegalArgumentException("Unterminated string literal in $filter");
+						}
+						if (filter.charAt(end) == '\'') {
+							if (end + 1 < length && filter.charAt(end + 1) == '\'') {
+								end += 2;
+								continue;
+							}
+							break;
+						}
+						end++;
+					}
+					tokens.add(filter.substring(i, end + 1));
+					i = end + 1;
+				} else {
+					int end = i;
+					while (end < length && (Character.isLetterOrDigit(filter.charAt(end)) || "_.-/".indexOf(filter.charAt(end)) >= 0)) {
+						end++;
+					}
+					if (end == i) {
+						throw new IllegalArgumentException("Unexpected character '" + c + "' in $filter");
+					}
+					tokens.add(filter.substring(i, end));
+					i = end;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package cxs.ana.odata_v4_cds;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.interceptor.StatementCache;
+
+/**
+ * The StatementCache interceptor of the container pool, counting how many prepareStatement calls
+ * it answers from its cache and how many go to the database to be prepared. Configured with
+ * jdbcInterceptors in META-INF/context.xml; the pool loads the class through the context class
+ * loader of the web application, so the counters are the ones {@link MonitoringServlet} reports.
+ * <p>
+ * The max property of the interceptor limits the statements cached by all connections of the
+ * pool together, not per connection.
+ */
+public class StatementCacheInterceptor extends StatementCache {
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong prepares = new AtomicLong();
+	private static volatile boolean installed;
+
+	@Override
+	public void poolStarted(ConnectionPool pool) {
+		super.poolStarted(pool);
+		installed = true;
+	}
+
+	@Override
+	public CachedStatement isCached(Method method, Object[] args) {
+		// only asked for the prepare calls the cache handles
+		CachedStatement statement = super.isCached(method, args);
+		(statement != null ? hits : prepares).incrementAndGet();
+		return statement;
+	}
+
+	/**
+	 * @return whether a pool has started with this interceptor, i.e. the data source factory
+	 *         applied the jdbcInterceptors of the resource
+	 */
+	public static boolean isInstalled() {
+		return installed;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getPrepares() {
+		return prepares.get();
+	}
+}
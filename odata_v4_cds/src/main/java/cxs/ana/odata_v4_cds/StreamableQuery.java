@@ -0,0 +1,50 @@
+package cxs.ana.odata_v4_cds;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A parameterized SQL query whose rows {@link EntitySetStreamer} writes as an OData collection.
+ */
+public interface StreamableQuery {
+
+	EPMSampleModel.EntitySet getEntitySet();
+
+	/**
+	 * @return the fragment after $metadata# in @odata.context
+	 */
+	String getContext();
+
+	/**
+	 * @return the names of the result columns, in the order of the SELECT list
+	 */
+	List<String> getColumns();
+
+	int getSkip();
+
+	/**
+	 * @return the requested $top or -1 if the client did not restrict the result
+	 */
+	int getTop();
+
+	/**
+	 * @return whether the client asked for @odata.count with $count=true
+	 */
+	boolean isCountRequested();
+
+	/**
+	 * @param limit maximum number of rows to read, or -1 for no limit
+	 */
+	String toSql(int limit);
+
+	/**
+	 * @return the query counting all rows of the result, ignoring $top and $skip
+	 */
+	String toCountSql();
+
+	/**
+	 * Binds the parameters of both {@link #toSql} and {@link #toCountSql}.
+	 */
+	void bind(PreparedStatement statement) throws SQLException;
+}
@@ -0,0 +1,116 @@
+package cxs.ana.odata_v4_cds;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves plain collection GETs, /$count and $apply aggregations on the CDS entity sets
+ * (SalesOrders, SalesOrderLineItems, and Products when they are replicated) through
+ * {@link EntitySetStreamer}. Everything else, including collection requests with options the
+ * streamer does not support or with odata.metadata=full, is passed on to the ODataServlet.
+ * Only the collections served here are paged with an @odata.nextLink.
+ */
+public class StreamingQueryFilter implements Filter {
+
+	private static final Logger logger = LoggerFactory.getLogger(StreamingQueryFilter.class);
+
+	private final boolean enabled = ServiceConfig.getBoolean("streaming.enabled", true);
+	private final EntitySetStreamer streamer = new EntitySetStreamer();
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+
+		boolean count = isCountRequest(request);
+		EPMSampleModel.EntitySet entitySet = enabled && "GET".equals(request.getMethod())
+				&& (count || acceptsJson(request) && !EntitySetStreamer.METADATA_FULL.equals(EntitySetStreamer.getMetadataLevel(request)))
+				? getRequestedEntitySet(request) : null;
+		if (entitySet == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		StreamableQuery query;
+		try {
+			query = request.getParameter("$apply") != null && !count
+					? AggregationQuery.parse(entitySet, request.getParameterMap())
+					: EntitySetQuery.parse(entitySet, request.getParameterMap());
+		} catch (IllegalArgumentException e) {
+			// let the OData runtime produce its regular error response
+			logger.debug("Not streaming {}: {}", entitySet.getName(), e.getMessage());
+			query = null;
+		}
+		if (query == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String operationName = count ? "count" : query instanceof AggregationQuery ? "aggregate" : "stream";
+		try (ServiceMetrics.Operation operation = ServiceMetrics.getInstance().start(entitySet.getName(), operationName)) {
+			try {
+				if (count) {
+					streamer.streamCount((EntitySetQuery) query, response);
+					operation.setRows(1);
+				} else {
+					operation.setRows(streamer.stream(query, request, response));
+				}
+			} catch (Exception e) {
+				logger.error("==> Exception while streaming {} from CDS: {}", entitySet.getName(), e.getMessage());
+				operation.failed(e);
+				if (response.isCommitted()) {
+					// part of the collection is on the wire; the container closes the connection
+					// without ending the body, so the client cannot take it for the whole result
+					throw new ServletException("Aborted the response while streaming " + entitySet.getName(), e);
+				}
+				response.reset();
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	/**
+	 * @return the CDS entity set of a request path /&lt;service&gt;/&lt;entity set&gt; or
+	 *         /&lt;service&gt;/&lt;entity set&gt;/$count, or null
+	 */
+	static EPMSampleModel.EntitySet getRequestedEntitySet(HttpServletRequest request) {
+		String pathInfo = request.getPathInfo();
+		if (pathInfo == null) {
+			return null;
+		}
+		String[] segments = pathInfo.split("/");
+		if (segments.length != (isCountRequest(request) ? 4 : 3) || !"EPMSampleService".equals(segments[1])) {
+			return null;
+		}
+		return EPMSampleModel.getEntitySet(segments[2]);
+	}
+
+	static boolean isCountRequest(HttpServletRequest request) {
+		String pathInfo = request.getPathInfo();
+		return pathInfo != null && pathInfo.endsWith("/$count");
+	}
+
+	static boolean acceptsJson(HttpServletRequest request) {
+		String accept = request.getHeader("Accept");
+		return accept == null || accept.contains("json") || accept.contains("*/*");
+	}
+}
@@ -0,0 +1,78 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AggregationQueryTest {
+
+	private static final EPMSampleModel.EntitySet LINE_ITEMS = EPMSampleModel.SALES_ORDER_LINE_ITEMS;
+
+	private static Map<String, String[]> parameters(String... namesAndValues) {
+		Map<String, String[]> parameters = new HashMap<>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			parameters.put(namesAndValues[i], new String[] { namesAndValues[i + 1] });
+		}
+		return parameters;
+	}
+
+	@Test
+	public void groupByWithAggregates() {
+		AggregationQuery query = AggregationQuery.parse(LINE_ITEMS, parameters(
+				"$apply", "filter(Quantity gt 1)/groupby((ProductID),aggregate(GrossAmount with sum as Total,$count as Items))",
+				"$orderby", "Total desc", "$top", "10", "$count", "true"));
+		String grouped = "SELECT \"ProductID\", SUM(\"GrossAmount\") AS \"Total\", COUNT(*) AS \"Items\""
+				+ " FROM \"EPMSample.SalesOrderLineItems\" WHERE (\"Quantity\" > ?) GROUP BY \"ProductID\"";
+		// the grouping properties are appended to $orderby to keep paging stable
+		assertEquals(grouped + " ORDER BY \"Total\" DESC, \"ProductID\" LIMIT 10", query.toSql(10));
+		assertEquals("SELECT COUNT(*) FROM (" + grouped + ") AS \"groups\"", query.toCountSql());
+		assertEquals(Arrays.asList("ProductID", "Total", "Items"), query.getColumns());
+		assertEquals("SalesOrderLineItems(ProductID,Total,Items)", query.getContext());
+		assertEquals(10, query.getTop());
+		assertTrue(query.isCountRequested());
+	}
+
+	@Test
+	public void averageIsNotTruncated() {
+		AggregationQuery query = AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "aggregate(Quantity with average as Average)"));
+		assertEquals("SELECT AVG(CAST(\"Quantity\" AS DECIMAL(34,4))) AS \"Average\" FROM \"EPMSample.SalesOrderLineItems\"",
+				query.toSql(-1));
+	}
+
+	@Test
+	public void skipTokenAddsToSkip() {
+		AggregationQuery query = AggregationQuery.parse(LINE_ITEMS,
+				parameters("$apply", "groupby((ProductID))", "$skip", "5", "$skiptoken", "20"));
+		assertEquals(25, query.getSkip());
+	}
+
+	@Test
+	public void unsupportedRequestsAreLeftToTheRuntime() {
+		assertNull(AggregationQuery.parse(LINE_ITEMS, parameters("$top", "1")));
+		assertNull(AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "groupby((ProductID))", "$filter", "Quantity gt 1")));
+		assertNull(AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "filter(Quantity gt 1)")));
+		assertNull(AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "groupby((ProductID))/filter(ProductID eq 'x')")));
+		assertNull(AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "groupby((SalesOrder/Note))")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void sumNeedsANumericProperty() {
+		AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "aggregate(ProductID with sum as Total)"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void aliasMustNotHideAProperty() {
+		AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "aggregate(Quantity with sum as GrossAmount)"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void orderByMustUseTheAggregatedRows() {
+		AggregationQuery.parse(LINE_ITEMS, parameters("$apply", "groupby((ProductID))", "$orderby", "Quantity"));
+	}
+}
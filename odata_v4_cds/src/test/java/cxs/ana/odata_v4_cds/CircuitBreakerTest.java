@@ -0,0 +1,128 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private static final long FAST = 1000000L;
+	private static final long SLOW = 5000000000L;
+	private static final long OPEN_MILLIS = 30000;
+
+	private final AtomicLong now = new AtomicLong(1000000);
+
+	// windowSize 20, minimumCalls 10, failure rate 50 %, slow call rate 80 % above 3 s, 3 trial calls
+	private final CircuitBreaker breaker = new CircuitBreaker("test", now::get, 20, 10, 50, 80, 3000, OPEN_MILLIS, 3);
+
+	@Test
+	public void staysClosedBelowTheMinimumCalls() {
+		for (int i = 0; i < 9; i++) {
+			breaker.onError(FAST);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquirePermission());
+	}
+
+	@Test
+	public void opensAtTheFailureRate() {
+		for (int i = 0; i < 5; i++) {
+			breaker.onSuccess(FAST);
+		}
+		for (int i = 0; i < 4; i++) {
+			breaker.onError(FAST);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.onError(FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquirePermission());
+		assertEquals(1, breaker.getOpenings());
+		assertEquals(1, breaker.getRejections());
+	}
+
+	@Test
+	public void opensAtTheSlowCallRate() {
+		for (int i = 0; i < 8; i++) {
+			breaker.onSuccess(SLOW);
+		}
+		breaker.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void rejectsUntilTheOpenPeriodIsOver() {
+		open();
+		now.addAndGet(OPEN_MILLIS - 1);
+		assertFalse(breaker.tryAcquirePermission());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		// calls that started before the breaker opened do not count
+		breaker.onSuccess(FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		now.incrementAndGet();
+		assertTrue(breaker.tryAcquirePermission());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+	@Test
+	public void closesAfterSuccessfulTrialCalls() {
+		openAndWait();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(breaker.tryAcquirePermission());
+			assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		}
+		// only halfOpenCalls trial calls at a time
+		assertFalse(breaker.tryAcquirePermission());
+		for (int i = 0; i < 3; i++) {
+			breaker.onSuccess(FAST);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void reopensWhenATrialCallFails() {
+		openAndWait();
+		assertTrue(breaker.tryAcquirePermission());
+		breaker.onError(FAST);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpenings());
+	}
+
+	@Test
+	public void reopensWhenTrialCallsNeverReport() {
+		openAndWait();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(breaker.tryAcquirePermission());
+		}
+		now.addAndGet(OPEN_MILLIS);
+		assertFalse(breaker.tryAcquirePermission());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void releasedPermissionsFreeATrialCall() {
+		openAndWait();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(breaker.tryAcquirePermission());
+		}
+		breaker.releasePermission();
+		assertTrue(breaker.tryAcquirePermission());
+	}
+
+	private void open() {
+		for (int i = 0; i < 10; i++) {
+			breaker.onError(FAST);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	private void openAndWait() {
+		open();
+		now.addAndGet(OPEN_MILLIS);
+	}
+}
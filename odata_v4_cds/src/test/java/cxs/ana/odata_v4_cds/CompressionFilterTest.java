@@ -0,0 +1,38 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CompressionFilterTest {
+
+	@Test
+	public void gzipWinsATie() {
+		assertEquals("gzip", CompressionFilter.negotiate("gzip, deflate"));
+		assertEquals("gzip", CompressionFilter.negotiate("deflate, gzip"));
+		assertEquals("gzip", CompressionFilter.negotiate("x-gzip"));
+	}
+
+	@Test
+	public void higherQualityWins() {
+		assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0.5, deflate"));
+		assertEquals("gzip", CompressionFilter.negotiate("gzip; q=0.8, deflate;q=0.2"));
+	}
+
+	@Test
+	public void wildcardCoversUnlistedCodings() {
+		assertEquals("gzip", CompressionFilter.negotiate("*"));
+		assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, *"));
+		assertNull(CompressionFilter.negotiate("br, *;q=0"));
+	}
+
+	@Test
+	public void nothingAcceptable() {
+		assertNull(CompressionFilter.negotiate(null));
+		assertNull(CompressionFilter.negotiate(""));
+		assertNull(CompressionFilter.negotiate("identity"));
+		assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0"));
+		assertNull(CompressionFilter.negotiate("gzip;q=invalid"));
+	}
+}
@@ -0,0 +1,35 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ConditionalRequestFilterTest {
+
+	private static final String ETAG = ChangeTracking.toETag(1538000000000000L);
+
+	@Test
+	public void annotatesTheEntityAfterItsContext() {
+		assertEquals("{\"@odata.context\":\"$metadata#SalesOrders/$entity\",\"@odata.etag\":\"W/\\\"1538000000000000\\\"\",\"SalesOrderID\":\"1\"}",
+				annotate("{\"@odata.context\":\"$metadata#SalesOrders/$entity\",\"SalesOrderID\":\"1\"}"));
+	}
+
+	@Test
+	public void skipsEscapedCharactersOfTheContext() {
+		assertEquals("{\"@odata.context\":\"http:\\/\\/host\\/$metadata#SalesOrders\\\"x/$entity\",\"@odata.etag\":\"W/\\\"1538000000000000\\\"\"}",
+				annotate("{\"@odata.context\":\"http:\\/\\/host\\/$metadata#SalesOrders\\\"x/$entity\"}"));
+	}
+
+	@Test
+	public void leavesOtherBodiesAsTheyAre() {
+		assertEquals("{\"SalesOrderID\":\"1\"}", annotate("{\"SalesOrderID\":\"1\"}"));
+		assertEquals("<error/>", annotate("<error/>"));
+		assertEquals("{\"@odata.context\":\"$metadata", annotate("{\"@odata.context\":\"$metadata"));
+	}
+
+	private static String annotate(String body) {
+		return new String(ConditionalRequestFilter.annotate(body.getBytes(StandardCharsets.UTF_8), ETAG), StandardCharsets.UTF_8);
+	}
+}
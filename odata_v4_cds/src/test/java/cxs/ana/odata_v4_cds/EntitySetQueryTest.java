@@ -0,0 +1,75 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class EntitySetQueryTest {
+
+	private static final EPMSampleModel.EntitySet SALES_ORDERS = EPMSampleModel.SALES_ORDERS;
+
+	@Test
+	public void skipTokenAddsToSkip() {
+		EntitySetQuery query = parse("$skip", "10", "$skiptoken", "200", "$top", "500");
+		assertEquals(210, query.getSkip());
+		assertEquals(500, query.getTop());
+		assertEquals(-1, query.getTrackingStart());
+		assertEquals("SELECT \"SalesOrderID\", \"Note\", \"CustomerName\", \"GrossAmount\" FROM \"EPMSample.SalesOrders\""
+				+ " ORDER BY \"SalesOrderID\" LIMIT 100 OFFSET 210", query.toSql(100));
+	}
+
+	@Test
+	public void skipTokenCarriesTheTrackingStart() {
+		EntitySetQuery query = parse("$skiptoken", "1000~1700000000000");
+		assertEquals(1000, query.getSkip());
+		assertEquals(1700000000000L, query.getTrackingStart());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeSkipTokenIsRejected() {
+		parse("$skiptoken", "-5");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidTrackingStartIsRejected() {
+		parse("$skiptoken", "5~x");
+	}
+
+	@Test
+	public void skipWithoutLimitReadsToTheEnd() {
+		assertEquals("SELECT \"SalesOrderID\" FROM \"EPMSample.SalesOrders\" ORDER BY \"SalesOrderID\" LIMIT "
+				+ Integer.MAX_VALUE + " OFFSET 3", parse("$select", "SalesOrderID", "$skip", "3").toSql(-1));
+	}
+
+	@Test
+	public void zeroLimitIsKept() {
+		assertEquals("SELECT \"SalesOrderID\" FROM \"EPMSample.SalesOrders\" ORDER BY \"SalesOrderID\" LIMIT 0",
+				parse("$select", "SalesOrderID").toSql(0));
+	}
+
+	@Test
+	public void contextListsTheSelectedProperties() {
+		assertEquals("SalesOrders", parse().getContext());
+		assertEquals("SalesOrders", parse("$select", "*").getContext());
+		assertEquals("SalesOrders(SalesOrderID,GrossAmount)", parse("$select", "GrossAmount").getContext());
+	}
+
+	@Test
+	public void otherOptionsAreLeftToTheRuntime() {
+		assertNull(parse("$expand", "Items"));
+		assertNull(parse("$format", "xml"));
+		assertNull(parse("$select", "Items"));
+	}
+
+	private static EntitySetQuery parse(String... parameters) {
+		Map<String, String[]> map = new HashMap<>();
+		for (int i = 0; i < parameters.length; i += 2) {
+			map.put(parameters[i], new String[] { parameters[i + 1] });
+		}
+		return EntitySetQuery.parse(SALES_ORDERS, map);
+	}
+}
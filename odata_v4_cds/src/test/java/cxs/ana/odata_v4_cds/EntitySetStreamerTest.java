@@ -0,0 +1,95 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+public class EntitySetStreamerTest {
+
+	private static final String URL = "https://host/odata/v4/EPMSampleService/SalesOrders";
+
+	@Test
+	public void nextLinkContinuesAfterThePage() {
+		HttpServletRequest request = request(null, "$filter", "GrossAmount gt 10", "$skip", "5");
+		assertEquals(URL + "?$filter=GrossAmount%20gt%2010&$skiptoken=105",
+				EntitySetStreamer.getNextLink(request, -1, 5, 100, -1));
+	}
+
+	@Test
+	public void nextLinkReplacesTheSkipTokenAndCountsDownTop() {
+		HttpServletRequest request = request(null, "$top", "250", "$skiptoken", "100", "$count", "true");
+		assertEquals(URL + "?$count=true&$top=150&$skiptoken=200",
+				EntitySetStreamer.getNextLink(request, 250, 100, 100, -1));
+	}
+
+	@Test
+	public void nextLinkKeepsTheTrackingStart() {
+		assertEquals(URL + "?$skiptoken=100~1700000000000",
+				EntitySetStreamer.getNextLink(request(null), -1, 0, 100, 1700000000000L));
+	}
+
+	@Test
+	public void smallerPreferredPageSizeIsApplied() {
+		List<String> applied = new ArrayList<>();
+		assertEquals(50, EntitySetStreamer.getPageSize("SalesOrders", request("odata.maxpagesize=50"), applied));
+		assertEquals(Collections.singletonList("odata.maxpagesize=50"), applied);
+	}
+
+	@Test
+	public void largerPreferredPageSizeIsCapped() {
+		List<String> applied = new ArrayList<>();
+		int max = EntitySetStreamer.getMaxPageSize("SalesOrders");
+		assertEquals(max, EntitySetStreamer.getPageSize("SalesOrders", request("odata.maxpagesize=" + (max + 1)), applied));
+		assertTrue(applied.isEmpty());
+	}
+
+	@Test
+	public void preferredPageSizeAmongOtherPreferences() {
+		assertEquals(20, EntitySetStreamer.getPreferredPageSize(request("odata.track-changes, odata.maxpagesize = 20")));
+		assertEquals(-1, EntitySetStreamer.getPreferredPageSize(request("odata.maxpagesize=many")));
+		assertEquals(-1, EntitySetStreamer.getPreferredPageSize(request(null)));
+	}
+
+	@Test
+	public void serviceRootEndsAfterTheService() {
+		assertEquals("https://host/odata/v4/EPMSampleService/", EntitySetStreamer.getServiceRoot(request(null)));
+	}
+
+	/**
+	 * @param parameters names and values of the query parameters, in order
+	 */
+	private static HttpServletRequest request(String prefer, String... parameters) {
+		Map<String, String[]> parameterMap = new LinkedHashMap<>();
+		for (int i = 0; i < parameters.length; i += 2) {
+			parameterMap.put(parameters[i], new String[] { parameters[i + 1] });
+		}
+		return (HttpServletRequest) Proxy.newProxyInstance(EntitySetStreamerTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getRequestURL":
+						return new StringBuffer(URL);
+					case "getPathInfo":
+						return "/EPMSampleService/SalesOrders";
+					case "getParameterMap":
+						return parameterMap;
+					case "getParameter":
+						String[] values = parameterMap.get(args[0]);
+						return values == null ? null : values[0];
+					case "getHeader":
+						return "Prefer".equals(args[0]) ? prefer : null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
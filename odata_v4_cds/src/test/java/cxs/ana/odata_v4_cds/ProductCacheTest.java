@@ -0,0 +1,166 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.sap.cloud.sdk.odatav2.connectivity.ODataException;
+
+public class ProductCacheTest {
+
+	private final BlockingBackend backend = new BlockingBackend();
+	private final ProductCache cache = new ProductCache(backend);
+
+	@Test
+	public void concurrentMissesOfAProductCallTheBackendOnce() throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<ProductEntity>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(threads.submit(() -> cache.get("HT-1000")));
+			}
+			backend.awaitCall();
+			Thread.sleep(100);
+			backend.release();
+			ProductEntity product = results.get(0).get(5, TimeUnit.SECONDS);
+			for (Future<ProductEntity> result : results) {
+				assertSame(product, result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, backend.calls.get());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void productsLoadedByAnotherRequestAreNotFetchedAgain() throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(2);
+		try {
+			Future<ProductEntity> single = threads.submit(() -> cache.get("HT-1000"));
+			backend.awaitCall();
+			Future<Map<String, ProductEntity>> many = threads.submit(() -> cache.getAll(Arrays.asList("HT-1000", "HT-1001")));
+			Thread.sleep(100);
+			backend.release();
+			Map<String, ProductEntity> products = many.get(5, TimeUnit.SECONDS);
+			assertSame(single.get(5, TimeUnit.SECONDS), products.get("HT-1000"));
+			assertEquals(2, products.size());
+			// each product was requested once, HT-1000 only by the first request
+			Collections.sort(backend.requested);
+			assertEquals(Arrays.asList("HT-1000", "HT-1001"), backend.requested);
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void concurrentSnapshotLoadsCallTheBackendOnce() throws Exception {
+		ExecutorService threads = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<List<ProductEntity>>> results = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				results.add(threads.submit(() -> cache.getAll()));
+			}
+			backend.awaitCall();
+			Thread.sleep(100);
+			backend.release();
+			for (Future<List<ProductEntity>> result : results) {
+				assertEquals(3, result.get(5, TimeUnit.SECONDS).size());
+			}
+			assertEquals(1, backend.calls.get());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void snapshotLargerThanTheCacheDoesNotEvictIt() throws Exception {
+		backend.release();
+		cache.get("HT-1000");
+		backend.size = ServiceConfig.getInt("products.cache.maxSize", 10000) + 1;
+		assertEquals(backend.size, cache.getAll().size());
+		ProductCacheStatistics statistics = cache.getStatistics();
+		assertEquals(0, statistics.getEvictions());
+		assertEquals(1, statistics.getSize());
+	}
+
+	private static ProductEntity product(String productID) {
+		ProductEntity product = new ProductEntity();
+		product.setProductID(productID);
+		return product;
+	}
+
+	/**
+	 * Answers every call once {@link #release()} was called.
+	 */
+	private static final class BlockingBackend extends ProductBackend {
+		final AtomicInteger calls = new AtomicInteger();
+		final List<String> requested = new ArrayList<>();
+		final CountDownLatch called = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		volatile int size = 3;
+
+		@Override
+		public ProductEntity fetchOne(String productID) throws ODataException {
+			block();
+			synchronized (requested) {
+				requested.add(productID);
+			}
+			return product(productID);
+		}
+
+		@Override
+		public List<ProductEntity> fetchByIds(Collection<String> productIDs) throws ODataException {
+			block();
+			List<ProductEntity> products = new ArrayList<>();
+			synchronized (requested) {
+				for (String productID : productIDs) {
+					requested.add(productID);
+					products.add(product(productID));
+				}
+			}
+			return products;
+		}
+
+		@Override
+		public List<ProductEntity> fetchAll() throws ODataException {
+			block();
+			List<ProductEntity> products = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				products.add(product("HT-" + (1000 + i)));
+			}
+			return products;
+		}
+
+		void awaitCall() throws InterruptedException {
+			called.await(5, TimeUnit.SECONDS);
+		}
+
+		void release() {
+			released.countDown();
+		}
+
+		private void block() {
+			calls.incrementAndGet();
+			called.countDown();
+			try {
+				released.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SqlFilterTest {
+
+	private static final EPMSampleModel.EntitySet LINE_ITEMS = EPMSampleModel.SALES_ORDER_LINE_ITEMS;
+
+	@Test
+	public void comparisonBindsTheLiteral() {
+		SqlFilter filter = SqlFilter.parse("SalesOrderID eq 'it''s'", LINE_ITEMS);
+		assertEquals("\"SalesOrderID\" = ?", filter.getSql());
+		assertEquals(Collections.singletonList("it's"), filter.getParameters());
+	}
+
+	@Test
+	public void integerLiteralsBecomeNumbers() {
+		SqlFilter filter = SqlFilter.parse("Quantity ge 3", LINE_ITEMS);
+		assertEquals("\"Quantity\" >= ?", filter.getSql());
+		assertEquals(Collections.<Object>singletonList(3L), filter.getParameters());
+	}
+
+	@Test
+	public void literalOnTheLeftIsMirrored() {
+		assertEquals("\"Quantity\" > ?", SqlFilter.parse("5 lt Quantity", LINE_ITEMS).getSql());
+	}
+
+	@Test
+	public void nullComparisons() {
+		assertEquals("\"ProductID\" IS NULL", SqlFilter.parse("ProductID eq null", LINE_ITEMS).getSql());
+		assertEquals("\"ProductID\" IS NOT NULL", SqlFilter.parse("ProductID ne null", LINE_ITEMS).getSql());
+	}
+
+	@Test
+	public void likePatternsAreEscaped() {
+		SqlFilter filter = SqlFilter.parse("Quantity gt 5 and startswith(SOLineItemID,'50%_')", LINE_ITEMS);
+		assertEquals("\"Quantity\" > ? AND \"SOLineItemID\" LIKE ? ESCAPE '\\'", filter.getSql());
+		assertEquals(Arrays.<Object>asList(5L, "50\\%\\_%"), filter.getParameters());
+	}
+
+	@Test
+	public void parenthesesAreKept() {
+		assertEquals("(\"Quantity\" >= ?)", SqlFilter.parse("(Quantity ge 1)", LINE_ITEMS).getSql());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownPropertyIsRejected() {
+		SqlFilter.parse("Foo eq 1", LINE_ITEMS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nonNumericLiteralForAnIntegerIsRejected() {
+		SqlFilter.parse("Quantity eq 'x'", LINE_ITEMS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullOnlyWorksWithEqAndNe() {
+		SqlFilter.parse("Quantity gt null", LINE_ITEMS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void trailingTokensAreRejected() {
+		SqlFilter.parse("Quantity eq 1)", LINE_ITEMS);
+	}
+}
@@ -0,0 +1,41 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line options (e.g. a benchmark
+ * regex or -p salesOrders=10000), adds the GC profiler for the allocation rate per operation and
+ * writes the results to jmh-result.json.
+ * <p>
+ * The cloud SDK resolves the ErpQueryEndpoint destination from the environment variable
+ * destinations, which must point to the backend stub, e.g.
+ * {@code destinations=[{name: "ErpQueryEndpoint", url: "http://localhost:18081"}]};
+ * mvn exec:exec sets it up.
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(commandLine);
+		if (commandLine.getIncludes().isEmpty()) {
+			builder.include(EPMSampleServiceBenchmark.class.getSimpleName());
+		}
+		Options options = builder
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("jmh-result.json")
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,217 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sap.cloud.sdk.service.prov.api.request.CreateRequest;
+import com.sap.cloud.sdk.service.prov.api.request.QueryRequest;
+import com.sap.cloud.sdk.service.prov.api.request.ReadRequest;
+import com.sap.cloud.sdk.service.prov.api.request.UpdateRequest;
+import com.sap.cloud.sdk.service.prov.api.response.CreateResponse;
+import com.sap.cloud.sdk.service.prov.api.response.ErrorResponse;
+import com.sap.cloud.sdk.service.prov.api.response.QueryResponse;
+import com.sap.cloud.sdk.service.prov.api.response.ReadResponse;
+import com.sap.cloud.sdk.service.prov.api.response.UpdateResponse;
+
+import cxs.ana.odata_v4_cds.CDSDataAccess;
+import cxs.ana.odata_v4_cds.EPMSampleService;
+import cxs.ana.odata_v4_cds.ProductCache;
+
+/**
+ * Calls the EPMSampleService handlers the way the OData runtime does, against an embedded H2
+ * database with the EPMSample schema and an in-process GWSAMPLE_BASIC stub. Data volumes and the
+ * simulated backend latency are JMH parameters, e.g. {@code -p salesOrders=10000}.
+ * <p>
+ * Run with {@link BenchmarkRunner}, which adds the GC profiler for the allocation rate; the
+ * SampleTime mode reports the latency percentiles.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class EPMSampleServiceBenchmark {
+
+	// prebuilt requests per benchmark, so that building them is not measured
+	private static final int REQUESTS = 1024;
+
+	@State(Scope.Benchmark)
+	public static class Environment {
+
+		@Param("1000")
+		public int salesOrders;
+
+		@Param("5")
+		public int lineItemsPerOrder;
+
+		@Param("200")
+		public int products;
+
+		@Param("0")
+		public long backendLatencyMillis;
+
+		SampleData data;
+		EmbeddedDatabase database;
+		ProductBackendStub backend;
+		EPMSampleService service;
+
+		QueryRequest querySalesOrders;
+		QueryRequest queryProducts;
+		ReadRequest[] readSalesOrder = new ReadRequest[REQUESTS];
+		ReadRequest[] readProduct = new ReadRequest[REQUESTS];
+		QueryRequest[] salesOrderLineItems = new QueryRequest[REQUESTS];
+		ReadRequest[] lineItemProduct = new ReadRequest[REQUESTS];
+		final AtomicLong createdLineItems = new AtomicLong();
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			// the product cache must not refresh itself while being measured
+			System.setProperty("products.cache.refreshSeconds", "0");
+
+			data = new SampleData(salesOrders, lineItemsPerOrder, products);
+			database = EmbeddedDatabase.create(data);
+			backend = ProductBackendStub.start(Integer.getInteger("benchmarks.stubPort", 18081), data, backendLatencyMillis);
+			CDSDataAccess.getInstance().setDataSource(database.getDataSource());
+			service = new EPMSampleService();
+
+			querySalesOrders = Requests.query("SalesOrders");
+			queryProducts = Requests.query("Products");
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < REQUESTS; i++) {
+				int salesOrder = random.nextInt(salesOrders);
+				int position = 1 + random.nextInt(lineItemsPerOrder);
+				readSalesOrder[i] = Requests.read("SalesOrders", SampleData.salesOrderID(salesOrder));
+				readProduct[i] = Requests.read("Products", SampleData.productID(random.nextInt(products)));
+				salesOrderLineItems[i] = Requests.navigationQuery("SalesOrderLineItems", "SalesOrders", SampleData.salesOrderID(salesOrder));
+				lineItemProduct[i] = Requests.navigationRead("Products", "SalesOrderLineItems", SampleData.lineItemID(salesOrder, position));
+			}
+
+			// a handler answering with an error would be measured at the speed of its error path
+			check("getAllSalesOrders", service.getAllSalesOrders(querySalesOrders).getErrorResponse());
+			check("getSalesOrder", service.getSalesOrder(readSalesOrder[0]).getErrorResponse());
+			check("getSOLineItemsForSO", service.getSOLineItemsForSO(salesOrderLineItems[0]).getErrorResponse());
+			check("getProductForSOItem", service.getProductForSOItem(lineItemProduct[0]).getErrorResponse());
+			check("getProducts", service.getProducts(queryProducts).getErrorResponse());
+			check("getProduct", service.getProduct(readProduct[0]).getErrorResponse());
+			Writes writes = new Writes();
+			writes.setUp(this);
+			check("createSalesOrderLineItems", service.createSalesOrderLineItems(writes.createLineItem).getErrorResponse());
+			check("updateSalesOrder", service.updateSalesOrder(writes.updateSalesOrder).getErrorResponse());
+		}
+
+		private static void check(String handler, ErrorResponse error) {
+			if (error != null) {
+				throw new IllegalStateException(handler + " answered with " + error.getStatusCode() + ": " + error.getMessage());
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			ProductCache.getInstance().invalidateAll();
+			backend.close();
+			database.close();
+		}
+
+		<T> T next(T[] requests) {
+			return requests[ThreadLocalRandom.current().nextInt(requests.length)];
+		}
+	}
+
+	/**
+	 * Write requests carry data of their own; they are built before every call, outside the
+	 * measurement. This adds harness overhead, which is small next to the database round-trip.
+	 */
+	@State(Scope.Thread)
+	public static class Writes {
+
+		CreateRequest createLineItem;
+		UpdateRequest updateSalesOrder;
+
+		@Setup(Level.Invocation)
+		public void setUp(Environment environment) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int salesOrder = random.nextInt(environment.salesOrders);
+
+			Map<String, Object> lineItem = new HashMap<>();
+			lineItem.put("SOLineItemID", "BM" + Thread.currentThread().getId() + "-" + environment.createdLineItems.incrementAndGet());
+			lineItem.put("SalesOrderID", SampleData.salesOrderID(salesOrder));
+			lineItem.put("ItemPosition", 1000);
+			lineItem.put("ProductID", SampleData.productID(random.nextInt(environment.products)));
+			lineItem.put("Quantity", 1);
+			lineItem.put("GrossAmount", 10);
+			createLineItem = Requests.create("SalesOrderLineItems", lineItem);
+
+			Map<String, Object> salesOrderData = new HashMap<>();
+			salesOrderData.put("SalesOrderID", SampleData.salesOrderID(salesOrder));
+			salesOrderData.put("Note", "Updated " + random.nextInt());
+			updateSalesOrder = Requests.update("SalesOrders", salesOrderData);
+		}
+	}
+
+	@Benchmark
+	public QueryResponse querySalesOrders(Environment environment) {
+		return environment.service.getAllSalesOrders(environment.querySalesOrders);
+	}
+
+	@Benchmark
+	public ReadResponse readSalesOrder(Environment environment) {
+		return environment.service.getSalesOrder(environment.next(environment.readSalesOrder));
+	}
+
+	@Benchmark
+	public QueryResponse navigateToSalesOrderLineItems(Environment environment) {
+		return environment.service.getSOLineItemsForSO(environment.next(environment.salesOrderLineItems));
+	}
+
+	@Benchmark
+	public ReadResponse navigateToProduct(Environment environment) {
+		return environment.service.getProductForSOItem(environment.next(environment.lineItemProduct));
+	}
+
+	@Benchmark
+	public QueryResponse queryProducts(Environment environment) {
+		return environment.service.getProducts(environment.queryProducts);
+	}
+
+	@Benchmark
+	public ReadResponse readProduct(Environment environment) {
+		return environment.service.getProduct(environment.next(environment.readProduct));
+	}
+
+	/**
+	 * Reads a product through the backend stub, bypassing the product cache.
+	 */
+	@Benchmark
+	public ReadResponse readProductFromBackend(Environment environment) {
+		ReadRequest request = environment.next(environment.readProduct);
+		ProductCache.getInstance().invalidate(request.getKeys().get("ProductID").toString());
+		return environment.service.getProduct(request);
+	}
+
+	@Benchmark
+	public CreateResponse createSalesOrderLineItem(Environment environment, Writes writes) {
+		return environment.service.createSalesOrderLineItems(writes.createLineItem);
+	}
+
+	@Benchmark
+	public UpdateResponse updateSalesOrder(Environment environment, Writes writes) {
+		return environment.service.updateSalesOrder(writes.updateSalesOrder);
+	}
+}
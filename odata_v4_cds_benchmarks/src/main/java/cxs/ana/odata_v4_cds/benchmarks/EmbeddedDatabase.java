@@ -0,0 +1,229 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/**
+ * In-memory H2 stand-in for the HDI container. The tables are created from the
+ * EPMSample.hdbcds of the service, so the benchmarks follow schema changes, and filled with
+ * {@link SampleData}.
+ */
+public class EmbeddedDatabase implements AutoCloseable {
+
+	static final String SCHEMA_RESOURCE = "EPMSample.hdbcds";
+
+	private static final AtomicInteger databaseNumber = new AtomicInteger();
+
+	private static final Pattern CONTEXT = Pattern.compile("context\\s+(\\w+)");
+	private static final Pattern TYPE = Pattern.compile("type\\s+(\\w+)\\s*:\\s*([^;]+);");
+	private static final Pattern ENTITY = Pattern
+			.compile("entity\\s+(\\w+)\\s*\\{([^{}]*)\\}(?:\\s*technical\\s+configuration\\s*\\{([^{}]*)\\})?");
+	private static final Pattern INDEX = Pattern.compile("(unique\\s+)?index\\s+(\\w+)\\s+on\\s*\\(([^)]*)\\)[^;]*;");
+	private static final Pattern ELEMENT = Pattern.compile("(key\\s+)?(\\w+)\\s*:\\s*([^;]+);");
+	private static final Pattern SIZED_TYPE = Pattern.compile("(\\w+)\\s*(?:\\(([^)]*)\\))?.*");
+
+	private final JdbcConnectionPool pool;
+
+	private EmbeddedDatabase(JdbcConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Creates a fresh database with the EPMSample schema and the given data.
+	 */
+	public static EmbeddedDatabase create(SampleData data) throws SQLException, IOException {
+		JdbcConnectionPool pool = JdbcConnectionPool.create(
+				"jdbc:h2:mem:epmsample" + databaseNumber.incrementAndGet() + ";DB_CLOSE_DELAY=-1", "sa", "");
+		pool.setMaxConnections(Integer.getInteger("benchmarks.poolSize", 32));
+		EmbeddedDatabase database = new EmbeddedDatabase(pool);
+		try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+			for (String ddl : toDdl(readSchema())) {
+				statement.execute(ddl);
+			}
+			database.load(connection, data);
+		}
+		return database;
+	}
+
+	public DataSource getDataSource() {
+		return pool;
+	}
+
+	@Override
+	public void close() {
+		try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("SHUTDOWN");
+		} catch (SQLException e) {
+			// already closed
+		}
+		pool.dispose();
+	}
+
+	/**
+	 * Translates the entities of a .hdbcds context into CREATE TABLE statements named like the
+	 * HDI tables ("context.Entity"). Associations are skipped; their foreign keys are plain elements.
+	 * The indexes of a technical configuration become CREATE INDEX statements.
+	 */
+	static List<String> toDdl(String hdbcds) {
+		String source = hdbcds.replaceAll("//[^\\n]*", "").replaceAll("(?s)/\\*.*?\\*/", "");
+		Matcher context = CONTEXT.matcher(source);
+		if (!context.find()) {
+			throw new IllegalArgumentException("No context in " + SCHEMA_RESOURCE);
+		}
+		Map<String, String> types = new HashMap<>();
+		Matcher type = TYPE.matcher(source);
+		while (type.find()) {
+			types.put(type.group(1), type.group(2).trim());
+		}
+
+		List<String> statements = new ArrayList<>();
+		Matcher entity = ENTITY.matcher(source);
+		while (entity.find()) {
+			StringBuilder ddl = new StringBuilder("CREATE TABLE \"").append(context.group(1)).append('.')
+					.append(entity.group(1)).append("\" (");
+			List<String> keys = new ArrayList<>();
+			Matcher element = ELEMENT.matcher(entity.group(2));
+			boolean first = true;
+			while (element.find()) {
+				String definition = element.group(3).trim();
+				if (definition.startsWith("association") || definition.startsWith("composition")) {
+					continue;
+				}
+				String sqlType = toSqlType(definition, types);
+				ddl.append(first ? "" : ", ").append('"').append(element.group(2)).append("\" ").append(sqlType);
+				if (definition.contains("not null")) {
+					ddl.append(" NOT NULL");
+				}
+				if (element.group(1) != null) {
+					keys.add('"' + element.group(2) + '"');
+				}
+				first = false;
+			}
+			if (!keys.isEmpty()) {
+				ddl.append(", PRIMARY KEY (").append(String.join(", ", keys)).append(')');
+			}
+			statements.add(ddl.append(')').toString());
+
+			if (entity.group(3) != null) {
+				Matcher index = INDEX.matcher(entity.group(3));
+				while (index.find()) {
+					List<String> columns = new ArrayList<>();
+					for (String column : index.group(3).split(",")) {
+						columns.add('"' + column.trim() + '"');
+					}
+					statements.add("CREATE " + (index.group(1) != null ? "UNIQUE " : "") + "INDEX \"" + context.group(1) + '.'
+							+ entity.group(1) + '.' + index.group(2) + "\" ON \"" + context.group(1) + '.' + entity.group(1) + "\" ("
+							+ String.join(", ", columns) + ')');
+				}
+			}
+		}
+		return statements;
+	}
+
+	private static String toSqlType(String definition, Map<String, String> types) {
+		Matcher sized = SIZED_TYPE.matcher(definition);
+		if (!sized.matches()) {
+			throw new IllegalArgumentException("Unsupported element type " + definition);
+		}
+		String name = sized.group(1);
+		if (types.containsKey(name)) {
+			return toSqlType(types.get(name), types);
+		}
+		String size = sized.group(2);
+		switch (name) {
+		case "String":
+			return "NVARCHAR(" + (size == null ? "5000" : size.trim()) + ")";
+		case "LargeString":
+			return "NCLOB";
+		case "Integer":
+			return "INTEGER";
+		case "Integer64":
+			return "BIGINT";
+		case "Decimal":
+			return size == null ? "DECIMAL(34, 10)" : "DECIMAL(" + size + ")";
+		case "DecimalFloat":
+		case "BinaryFloat":
+			return "DOUBLE";
+		case "Boolean":
+			return "BOOLEAN";
+		case "LocalDate":
+			return "DATE";
+		case "LocalTime":
+			return "TIME";
+		case "UTCDateTime":
+		case "UTCTimestamp":
+			return "TIMESTAMP";
+		default:
+			throw new IllegalArgumentException("Unsupported element type " + definition);
+		}
+	}
+
+	private void load(Connection connection, SampleData data) throws SQLException {
+		connection.setAutoCommit(false);
+		try (PreparedStatement salesOrders = connection.prepareStatement(
+				"INSERT INTO \"EPMSample.SalesOrders\" (\"SalesOrderID\", \"Note\", \"CustomerName\", \"GrossAmount\") VALUES (?, ?, ?, ?)");
+				PreparedStatement lineItems = connection.prepareStatement(
+						"INSERT INTO \"EPMSample.SalesOrderLineItems\" (\"SOLineItemID\", \"SalesOrderID\", \"ItemPosition\", \"ProductID\", \"Quantity\", \"GrossAmount\") VALUES (?, ?, ?, ?, ?, ?)")) {
+			for (int order = 0; order < data.getSalesOrders(); order++) {
+				int grossAmount = 0;
+				for (int position = 1; position <= data.getLineItemsPerOrder(); position++) {
+					int quantity = 1 + (order + position) % 10;
+					int amount = quantity * (10 + position);
+					grossAmount += amount;
+					lineItems.setString(1, SampleData.lineItemID(order, position));
+					lineItems.setString(2, SampleData.salesOrderID(order));
+					lineItems.setInt(3, position * 10);
+					lineItems.setString(4, data.productOf(order, position));
+					lineItems.setInt(5, quantity);
+					lineItems.setInt(6, amount);
+					lineItems.addBatch();
+				}
+				salesOrders.setString(1, SampleData.salesOrderID(order));
+				salesOrders.setString(2, "Benchmark order " + order);
+				salesOrders.setString(3, "Customer " + order % 100);
+				salesOrders.setInt(4, grossAmount);
+				salesOrders.addBatch();
+				if (order % 500 == 499) {
+					salesOrders.executeBatch();
+					lineItems.executeBatch();
+				}
+			}
+			salesOrders.executeBatch();
+			lineItems.executeBatch();
+			connection.commit();
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private static String readSchema() throws IOException {
+		try (InputStream in = EmbeddedDatabase.class.getClassLoader().getResourceAsStream(SCHEMA_RESOURCE)) {
+			if (in == null) {
+				throw new IOException(SCHEMA_RESOURCE + " not found on the classpath");
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+
+import cxs.ana.odata_v4_cds.BatchRequestFilter;
+import cxs.ana.odata_v4_cds.CDSDataAccess;
+import cxs.ana.odata_v4_cds.CompressionFilter;
+import cxs.ana.odata_v4_cds.ConditionalRequestFilter;
+import cxs.ana.odata_v4_cds.EPMSampleServiceListener;
+import cxs.ana.odata_v4_cds.MetadataFilter;
+import cxs.ana.odata_v4_cds.MonitoringServlet;
+import cxs.ana.odata_v4_cds.RequestContextFilter;
+import cxs.ana.odata_v4_cds.StreamingQueryFilter;
+
+/**
+ * The OData service on an embedded Tomcat, deployed like web.xml does, with the HDI DataSource
+ * replaced by an {@link EmbeddedDatabase} and ErpQueryEndpoint by a {@link ProductBackendStub}.
+ * <p>
+ * Run on its own (e.g. with -Xmx matching the instance size in manifest.yml) and point
+ * {@link LoadGenerator} at it with load.target, so the load generator does not compete with the
+ * service for CPU and memory:
+ * {@code java -Xmx192m -cp benchmarks.jar cxs.ana.odata_v4_cds.benchmarks.EmbeddedServiceServer}
+ */
+public class EmbeddedServiceServer implements AutoCloseable {
+
+	static final String ODATA_SERVLET = "com.sap.cloud.sdk.service.prov.v4.rt.core.web.ODataServlet";
+
+	private final EmbeddedDatabase database;
+	private final ProductBackendStub backend;
+	private final Tomcat tomcat;
+
+	private EmbeddedServiceServer(EmbeddedDatabase database, ProductBackendStub backend, Tomcat tomcat) {
+		this.database = database;
+		this.backend = backend;
+		this.tomcat = tomcat;
+	}
+
+	/**
+	 * Starts the stand-ins and the service.
+	 *
+	 * @param port HTTP port of the service; 0 picks a free one
+	 * @param maxThreads request threads of the connector (Tomcat default: 200)
+	 */
+	public static EmbeddedServiceServer start(SampleData data, int port, int maxThreads, int stubPort, long backendLatencyMillis)
+			throws Exception {
+		EmbeddedDatabase database = EmbeddedDatabase.create(data);
+		ProductBackendStub backend = ProductBackendStub.start(stubPort, data, backendLatencyMillis);
+		CDSDataAccess.getInstance().setDataSource(database.getDataSource());
+
+		Tomcat tomcat = new Tomcat();
+		File baseDir = Files.createTempDirectory("epmsample-tomcat").toFile();
+		baseDir.deleteOnExit();
+		tomcat.setBaseDir(baseDir.getAbsolutePath());
+		Connector connector = new Connector();
+		connector.setPort(port);
+		connector.setProperty("maxThreads", String.valueOf(maxThreads));
+		tomcat.setConnector(connector);
+
+		Context context = tomcat.addContext("", baseDir.getAbsolutePath());
+		context.addParameter("package", "cxs.ana.odata_v4_cds");
+		context.addApplicationListener(EPMSampleServiceListener.class.getName());
+		// same order as in web.xml
+		addFilter(context, RequestContextFilter.class.getName(), "/odata/v4/*");
+		addFilter(context, CompressionFilter.class.getName(), "/odata/v4/*");
+		addFilter(context, ConditionalRequestFilter.class.getName(), "/odata/v4/*");
+		addFilter(context, MetadataFilter.class.getName(), "/odata/v4/*");
+		addFilter(context, BatchRequestFilter.class.getName(), "/odata/v4/*");
+		addFilter(context, StreamingQueryFilter.class.getName(), "/odata/v4/*");
+		Wrapper odataServlet = Tomcat.addServlet(context, "ODataServlet", ODATA_SERVLET);
+		odataServlet.setLoadOnStartup(1);
+		context.addServletMappingDecoded("/odata/v4/*", "ODataServlet");
+		Tomcat.addServlet(context, "MonitoringServlet", MonitoringServlet.class.getName());
+		context.addServletMappingDecoded("/monitoring/*", "MonitoringServlet");
+
+		try {
+			tomcat.start();
+		} catch (LifecycleException e) {
+			backend.close();
+			database.close();
+			throw e;
+		}
+		return new EmbeddedServiceServer(database, backend, tomcat);
+	}
+
+	public int getPort() {
+		return tomcat.getConnector().getLocalPort();
+	}
+
+	public String getServiceRoot() {
+		return "http://localhost:" + getPort() + "/odata/v4/EPMSampleService/";
+	}
+
+	@Override
+	public void close() throws LifecycleException {
+		try {
+			tomcat.stop();
+			tomcat.destroy();
+		} finally {
+			backend.close();
+			database.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		EmbeddedServiceServer server = start(LoadGenerator.getSampleData(), Integer.getInteger("load.port", 8080),
+				Integer.getInteger("load.maxThreads", 200), Integer.getInteger("benchmarks.stubPort", 18081),
+				Long.getLong("load.backendLatencyMillis", 0));
+		System.out.println("EPMSampleService listening on " + server.getServiceRoot());
+		server.tomcat.getServer().await();
+	}
+
+	private static void addFilter(Context context, String filterClass, String urlPattern) {
+		String name = filterClass.substring(filterClass.lastIndexOf('.') + 1);
+		FilterDef filterDef = new FilterDef();
+		filterDef.setFilterName(name);
+		filterDef.setFilterClass(filterClass);
+		context.addFilterDef(filterDef);
+		FilterMap filterMap = new FilterMap();
+		filterMap.setFilterName(name);
+		filterMap.addURLPatternDecoded(urlPattern);
+		context.addFilterMap(filterMap);
+	}
+}
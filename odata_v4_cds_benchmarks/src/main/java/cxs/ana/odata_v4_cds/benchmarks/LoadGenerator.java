@@ -0,0 +1,362 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Open-loop load test of the OData service: replays a weighted mix of {@link LoadScenario}s at a
+ * series of target rates and reports throughput, latency percentiles and error rates per step,
+ * and the first step at which the service saturated. Latencies are measured from the time a
+ * request was due, not from when a client thread got to send it, so queueing in the generator
+ * counts against the service instead of hiding it.
+ * <p>
+ * Without load.target, the service is started in-process on an {@link EmbeddedServiceServer}.
+ * Settings (system properties):
+ * <ul>
+ * <li>load.target: service root URL of a running service</li>
+ * <li>load.mix: weights per scenario, default
+ * readSalesOrder:30,querySalesOrders:10,salesOrderLineItems:20,lineItemProduct:20,readProduct:5,createLineItem:10,batch:5</li>
+ * <li>load.rates: requests per second of each step, default 25,50,100,200,400,800</li>
+ * <li>load.stepSeconds (30), load.warmupSeconds (15)</li>
+ * <li>load.connections: concurrent client connections (256)</li>
+ * <li>load.sloP99Millis (500), load.maxErrorRate (0.01): limits above which a step counts as saturated</li>
+ * <li>load.salesOrders, load.lineItemsPerOrder, load.products, load.backendLatencyMillis, load.maxThreads:
+ * data volumes and stand-ins of the in-process service</li>
+ * <li>load.report: CSV file with the per-scenario results (load-report.csv)</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+	private static final String DEFAULT_MIX = "readSalesOrder:30,querySalesOrders:10,salesOrderLineItems:20,lineItemProduct:20,readProduct:5,createLineItem:10,batch:5";
+	private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+	// status line of a part of a $batch response
+	private static final Pattern PART_STATUS = Pattern.compile("^HTTP/1\\.1 (\\d{3})", Pattern.MULTILINE);
+
+	private final String serviceRoot;
+	private final SampleData data;
+	private final LoadScenario[] scenarios;
+	private final int[] cumulativeWeights;
+	private final int connections = Integer.getInteger("load.connections", 256);
+	private final long sloP99Micros = TimeUnit.MILLISECONDS.toMicros(Long.getLong("load.sloP99Millis", 500));
+	private final double maxErrorRate = Double.parseDouble(System.getProperty("load.maxErrorRate", "0.01"));
+	private final ThreadPoolExecutor clients;
+
+	LoadGenerator(String serviceRoot, SampleData data, String mix) {
+		this.serviceRoot = serviceRoot.endsWith("/") ? serviceRoot : serviceRoot + "/";
+		this.data = data;
+		String[] entries = mix.split(",");
+		scenarios = new LoadScenario[entries.length];
+		cumulativeWeights = new int[entries.length];
+		int total = 0;
+		for (int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].trim().split(":");
+			scenarios[i] = LoadScenario.forKey(entry[0].trim());
+			total += entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1;
+			cumulativeWeights[i] = total;
+		}
+		clients = new ThreadPoolExecutor(connections, connections, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "load-client");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	public static void main(String[] args) throws Exception {
+		SampleData data = getSampleData();
+		String target = System.getProperty("load.target");
+		EmbeddedServiceServer server = null;
+		if (target == null) {
+			server = EmbeddedServiceServer.start(data, 0, Integer.getInteger("load.maxThreads", 200),
+					Integer.getInteger("benchmarks.stubPort", 18081), Long.getLong("load.backendLatencyMillis", 0));
+			target = server.getServiceRoot();
+		}
+		try {
+			LoadGenerator generator = new LoadGenerator(target, data, System.getProperty("load.mix", DEFAULT_MIX));
+			generator.run(parseRates(System.getProperty("load.rates", "25,50,100,200,400,800")),
+					Integer.getInteger("load.stepSeconds", 30), Integer.getInteger("load.warmupSeconds", 15),
+					System.getProperty("load.report", "load-report.csv"));
+		} finally {
+			if (server != null) {
+				server.close();
+			}
+		}
+	}
+
+	static SampleData getSampleData() {
+		return new SampleData(Integer.getInteger("load.salesOrders", 10000), Integer.getInteger("load.lineItemsPerOrder", 5),
+				Integer.getInteger("load.products", 500));
+	}
+
+	void run(int[] rates, int stepSeconds, int warmupSeconds, String reportFile) throws IOException, InterruptedException {
+		System.out.println("Load test of " + serviceRoot + " with " + connections + " connections");
+		if (warmupSeconds > 0) {
+			runStep(rates[0], warmupSeconds);
+		}
+		List<StepResult> results = new ArrayList<>();
+		System.out.println(String.format(Locale.ROOT, "%8s %9s %9s %9s %9s %9s %8s %8s %s",
+				"target/s", "actual/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "dropped", "pool peak"));
+		StepResult saturation = null;
+		for (int rate : rates) {
+			StepResult result = runStep(rate, stepSeconds);
+			results.add(result);
+			System.out.println(result.toLine());
+			if (result.getSaturationReason() != null) {
+				saturation = result;
+				break;
+			}
+		}
+		clients.shutdownNow();
+
+		StepResult sustained = null;
+		for (StepResult result : results) {
+			if (result.getSaturationReason() == null) {
+				sustained = result;
+			}
+		}
+		System.out.println(sustained == null ? "No step was sustained."
+				: "Highest sustained rate: " + sustained.targetRate + " requests/s");
+		System.out.println(saturation == null ? "The service did not saturate up to " + rates[rates.length - 1] + " requests/s."
+				: "Saturated at " + saturation.targetRate + " requests/s: " + saturation.getSaturationReason());
+		writeReport(results, reportFile);
+		System.out.println("Per-scenario results written to " + reportFile);
+	}
+
+	private StepResult runStep(int rate, int seconds) throws InterruptedException {
+		StepResult result = new StepResult(rate);
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long requests = (long) rate * seconds;
+		long start = System.nanoTime();
+		for (long i = 0; i < requests; i++) {
+			long due = start + i * intervalNanos;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			LoadScenario scenario = nextScenario();
+			if (clients.getQueue().size() >= connections * 4) {
+				// the service fell so far behind that queueing more would only measure the generator
+				result.dropped(scenario);
+				continue;
+			}
+			LoadScenario.Request request = scenario.next(data);
+			clients.execute(() -> result.record(scenario, send(request), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due)));
+		}
+		while (clients.getActiveCount() > 0 || !clients.getQueue().isEmpty()) {
+			Thread.sleep(10);
+		}
+		result.finish(System.nanoTime() - start, scrapePoolPeak());
+		return result;
+	}
+
+	private LoadScenario nextScenario() {
+		int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (pick < cumulativeWeights[i]) {
+				return scenarios[i];
+			}
+		}
+		return scenarios[scenarios.length - 1];
+	}
+
+	/**
+	 * @return the HTTP status, the status of the first failed part of a $batch response, or -1 if
+	 *         the request failed without one
+	 */
+	private int send(LoadScenario.Request request) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(serviceRoot + request.resourcePath.replace(" ", "%20")).openConnection();
+			connection.setConnectTimeout(10000);
+			connection.setReadTimeout(60000);
+			connection.setRequestMethod(request.method);
+			connection.setRequestProperty("Accept", "application/json");
+			if (request.body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", request.contentType);
+				connection.setFixedLengthStreamingMode(request.body.length);
+				try (OutputStream out = connection.getOutputStream()) {
+					out.write(request.body);
+				}
+			}
+			int status = connection.getResponseCode();
+			String contentType = connection.getContentType();
+			// a $batch request is answered with 200 even if its parts failed
+			ByteArrayOutputStream parts = status < 400 && contentType != null && contentType.startsWith("multipart/mixed")
+					? new ByteArrayOutputStream() : null;
+			// read the body completely so the connection can be reused
+			try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				if (in != null) {
+					byte[] buffer = new byte[8192];
+					for (int read; (read = in.read(buffer)) >= 0;) {
+						if (parts != null) {
+							parts.write(buffer, 0, read);
+						}
+					}
+				}
+			}
+			return parts == null ? status : getPartStatus(new String(parts.toByteArray(), StandardCharsets.UTF_8), status);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the status of the first part of a multipart $batch response that failed, or status if
+	 *         none did; a failed change set is answered with the error of one part
+	 */
+	static int getPartStatus(String body, int status) {
+		Matcher matcher = PART_STATUS.matcher(body);
+		while (matcher.find()) {
+			int partStatus = Integer.parseInt(matcher.group(1));
+			if (partStatus >= 400) {
+				return partStatus;
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Reads the peak number of borrowed connections from the service's monitoring endpoint.
+	 */
+	private String scrapePoolPeak() {
+		String metricsUrl = serviceRoot.replaceFirst("/odata/v4/.*$", "/monitoring/metrics");
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new URL(metricsUrl).openStream(), StandardCharsets.UTF_8))) {
+			for (String line; (line = in.readLine()) != null;) {
+				if (line.startsWith("epmsample_pool_peak_active_connections ")) {
+					return line.substring(line.indexOf(' ') + 1);
+				}
+			}
+		} catch (IOException e) {
+			// monitoring disabled, restricted to operators or not reachable
+		}
+		return "-";
+	}
+
+	private void writeReport(List<StepResult> results, String reportFile) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(reportFile), StandardCharsets.UTF_8))) {
+			out.println("target_rate,scenario,requests,errors,dropped,p50_ms,p99_ms,p999_ms,max_ms");
+			for (StepResult result : results) {
+				for (Map.Entry<LoadScenario, ScenarioStats> scenario : result.scenarios.entrySet()) {
+					ScenarioStats stats = scenario.getValue();
+					Histogram latency = stats.latency;
+					out.println(String.format(Locale.ROOT, "%d,%s,%d,%d,%d,%.3f,%.3f,%.3f,%.3f", result.targetRate,
+							scenario.getKey().getKey(), latency.getTotalCount(), stats.errors.get(), stats.dropped.get(),
+							millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+							millis(latency.getValueAtPercentile(99.9)), millis(latency.getMaxValue())));
+				}
+			}
+		}
+	}
+
+	private static int[] parseRates(String rates) {
+		String[] values = rates.split(",");
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = Integer.parseInt(values[i].trim());
+		}
+		return result;
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	private static final class ScenarioStats {
+		final Histogram latency = new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3);
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+	}
+
+	private final class StepResult {
+		final int targetRate;
+		final Map<LoadScenario, ScenarioStats> scenarios = new EnumMap<>(LoadScenario.class);
+		final Histogram latency = new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3);
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		double actualRate;
+		String poolPeak;
+
+		StepResult(int targetRate) {
+			this.targetRate = targetRate;
+			for (LoadScenario scenario : LoadGenerator.this.scenarios) {
+				this.scenarios.put(scenario, new ScenarioStats());
+			}
+		}
+
+		void record(LoadScenario scenario, int status, long micros) {
+			long value = Math.min(micros, HIGHEST_LATENCY_MICROS);
+			ScenarioStats stats = scenarios.get(scenario);
+			stats.latency.recordValue(value);
+			latency.recordValue(value);
+			if (status < 200 || status >= 400) {
+				stats.errors.incrementAndGet();
+				errors.incrementAndGet();
+			}
+		}
+
+		void dropped(LoadScenario scenario) {
+			scenarios.get(scenario).dropped.incrementAndGet();
+			dropped.incrementAndGet();
+		}
+
+		void finish(long elapsedNanos, String poolPeak) {
+			this.actualRate = latency.getTotalCount() * 1e9 / elapsedNanos;
+			this.poolPeak = poolPeak;
+		}
+
+		double getErrorRate() {
+			long total = latency.getTotalCount() + dropped.get();
+			return total == 0 ? 0 : (double) (errors.get() + dropped.get()) / total;
+		}
+
+		/**
+		 * @return why the service could not keep up at this rate, or null if it did
+		 */
+		String getSaturationReason() {
+			if (actualRate < targetRate * 0.95) {
+				return String.format(Locale.ROOT, "only %.1f of %d requests/s completed", actualRate, targetRate);
+			}
+			if (latency.getValueAtPercentile(99) > sloP99Micros) {
+				return String.format(Locale.ROOT, "p99 %.1f ms above %.1f ms", millis(latency.getValueAtPercentile(99)), millis(sloP99Micros));
+			}
+			if (getErrorRate() > maxErrorRate) {
+				return String.format(Locale.ROOT, "error rate %.2f%% above %.2f%%", getErrorRate() * 100, maxErrorRate * 100);
+			}
+			return null;
+		}
+
+		String toLine() {
+			return String.format(Locale.ROOT, "%8d %9.1f %9.1f %9.1f %9.1f %9.1f %7.2f%% %8d %s", targetRate, actualRate,
+					millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+					millis(latency.getValueAtPercentile(99.9)), millis(latency.getMaxValue()), getErrorRate() * 100,
+					dropped.get(), poolPeak);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The kinds of EPMSampleService requests the {@link LoadGenerator} replays. Each scenario picks
+ * random keys of the generated {@link SampleData}; creates use fresh keys.
+ */
+public enum LoadScenario {
+
+	READ_SALES_ORDER("readSalesOrder") {
+		@Override
+		Request next(SampleData data) {
+			return get("SalesOrders('" + randomSalesOrder(data) + "')");
+		}
+	},
+	QUERY_SALES_ORDERS("querySalesOrders") {
+		@Override
+		Request next(SampleData data) {
+			int skip = ThreadLocalRandom.current().nextInt(Math.max(1, data.getSalesOrders() - 50));
+			return get("SalesOrders?$top=50&$skip=" + skip);
+		}
+	},
+	SALES_ORDER_LINE_ITEMS("salesOrderLineItems") {
+		@Override
+		Request next(SampleData data) {
+			return get("SalesOrders('" + randomSalesOrder(data) + "')/SalesOrderLineItems");
+		}
+	},
+	LINE_ITEM_PRODUCT("lineItemProduct") {
+		@Override
+		Request next(SampleData data) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			return get("SalesOrderLineItems('" + SampleData.lineItemID(random.nextInt(data.getSalesOrders()),
+					1 + random.nextInt(data.getLineItemsPerOrder())) + "')/Product");
+		}
+	},
+	READ_PRODUCT("readProduct") {
+		@Override
+		Request next(SampleData data) {
+			return get("Products('" + SampleData.productID(ThreadLocalRandom.current().nextInt(data.getProducts())) + "')");
+		}
+	},
+	CREATE_LINE_ITEM("createLineItem") {
+		@Override
+		Request next(SampleData data) {
+			return new Request("POST", "SalesOrderLineItems", "application/json", lineItemJson(data));
+		}
+	},
+	BATCH("batch") {
+		@Override
+		Request next(SampleData data) {
+			// one change set with a create and an update, as a client saving an edited order would send;
+			// the LoadGenerator counts it as an error if a part failed, although $batch answers 200
+			String salesOrder = randomSalesOrder(data);
+			String body = "--batch_load\r\n"
+					+ "Content-Type: multipart/mixed; boundary=changeset_load\r\n\r\n"
+					+ "--changeset_load\r\n"
+					+ "Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\nContent-ID: 1\r\n\r\n"
+					+ "POST SalesOrderLineItems HTTP/1.1\r\nContent-Type: application/json\r\n\r\n"
+					+ lineItemJson(data) + "\r\n"
+					+ "--changeset_load\r\n"
+					+ "Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\nContent-ID: 2\r\n\r\n"
+					+ "PATCH SalesOrders('" + salesOrder + "') HTTP/1.1\r\nContent-Type: application/json\r\n\r\n"
+					+ "{\"Note\":\"Updated by load test\"}\r\n"
+					+ "--changeset_load--\r\n\r\n"
+					+ "--batch_load--\r\n";
+			return new Request("POST", "$batch", "multipart/mixed; boundary=batch_load", body);
+		}
+	};
+
+	private static final AtomicLong createdLineItems = new AtomicLong();
+
+	private final String key;
+
+	LoadScenario(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return the name of the scenario in load.mix and in the report
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	abstract Request next(SampleData data);
+
+	static LoadScenario forKey(String key) {
+		for (LoadScenario scenario : values()) {
+			if (scenario.key.equals(key)) {
+				return scenario;
+			}
+		}
+		throw new IllegalArgumentException("Unknown load scenario " + key);
+	}
+
+	private static Request get(String resourcePath) {
+		return new Request("GET", resourcePath, null, null);
+	}
+
+	private static String randomSalesOrder(SampleData data) {
+		return SampleData.salesOrderID(ThreadLocalRandom.current().nextInt(data.getSalesOrders()));
+	}
+
+	private static String lineItemJson(SampleData data) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return "{\"SOLineItemID\":\"LT" + createdLineItems.incrementAndGet() + "-" + random.nextInt(1000000) + "\","
+				+ "\"SalesOrderID\":\"" + randomSalesOrder(data) + "\","
+				+ "\"ItemPosition\":1000,"
+				+ "\"ProductID\":\"" + SampleData.productID(random.nextInt(data.getProducts())) + "\","
+				+ "\"Quantity\":1,\"GrossAmount\":10}";
+	}
+
+	/**
+	 * One HTTP request relative to the service root.
+	 */
+	static final class Request {
+		final String method;
+		final String resourcePath;
+		final String contentType;
+		final byte[] body;
+
+		Request(String method, String resourcePath, String contentType, String body) {
+			this.method = method;
+			this.resourcePath = resourcePath;
+			this.contentType = contentType;
+			this.body = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+}
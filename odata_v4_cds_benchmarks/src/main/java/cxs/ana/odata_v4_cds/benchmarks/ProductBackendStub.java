@@ -0,0 +1,169 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the ErpQueryEndpoint destination: serves the GWSAMPLE_BASIC ProductSet
+ * in OData V2 JSON format, including single reads, the ProductID eq ... or ... filters of the
+ * product prefetch, and a minimal $metadata document. An optional latency simulates the WAN
+ * round-trip to the real backend.
+ */
+public class ProductBackendStub implements AutoCloseable {
+
+	static final String SERVICE_PATH = "/sap/opu/odata/IWBEP/GWSAMPLE_BASIC";
+
+	private static final Pattern SINGLE_PRODUCT = Pattern.compile("/ProductSet\\('((?:[^']|'')*)'\\)");
+	private static final Pattern PRODUCT_ID_FILTER = Pattern.compile("ProductID eq '((?:[^']|'')*)'");
+
+	private static final String METADATA = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<edmx:Edmx Version=\"1.0\" xmlns:edmx=\"http://schemas.microsoft.com/ado/2007/06/edmx\""
+			+ " xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\">"
+			+ "<edmx:DataServices m:DataServiceVersion=\"2.0\">"
+			+ "<Schema Namespace=\"GWSAMPLE_BASIC\" xmlns=\"http://schemas.microsoft.com/ado/2008/09/edm\">"
+			+ "<EntityType Name=\"Product\"><Key><PropertyRef Name=\"ProductID\"/></Key>"
+			+ "<Property Name=\"ProductID\" Type=\"Edm.String\" Nullable=\"false\" MaxLength=\"10\"/>"
+			+ "<Property Name=\"Category\" Type=\"Edm.String\" Nullable=\"false\" MaxLength=\"40\"/>"
+			+ "<Property Name=\"Name\" Type=\"Edm.String\" Nullable=\"false\" MaxLength=\"255\"/>"
+			+ "<Property Name=\"Description\" Type=\"Edm.String\" MaxLength=\"255\"/>"
+			+ "</EntityType>"
+			+ "<EntityContainer Name=\"GWSAMPLE_BASIC_Entities\" m:IsDefaultEntityContainer=\"true\">"
+			+ "<EntitySet Name=\"ProductSet\" EntityType=\"GWSAMPLE_BASIC.Product\"/>"
+			+ "</EntityContainer></Schema></edmx:DataServices></edmx:Edmx>";
+
+	private final HttpServer server;
+	private final Map<String, String> products = new LinkedHashMap<>();
+	private final long latencyMillis;
+
+	private ProductBackendStub(HttpServer server, SampleData data, long latencyMillis) {
+		this.server = server;
+		this.latencyMillis = latencyMillis;
+		for (int product = 0; product < data.getProducts(); product++) {
+			String productID = SampleData.productID(product);
+			products.put(productID, toJson(productID, product));
+		}
+	}
+
+	/**
+	 * Starts the stub on localhost.
+	 *
+	 * @param latencyMillis delay added to every response
+	 */
+	public static ProductBackendStub start(int port, SampleData data, long latencyMillis) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+		ProductBackendStub stub = new ProductBackendStub(server, data, latencyMillis);
+		server.createContext(SERVICE_PATH, stub::handle);
+		server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "product-backend-stub");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+		return stub;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (latencyMillis > 0) {
+				TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			}
+			URI uri = exchange.getRequestURI();
+			String path = uri.getRawPath().substring(SERVICE_PATH.length());
+			if (path.equals("/$metadata")) {
+				send(exchange, 200, "application/xml", METADATA);
+				return;
+			}
+			if (path.equals("/ProductSet")) {
+				send(exchange, 200, "application/json", "{\"d\":{\"results\":[" + String.join(",", query(getFilter(uri))) + "]}}");
+				return;
+			}
+			Matcher single = SINGLE_PRODUCT.matcher(decode(path));
+			String product = single.matches() ? products.get(single.group(1).replace("''", "'")) : null;
+			if (product != null) {
+				send(exchange, 200, "application/json", "{\"d\":" + product + "}");
+			} else {
+				send(exchange, 404, "application/json", "{\"error\":{\"code\":\"404\",\"message\":{\"lang\":\"en\",\"value\":\"Resource not found\"}}}");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.close();
+		}
+	}
+
+	private List<String> query(String filter) {
+		if (filter == null) {
+			return new ArrayList<>(products.values());
+		}
+		List<String> result = new ArrayList<>();
+		Matcher productID = PRODUCT_ID_FILTER.matcher(filter);
+		while (productID.find()) {
+			String product = products.get(productID.group(1).replace("''", "'"));
+			if (product != null) {
+				result.add(product);
+			}
+		}
+		return result;
+	}
+
+	private static String getFilter(URI uri) {
+		String query = uri.getRawQuery();
+		if (query == null) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			if (parameter.startsWith("$filter=") || parameter.startsWith("%24filter=")) {
+				return decode(parameter.substring(parameter.indexOf('=') + 1));
+			}
+		}
+		return null;
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toJson(String productID, int product) {
+		return "{\"__metadata\":{\"id\":\"ProductSet('" + productID + "')\",\"type\":\"GWSAMPLE_BASIC.Product\"},"
+				+ "\"ProductID\":\"" + productID + "\",\"Name\":\"Product " + product + "\","
+				+ "\"Description\":\"Generated product " + product + " for benchmarks\","
+				+ "\"Category\":\"Category " + product % 12 + "\"}";
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType + ";charset=utf-8");
+		exchange.getResponseHeaders().set("DataServiceVersion", "2.0");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sap.cloud.sdk.service.prov.api.EntityData;
+import com.sap.cloud.sdk.service.prov.api.EntityMetadata;
+import com.sap.cloud.sdk.service.prov.api.MessageContainer;
+import com.sap.cloud.sdk.service.prov.api.request.CreateRequest;
+import com.sap.cloud.sdk.service.prov.api.request.QueryRequest;
+import com.sap.cloud.sdk.service.prov.api.request.ReadRequest;
+import com.sap.cloud.sdk.service.prov.api.request.UpdateRequest;
+
+/**
+ * Builds the request objects the OData runtime passes to the EPMSampleService handlers, as they
+ * look for plain requests without query options.
+ */
+final class Requests {
+
+	private static final Map<String, List<String>> ELEMENTS = new HashMap<>();
+	private static final Map<String, String> KEYS = new HashMap<>();
+
+	static {
+		ELEMENTS.put("Products", Arrays.asList("ProductID", "Name", "Description", "Category"));
+		ELEMENTS.put("SalesOrders", Arrays.asList("SalesOrderID", "Note", "CustomerName", "GrossAmount"));
+		ELEMENTS.put("SalesOrderLineItems",
+				Arrays.asList("SOLineItemID", "SalesOrderID", "ItemPosition", "ProductID", "Quantity", "GrossAmount"));
+		KEYS.put("Products", "ProductID");
+		KEYS.put("SalesOrders", "SalesOrderID");
+		KEYS.put("SalesOrderLineItems", "SOLineItemID");
+	}
+
+	private Requests() {
+	}
+
+	static QueryRequest query(String entitySet) {
+		QueryRequest request = mock(QueryRequest.class);
+		when(request.getEntityMetadata()).thenReturn(metadata(entitySet));
+		when(request.getSelectProperties()).thenReturn(Collections.<String>emptyList());
+		when(request.getOrderByProperties()).thenReturn(Collections.emptyList());
+		when(request.getMessageContainer()).thenReturn(mock(MessageContainer.class));
+		return request;
+	}
+
+	static QueryRequest navigationQuery(String entitySet, String sourceEntitySet, Object sourceKey) {
+		QueryRequest request = query(entitySet);
+		when(request.getSourceEntityName()).thenReturn(sourceEntitySet);
+		when(request.getSourceKeys()).thenReturn(keys(sourceEntitySet, sourceKey));
+		return request;
+	}
+
+	static ReadRequest read(String entitySet, Object key) {
+		ReadRequest request = mock(ReadRequest.class);
+		when(request.getEntityMetadata()).thenReturn(metadata(entitySet));
+		when(request.getKeys()).thenReturn(keys(entitySet, key));
+		when(request.getMessageContainer()).thenReturn(mock(MessageContainer.class));
+		return request;
+	}
+
+	static ReadRequest navigationRead(String entitySet, String sourceEntitySet, Object sourceKey) {
+		ReadRequest request = mock(ReadRequest.class);
+		when(request.getEntityMetadata()).thenReturn(metadata(entitySet));
+		when(request.getSourceEntityName()).thenReturn(sourceEntitySet);
+		when(request.getSourceKeys()).thenReturn(keys(sourceEntitySet, sourceKey));
+		when(request.getMessageContainer()).thenReturn(mock(MessageContainer.class));
+		return request;
+	}
+
+	static CreateRequest create(String entitySet, Map<String, Object> data) {
+		CreateRequest request = mock(CreateRequest.class);
+		when(request.getEntityMetadata()).thenReturn(metadata(entitySet));
+		when(request.getData()).thenReturn(entityData(entitySet, data));
+		when(request.getKeys()).thenReturn(keys(entitySet, data.get(KEYS.get(entitySet))));
+		when(request.getMessageContainer()).thenReturn(mock(MessageContainer.class));
+		return request;
+	}
+
+	static UpdateRequest update(String entitySet, Map<String, Object> data) {
+		UpdateRequest request = mock(UpdateRequest.class);
+		when(request.getEntityMetadata()).thenReturn(metadata(entitySet));
+		when(request.getData()).thenReturn(entityData(entitySet, data));
+		when(request.getKeys()).thenReturn(keys(entitySet, data.get(KEYS.get(entitySet))));
+		when(request.getMessageContainer()).thenReturn(mock(MessageContainer.class));
+		return request;
+	}
+
+	static EntityData entityData(String entitySet, Map<String, Object> data) {
+		return EntityData.createFromMap(data, Collections.singletonList(KEYS.get(entitySet)), entitySet);
+	}
+
+	private static Map<String, Object> keys(String entitySet, Object key) {
+		Map<String, Object> keys = new HashMap<>(2);
+		keys.put(KEYS.get(entitySet), key);
+		return keys;
+	}
+
+	private static EntityMetadata metadata(String entitySet) {
+		EntityMetadata metadata = mock(EntityMetadata.class);
+		when(metadata.getName()).thenReturn(entitySet);
+		when(metadata.getNamespace()).thenReturn("EPMSample");
+		when(metadata.getElementNames()).thenReturn(new ArrayList<>(ELEMENTS.get(entitySet)));
+		when(metadata.getKeyNames()).thenReturn(Collections.singletonList(KEYS.get(entitySet)));
+		return metadata;
+	}
+}
@@ -0,0 +1,49 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+/**
+ * Key formats and volumes of the generated EPM sample data, shared by the embedded database and
+ * the backend stub so that every ProductID of a line item exists in the stub's ProductSet.
+ */
+public final class SampleData {
+
+	private final int salesOrders;
+	private final int lineItemsPerOrder;
+	private final int products;
+
+	public SampleData(int salesOrders, int lineItemsPerOrder, int products) {
+		this.salesOrders = salesOrders;
+		this.lineItemsPerOrder = lineItemsPerOrder;
+		this.products = products;
+	}
+
+	public int getSalesOrders() {
+		return salesOrders;
+	}
+
+	public int getLineItemsPerOrder() {
+		return lineItemsPerOrder;
+	}
+
+	public int getProducts() {
+		return products;
+	}
+
+	public static String salesOrderID(int salesOrder) {
+		return String.format("SO%08d", salesOrder);
+	}
+
+	public static String lineItemID(int salesOrder, int position) {
+		return String.format("SO%08d-%03d", salesOrder, position);
+	}
+
+	public static String productID(int product) {
+		return String.format("HT-%04d", product);
+	}
+
+	/**
+	 * Deterministic product of a line item, so runs are comparable.
+	 */
+	public String productOf(int salesOrder, int position) {
+		return productID((salesOrder * 31 + position * 7) % products);
+	}
+}
@@ -0,0 +1,106 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BatchRequestTest {
+
+	static final String CONTENT_TYPE = "multipart/mixed; boundary=batch_1";
+
+	@Test
+	public void writesAreGroupedByChangeSet() {
+		List<BatchRequest.Part> parts = BatchRequest.parse(CONTENT_TYPE, body(
+				"--batch_1",
+				"Content-Type: application/http",
+				"Content-Transfer-Encoding: binary",
+				"",
+				"GET SalesOrders HTTP/1.1",
+				"Accept: application/json",
+				"",
+				"",
+				"--batch_1",
+				"Content-Type: multipart/mixed; boundary=changeset_1",
+				"",
+				"--changeset_1",
+				"Content-Type: application/http",
+				"Content-Transfer-Encoding: binary",
+				"Content-ID: 1",
+				"",
+				"POST SalesOrders HTTP/1.1",
+				"Content-Type: application/json",
+				"",
+				"{\"SalesOrderID\":\"SO-NEW\"}",
+				"--changeset_1",
+				"Content-Type: application/http",
+				"Content-Transfer-Encoding: binary",
+				"Content-ID: 2",
+				"",
+				"POST $1/SalesOrderLineItems HTTP/1.1",
+				"Content-Type: application/json",
+				"",
+				"{\"SOLineItemID\":\"LI-NEW\"}",
+				"--changeset_1",
+				"Content-Type: application/http",
+				"Content-Transfer-Encoding: binary",
+				"Content-ID: 3",
+				"",
+				"PATCH SalesOrders('SO-1') HTTP/1.1",
+				"If-Match: W/\"1700000000000\"",
+				"Content-Type: application/json",
+				"",
+				"{\"Note\":\"changed\"}",
+				"--changeset_1--",
+				"",
+				"--batch_1",
+				"Content-Type: application/http",
+				"Content-Transfer-Encoding: binary",
+				"",
+				"DELETE SalesOrderLineItems('LI-1') HTTP/1.1",
+				"If-Match: *",
+				"",
+				"",
+				"--batch_1--"));
+
+		assertEquals(4, parts.size());
+		assertPart(parts.get(0), BatchRequest.CREATE, "SalesOrders", 0, 1);
+		assertPart(parts.get(1), BatchRequest.CREATE, "SalesOrderLineItems", 0, 1);
+		assertPart(parts.get(2), BatchRequest.UPDATE, "SalesOrders", 0, 1);
+		assertEquals("W/\"1700000000000\"", parts.get(2).ifMatch);
+		assertPart(parts.get(3), BatchRequest.DELETE, "SalesOrderLineItems", -1, 2);
+		// If-Match: * is no condition on the entity tag
+		assertNull(parts.get(3).ifMatch);
+	}
+
+	@Test
+	public void linesMayEndWithLf() {
+		List<BatchRequest.Part> parts = BatchRequest.parse("multipart/mixed;boundary=\"batch_1\"",
+				("--batch_1\nContent-Type: application/http\n\nPUT SalesOrders('SO-1') HTTP/1.1\nContent-Type: application/json\n\n{}\n"
+						+ "--batch_1--\n").getBytes(StandardCharsets.ISO_8859_1));
+		assertEquals(1, parts.size());
+		assertPart(parts.get(0), BatchRequest.UPDATE, "SalesOrders", -1, 0);
+	}
+
+	@Test
+	public void otherBodiesHaveNoParts() {
+		assertTrue(BatchRequest.parse("application/json", body("{}")).isEmpty());
+		assertTrue(BatchRequest.parse(CONTENT_TYPE, body("--batch_1", "Content-Type: application/http", "", "GET SalesOrders HTTP/1.1",
+				"", "", "--batch_1--")).isEmpty());
+	}
+
+	static byte[] body(String... lines) {
+		return String.join("\r\n", lines).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void assertPart(BatchRequest.Part part, String operation, String entitySet, int changeSet, int position) {
+		assertEquals(operation, part.operation);
+		assertEquals(entitySet, part.entitySet);
+		assertEquals(changeSet, part.changeSet);
+		assertEquals(position, part.position);
+	}
+}
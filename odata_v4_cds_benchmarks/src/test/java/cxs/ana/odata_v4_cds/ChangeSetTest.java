@@ -0,0 +1,358 @@
+package cxs.ana.odata_v4_cds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sap.cloud.sdk.service.prov.api.EntityData;
+import com.sap.cloud.sdk.service.prov.api.MessageContainer;
+import com.sap.cloud.sdk.service.prov.api.request.CreateRequest;
+import com.sap.cloud.sdk.service.prov.api.response.CreateResponse;
+
+import cxs.ana.odata_v4_cds.benchmarks.EmbeddedDatabase;
+import cxs.ana.odata_v4_cds.benchmarks.SampleData;
+
+/**
+ * Change sets and deep inserts against the embedded H2 database of the benchmarks.
+ */
+public class ChangeSetTest {
+
+	private static final EPMSampleModel.EntitySet SALES_ORDERS = EPMSampleModel.SALES_ORDERS;
+	private static final EPMSampleModel.EntitySet LINE_ITEMS = EPMSampleModel.SALES_ORDER_LINE_ITEMS;
+	private static final String SALES_ORDER = SampleData.salesOrderID(0);
+
+	// one change set with two line item creates and an update, then a delete on its own
+	private static final byte[] BATCH = BatchRequestTest.body(
+			"--batch_1",
+			"Content-Type: multipart/mixed; boundary=changeset_1",
+			"",
+			"--changeset_1",
+			"Content-Type: application/http",
+			"",
+			"POST SalesOrderLineItems HTTP/1.1",
+			"",
+			"{}",
+			"--changeset_1",
+			"Content-Type: application/http",
+			"",
+			"POST SalesOrderLineItems HTTP/1.1",
+			"",
+			"{}",
+			"--changeset_1",
+			"Content-Type: application/http",
+			"",
+			"PATCH SalesOrders('" + SALES_ORDER + "') HTTP/1.1",
+			"",
+			"{}",
+			"--changeset_1--",
+			"",
+			"--batch_1",
+			"Content-Type: application/http",
+			"",
+			"DELETE SalesOrderLineItems('" + SampleData.lineItemID(1, 1) + "') HTTP/1.1",
+			"",
+			"",
+			"--batch_1--");
+
+	// what the runtime answers for BATCH if the update fails
+	private static final String RESPONSE_CONTENT_TYPE = "multipart/mixed; boundary=batchresponse_1";
+	private static final byte[] RESPONSE = BatchRequestTest.body(
+			"--batchresponse_1",
+			"Content-Type: multipart/mixed; boundary=changesetresponse_1",
+			"",
+			"--changesetresponse_1",
+			"Content-Type: application/http",
+			"",
+			"HTTP/1.1 201 Created",
+			"",
+			"{}",
+			"--changesetresponse_1",
+			"Content-Type: application/http",
+			"",
+			"HTTP/1.1 201 Created",
+			"",
+			"{}",
+			"--changesetresponse_1",
+			"Content-Type: application/http",
+			"",
+			"HTTP/1.1 404 Not Found",
+			"Content-Type: application/json",
+			"",
+			"{\"error\":{\"code\":null,\"message\":\"missing\"}}",
+			"--changesetresponse_1--",
+			"",
+			"--batchresponse_1",
+			"Content-Type: application/http",
+			"",
+			"HTTP/1.1 204 No Content",
+			"",
+			"",
+			"--batchresponse_1--");
+
+	private EmbeddedDatabase database;
+
+	@Before
+	public void setUp() throws Exception {
+		database = EmbeddedDatabase.create(new SampleData(2, 2, 5));
+		CDSDataAccess.getInstance().setDataSource(database.getDataSource());
+		RequestContext.begin(null, null);
+	}
+
+	@After
+	public void tearDown() {
+		RequestContext.end();
+		database.close();
+	}
+
+	@Test
+	public void changeSetCommitsWithItsLastWrite() throws Exception {
+		long grossAmount = grossAmount(SALES_ORDER);
+		try (BatchRequest batch = BatchRequest.begin(BatchRequest.parse(BatchRequestTest.CONTENT_TYPE, BATCH))) {
+			create(batch, "LI-NEW-1", 7);
+			create(batch, "LI-NEW-2", 8);
+			assertEquals(0, count(LINE_ITEMS, "LI-NEW-1"));
+
+			batch.enter(BatchRequest.UPDATE, "SalesOrders");
+			ChangeSet.current().update(SALES_ORDERS, Collections.<String, Object>singletonMap("Note", "changed"), key(SALES_ORDERS, SALES_ORDER),
+					null);
+			batch.completed();
+
+			assertNull(ChangeSet.current());
+			assertEquals(1, count(LINE_ITEMS, "LI-NEW-1"));
+			assertEquals(1, count(LINE_ITEMS, "LI-NEW-2"));
+			assertEquals(grossAmount + 15, grossAmount(SALES_ORDER));
+			assertTrue(batch.getFailedChangeSets().isEmpty());
+		}
+	}
+
+	@Test
+	public void failedWriteRollsBackTheChangeSet() throws Exception {
+		long grossAmount = grossAmount(SALES_ORDER);
+		try (BatchRequest batch = BatchRequest.begin(BatchRequest.parse(BatchRequestTest.CONTENT_TYPE, BATCH))) {
+			create(batch, "LI-NEW-1", 7);
+			create(batch, "LI-NEW-2", 8);
+
+			batch.enter(BatchRequest.UPDATE, "SalesOrders");
+			try {
+				ChangeSet.current().update(SALES_ORDERS, Collections.<String, Object>singletonMap("Note", "changed"),
+						key(SALES_ORDERS, "SO-MISSING"), null);
+				fail("updated a missing sales order");
+			} catch (EntityNotFoundException e) {
+				batch.failed();
+			}
+
+			assertNull(ChangeSet.current());
+			assertEquals(0, count(LINE_ITEMS, "LI-NEW-1"));
+			assertEquals(0, count(LINE_ITEMS, "LI-NEW-2"));
+			assertEquals(grossAmount, grossAmount(SALES_ORDER));
+			assertEquals(Collections.singleton(0), batch.getFailedChangeSets().keySet());
+
+			// the creates must not answer 201 for rows that were rolled back
+			String response = new String(batch.toResponse(RESPONSE_CONTENT_TYPE, RESPONSE), StandardCharsets.ISO_8859_1);
+			assertFalse(response.contains("201 Created"));
+			assertFalse(response.contains("changesetresponse_1"));
+			assertTrue(response.contains("HTTP/1.1 404 Not Found"));
+			assertTrue(response.contains("HTTP/1.1 204 No Content"));
+		}
+	}
+
+	@Test
+	public void skippedWriteRollsBackTheChangeSet() throws Exception {
+		try (BatchRequest batch = BatchRequest.begin(BatchRequest.parse(BatchRequestTest.CONTENT_TYPE, BATCH))) {
+			create(batch, "LI-NEW-1", 7);
+			// the runtime rejected the second create itself
+			batch.enter(BatchRequest.UPDATE, "SalesOrders");
+			ChangeSet.current().update(SALES_ORDERS, Collections.<String, Object>singletonMap("Note", "changed"), key(SALES_ORDERS, SALES_ORDER),
+					null);
+			batch.completed();
+
+			assertEquals(0, count(LINE_ITEMS, "LI-NEW-1"));
+			assertEquals(Collections.singleton(0), batch.getFailedChangeSets().keySet());
+			String response = new String(batch.toResponse(RESPONSE_CONTENT_TYPE, RESPONSE), StandardCharsets.ISO_8859_1);
+			assertFalse(response.contains("201 Created"));
+			assertTrue(response.contains("HTTP/1.1 404 Not Found"));
+		}
+	}
+
+	@Test
+	public void unfinishedChangeSetIsRolledBackOnClose() throws Exception {
+		BatchRequest batch = BatchRequest.begin(BatchRequest.parse(BatchRequestTest.CONTENT_TYPE, BATCH));
+		create(batch, "LI-NEW-1", 7);
+		batch.close();
+
+		assertNull(ChangeSet.current());
+		assertNull(BatchRequest.current());
+		assertEquals(0, count(LINE_ITEMS, "LI-NEW-1"));
+		// all parts of the change set succeeded, so the change set is answered with a 500 of its own
+		String response = new String(batch.toResponse(RESPONSE_CONTENT_TYPE, BatchRequestTest.body(
+				"--batchresponse_1",
+				"Content-Type: multipart/mixed; boundary=changesetresponse_1",
+				"",
+				"--changesetresponse_1",
+				"Content-Type: application/http",
+				"",
+				"HTTP/1.1 201 Created",
+				"",
+				"{}",
+				"--changesetresponse_1--",
+				"",
+				"--batchresponse_1--")), StandardCharsets.ISO_8859_1);
+		assertFalse(response.contains("201 Created"));
+		assertTrue(response.contains("HTTP/1.1 500 Internal Server Error"));
+		assertTrue(response.endsWith("\r\n--batchresponse_1--"));
+	}
+
+	@Test
+	public void writeOutsideOfAChangeSetCommitsOnItsOwn() throws Exception {
+		try (BatchRequest batch = BatchRequest.begin(BatchRequest.parse(BatchRequestTest.CONTENT_TYPE, BATCH))) {
+			batch.enter(BatchRequest.DELETE, "SalesOrderLineItems");
+			assertNull(ChangeSet.current());
+			batch.completed();
+			assertTrue(batch.getFailedChangeSets().isEmpty());
+		}
+	}
+
+	@Test
+	public void deepInsertWritesTheOrderWithItsItems() throws Exception {
+		CreateResponse response = new EPMSampleService().createSalesOrder(deepInsert("SO-DEEP", "LI-DEEP-1", "LI-DEEP-2"));
+
+		assertNull(response.getErrorResponse());
+		assertEquals(1, count(SALES_ORDERS, "SO-DEEP"));
+		assertEquals(2, count(LINE_ITEMS, "LI-DEEP-1") + count(LINE_ITEMS, "LI-DEEP-2"));
+		assertEquals(30, grossAmount("SO-DEEP"));
+	}
+
+	@Test
+	public void failedDeepInsertWritesNothing() throws Exception {
+		// the second line item exists already
+		CreateResponse response = new EPMSampleService().createSalesOrder(deepInsert("SO-DEEP", "LI-DEEP-1", SampleData.lineItemID(0, 1)));
+
+		assertEquals(500, response.getErrorResponse().getStatusCode());
+		assertEquals(0, count(SALES_ORDERS, "SO-DEEP"));
+		assertEquals(0, count(LINE_ITEMS, "LI-DEEP-1"));
+	}
+
+	@Test
+	public void totalOutOfRangeRollsBackTheChangeSet() throws Exception {
+		long grossAmount = grossAmount(SALES_ORDER);
+		try (ChangeSet changeSet = ChangeSet.begin()) {
+			changeSet.insert(LINE_ITEMS, lineItem("LI-NEW-1", Integer.MAX_VALUE));
+			try {
+				changeSet.commit();
+				fail("committed a total out of the range of Edm.Int32");
+			} catch (BadRequestException e) {
+				// expected
+			}
+		}
+		assertEquals(0, count(LINE_ITEMS, "LI-NEW-1"));
+		assertEquals(grossAmount, grossAmount(SALES_ORDER));
+	}
+
+	@Test
+	public void grossAmountOfTheClientIsIgnored() throws Exception {
+		long grossAmount = grossAmount(SALES_ORDER);
+		Map<String, Object> data = new HashMap<>();
+		data.put("Note", "changed");
+		data.put("GrossAmount", 999);
+		try (ChangeSet changeSet = ChangeSet.begin()) {
+			changeSet.update(SALES_ORDERS, data, key(SALES_ORDERS, SALES_ORDER), null);
+			changeSet.commit();
+		}
+		assertEquals(grossAmount, grossAmount(SALES_ORDER));
+	}
+
+	private static void create(BatchRequest batch, String lineItemID, int grossAmount) throws Exception {
+		batch.enter(BatchRequest.CREATE, "SalesOrderLineItems");
+		ChangeSet.current().insert(LINE_ITEMS, lineItem(lineItemID, grossAmount));
+		batch.completed();
+	}
+
+	private static Map<String, Object> lineItem(String lineItemID, int grossAmount) {
+		Map<String, Object> data = new HashMap<>();
+		data.put("SOLineItemID", lineItemID);
+		data.put("SalesOrderID", SALES_ORDER);
+		data.put("ItemPosition", 90);
+		data.put("Quantity", 1);
+		data.put("GrossAmount", grossAmount);
+		return data;
+	}
+
+	private static CreateRequest deepInsert(String salesOrderID, String... lineItemIDs) {
+		Map<String, Object> salesOrder = new HashMap<>();
+		salesOrder.put("SalesOrderID", salesOrderID);
+		salesOrder.put("Note", "deep insert");
+		EntityData[] lineItems = new EntityData[lineItemIDs.length];
+		for (int i = 0; i < lineItemIDs.length; i++) {
+			Map<String, Object> lineItem = new HashMap<>();
+			lineItem.put("SOLineItemID", lineItemIDs[i]);
+			lineItem.put("ItemPosition", 10 * (i + 1));
+			lineItem.put("Quantity", 1);
+			lineItem.put("GrossAmount", 10 * (i + 1));
+			lineItems[i] = entityData("SalesOrderLineItems", lineItem, null);
+		}
+		CreateRequest request = mock(CreateRequest.class);
+		when(request.getData()).thenReturn(entityData("SalesOrders", salesOrder,
+				Collections.singletonMap("SalesOrderLineItems", Arrays.asList(lineItems))));
+		when(request.getMessageContainer()).thenReturn(mock(MessageContainer.class));
+		return request;
+	}
+
+	private static EntityData entityData(String entitySet, Map<String, Object> values, Map<String, List<EntityData>> navigationData) {
+		EntityData data = mock(EntityData.class);
+		when(data.getEntityName()).thenReturn(entitySet);
+		when(data.asMap()).thenReturn(values);
+		when(data.getNavigationData()).thenReturn(navigationData);
+		for (Map.Entry<String, Object> value : values.entrySet()) {
+			when(data.getElementValue(value.getKey())).thenReturn(value.getValue());
+			when(data.contains(value.getKey())).thenReturn(true);
+		}
+		return data;
+	}
+
+	private static Map<String, Object> key(EPMSampleModel.EntitySet entitySet, Object key) {
+		return Collections.singletonMap(entitySet.getKey(), key);
+	}
+
+	private int count(EPMSampleModel.EntitySet entitySet, Object key) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(
+						"SELECT COUNT(*) FROM " + entitySet.getTableName() + " WHERE \"" + entitySet.getKey() + "\" = ?")) {
+			statement.setObject(1, key);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				return resultSet.getInt(1);
+			}
+		}
+	}
+
+	private long grossAmount(String salesOrderID) throws SQLException {
+		try (Connection connection = database.getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(
+						"SELECT \"GrossAmount\" FROM " + SALES_ORDERS.getTableName() + " WHERE \"SalesOrderID\" = ?")) {
+			statement.setString(1, salesOrderID);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				return resultSet.getLong(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package cxs.ana.odata_v4_cds.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LoadGeneratorTest {
+
+	@Test
+	public void batchWithSuccessfulPartsKeepsItsStatus() {
+		assertEquals(200, LoadGenerator.getPartStatus(body("HTTP/1.1 201 Created", "HTTP/1.1 204 No Content"), 200));
+	}
+
+	@Test
+	public void batchWithAFailedPartFails() {
+		assertEquals(400, LoadGenerator.getPartStatus(body("HTTP/1.1 400 Bad Request"), 200));
+		assertEquals(500, LoadGenerator.getPartStatus(body("HTTP/1.1 200 OK", "HTTP/1.1 500 Internal Server Error"), 200));
+	}
+
+	private static String body(String... statusLines) {
+		StringBuilder body = new StringBuilder();
+		for (String statusLine : statusLines) {
+			body.append("--batch_1\r\nContent-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n")
+					.append(statusLine).append("\r\nContent-Type: application/json\r\n\r\n{\"value\":\"HTTP/1.1 404\"}\r\n");
+		}
+		return body.append("--batch_1--\r\n").toString();
+	}
+}
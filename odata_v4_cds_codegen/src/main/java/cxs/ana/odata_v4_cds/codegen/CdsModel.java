@@ -0,0 +1,77 @@
+package cxs.ana.odata_v4_cds.codegen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The entities of an .hdbcds file with their columns and CDS base types (String, Integer,
+ * UTCTimestamp, ...). Type aliases are resolved and associations are skipped, as they have no
+ * column of their own.
+ */
+public final class CdsModel {
+
+	private static final Pattern COMMENT = Pattern.compile("//[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+	private static final Pattern TYPE = Pattern.compile("\\btype\\s+(\\w+)\\s*:\\s*([^;]+);");
+	// the element list has no nested braces; a technical configuration follows the closing one
+	private static final Pattern ENTITY = Pattern.compile("\\bentity\\s+(\\w+)\\s*\\{([^}]*)\\}");
+	private static final Pattern ELEMENT = Pattern.compile("(?:key\\s+)?(\\w+)\\s*:\\s*(\\w+)(.*)", Pattern.DOTALL);
+
+	/** entity -> column -> base type */
+	private final Map<String, Map<String, String>> entities;
+
+	private CdsModel(Map<String, Map<String, String>> entities) {
+		this.entities = entities;
+	}
+
+	public static CdsModel read(Path file) throws IOException {
+		String source = COMMENT.matcher(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).replaceAll("");
+		Map<String, String> aliases = new HashMap<>();
+		Matcher type = TYPE.matcher(source);
+		while (type.find()) {
+			aliases.put(type.group(1), baseType(type.group(2)));
+		}
+		Map<String, Map<String, String>> entities = new LinkedHashMap<>();
+		Matcher entity = ENTITY.matcher(source);
+		while (entity.find()) {
+			Map<String, String> columns = new LinkedHashMap<>();
+			for (String declaration : entity.group(2).split(";")) {
+				Matcher element = ELEMENT.matcher(declaration.trim());
+				if (!element.matches() || "association".equals(element.group(2))) {
+					continue;
+				}
+				String baseType = aliases.containsKey(element.group(2)) ? aliases.get(element.group(2)) : element.group(2);
+				columns.put(element.group(1), baseType);
+			}
+			entities.put(entity.group(1), Collections.unmodifiableMap(columns));
+		}
+		return new CdsModel(entities);
+	}
+
+	public boolean hasEntity(String name) {
+		return entities.containsKey(name);
+	}
+
+	/**
+	 * @return column -> base type of the entity, in declaration order
+	 */
+	public Map<String, String> getColumns(String entity) {
+		return entities.get(entity);
+	}
+
+	private static String baseType(String declaration) {
+		String trimmed = declaration.trim();
+		int end = 0;
+		while (end < trimmed.length() && Character.isJavaIdentifierPart(trimmed.charAt(end))) {
+			end++;
+		}
+		return trimmed.substring(0, end);
+	}
+}
@@ -0,0 +1,93 @@
+package cxs.ana.odata_v4_cds.codegen;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The entity types of an OData V4 EDMX document with their structural properties and the entity
+ * set that exposes each of them.
+ */
+public final class EdmxModel {
+
+	private static final String EDM_NAMESPACE = "http://docs.oasis-open.org/odata/ns/edm";
+
+	private final List<EntityType> entityTypes;
+
+	private EdmxModel(List<EntityType> entityTypes) {
+		this.entityTypes = entityTypes;
+	}
+
+	public static EdmxModel read(Path file) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		Document document = factory.newDocumentBuilder().parse(file.toFile());
+
+		Map<String, String> entitySets = new LinkedHashMap<>();
+		NodeList sets = document.getElementsByTagNameNS(EDM_NAMESPACE, "EntitySet");
+		for (int i = 0; i < sets.getLength(); i++) {
+			Element set = (Element) sets.item(i);
+			String type = set.getAttribute("EntityType");
+			entitySets.put(type.substring(type.lastIndexOf('.') + 1), set.getAttribute("Name"));
+		}
+
+		List<EntityType> entityTypes = new ArrayList<>();
+		NodeList types = document.getElementsByTagNameNS(EDM_NAMESPACE, "EntityType");
+		for (int i = 0; i < types.getLength(); i++) {
+			Element type = (Element) types.item(i);
+			Map<String, String> properties = new LinkedHashMap<>();
+			NodeList children = type.getElementsByTagNameNS(EDM_NAMESPACE, "Property");
+			for (int j = 0; j < children.getLength(); j++) {
+				Element property = (Element) children.item(j);
+				properties.put(property.getAttribute("Name"), property.getAttribute("Type"));
+			}
+			String name = type.getAttribute("Name");
+			entityTypes.add(new EntityType(name, entitySets.get(name), Collections.unmodifiableMap(properties)));
+		}
+		return new EdmxModel(Collections.unmodifiableList(entityTypes));
+	}
+
+	public List<EntityType> getEntityTypes() {
+		return entityTypes;
+	}
+
+	public static final class EntityType {
+
+		private final String name;
+		private final String entitySet;
+		private final Map<String, String> properties;
+
+		EntityType(String name, String entitySet, Map<String, String> properties) {
+			this.name = name;
+			this.entitySet = entitySet;
+			this.properties = properties;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the name of the entity set of the type, or null if no set exposes it
+		 */
+		public String getEntitySet() {
+			return entitySet;
+		}
+
+		/**
+		 * @return property -> Edm type, in declaration order
+		 */
+		public Map<String, String> getProperties() {
+			return properties;
+		}
+	}
+}
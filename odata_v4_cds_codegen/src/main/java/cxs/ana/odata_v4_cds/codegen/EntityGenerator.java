@@ -0,0 +1,264 @@
+package cxs.ana.odata_v4_cds.codegen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the typed entity classes and mappers of the service, so that no row is mapped by
+ * reflection or through a map at run time:
+ * <ul>
+ * <li>for every entity type stored in CDS, a {@code <Type>RowWriter} that writes a JDBC row of
+ * its table to the JSON response with typed getters, column by column;</li>
+ * <li>for every other entity type (read from the backend OData V2 service), a
+ * {@code <Type>Entity} with a {@code fromMap} that fills it field by field;</li>
+ * <li>for every entity set named as replicated, both: its CDS table is a replica of the backend
+ * entity set.</li>
+ * </ul>
+ * The generator fails if a property of a CDS entity type has no column or a column of another
+ * type in the .hdbcds file, so the EDMX and the CDS model cannot drift apart unnoticed.
+ * <p>
+ * Usage: {@code EntityGenerator <hdbcds file> <edmx file> <source directory> <package> [<replicated entity sets>]}
+ */
+public final class EntityGenerator {
+
+	private static final String NEWLINE = "\r\n";
+
+	private final CdsModel cdsModel;
+	private final String packageName;
+	private final Path packageDirectory;
+	private final String header;
+	private final Set<String> replicatedEntitySets;
+
+	private EntityGenerator(CdsModel cdsModel, String packageName, Path sourceDirectory, String header, Set<String> replicatedEntitySets) {
+		this.cdsModel = cdsModel;
+		this.packageName = packageName;
+		this.packageDirectory = sourceDirectory.resolve(packageName.replace('.', '/'));
+		this.header = header;
+		this.replicatedEntitySets = replicatedEntitySets;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4 && args.length != 5) {
+			System.err.println("Usage: EntityGenerator <hdbcds file> <edmx file> <source directory> <package> [<replicated entity sets>]");
+			System.exit(2);
+		}
+		Path cdsFile = Paths.get(args[0]);
+		Path edmxFile = Paths.get(args[1]);
+		String header = "// Generated by " + EntityGenerator.class.getName() + " from " + cdsFile.getFileName() + " and "
+				+ edmxFile.getFileName() + "; do not edit." + NEWLINE
+				+ "// Regenerate with mvn -P generate-entities generate-sources in odata_v4_cds." + NEWLINE;
+		Set<String> replicated = new HashSet<>();
+		if (args.length == 5) {
+			for (String entitySet : args[4].split(",")) {
+				replicated.add(entitySet.trim());
+			}
+		}
+		EntityGenerator generator = new EntityGenerator(CdsModel.read(cdsFile), args[3], Paths.get(args[2]), header, replicated);
+		for (EdmxModel.EntityType entityType : EdmxModel.read(edmxFile).getEntityTypes()) {
+			generator.generate(entityType);
+		}
+	}
+
+	private void generate(EdmxModel.EntityType entityType) throws IOException {
+		String entitySet = entityType.getEntitySet();
+		if (entitySet == null) {
+			return;
+		}
+		if (cdsModel.hasEntity(entitySet)) {
+			write(entityType.getName() + "RowWriter", generateRowWriter(entityType, cdsModel.getColumns(entitySet)));
+		}
+		if (!cdsModel.hasEntity(entitySet) || replicatedEntitySets.contains(entitySet)) {
+			write(entityType.getName() + "Entity", generateEntity(entityType));
+		}
+	}
+
+	private String generateRowWriter(EdmxModel.EntityType entityType, Map<String, String> columns) {
+		String entitySet = entityType.getEntitySet();
+		JavaSource java = new JavaSource(header, packageName);
+		java.imports("java.io.IOException", "java.sql.ResultSet", "java.sql.SQLException");
+		java.line("/**");
+		java.line(" * Writes a row of the CDS entity " + entitySet + " as the properties of a " + entityType.getName() + ". The");
+		java.line(" * columns are read by position, in the order of {@link EPMSampleModel.EntitySet#getProperties()}.");
+		java.line(" */");
+		java.line("public final class " + entityType.getName() + "RowWriter implements RowWriter {");
+		java.line("");
+		java.line("\t@Override");
+		java.line("\tpublic void write(ResultSet resultSet, JsonWriter json) throws SQLException, IOException {");
+		int index = 1;
+		for (Map.Entry<String, String> property : entityType.getProperties().entrySet()) {
+			String name = property.getKey();
+			String cdsType = columns.get(name);
+			if (cdsType == null) {
+				throw new IllegalStateException(entitySet + "." + name + " is in the EDMX but not in the CDS model");
+			}
+			JavaType type = JavaType.of(property.getValue());
+			if (!type.isStoredAs(cdsType)) {
+				throw new IllegalStateException(entitySet + "." + name + " is " + property.getValue() + " in the EDMX but " + cdsType
+						+ " in the CDS model");
+			}
+			if (type.primitive == null) {
+				java.line("\t\tjson.name(\"" + name + "\").value(resultSet." + type.getter + "(" + index + "));");
+			} else {
+				String variable = decapitalize(name);
+				java.line("\t\t" + type.primitive + " " + variable + " = resultSet." + type.getter + "(" + index + ");");
+				java.line("\t\tif (resultSet.wasNull()) {");
+				java.line("\t\t\tjson.name(\"" + name + "\").nullValue();");
+				java.line("\t\t} else {");
+				java.line("\t\t\tjson.name(\"" + name + "\").value(" + variable + ");");
+				java.line("\t\t}");
+			}
+			index++;
+		}
+		java.line("\t}");
+		java.line("}");
+		return java.toString();
+	}
+
+	private String generateEntity(EdmxModel.EntityType entityType) {
+		String className = entityType.getName() + "Entity";
+		Map<String, String> properties = entityType.getProperties();
+		JavaSource java = new JavaSource(header, packageName);
+		java.imports("java.util.ArrayList", "java.util.List", "java.util.Map", "", "com.sap.cloud.sdk.result.ElementName");
+		java.line("/**");
+		java.line(" * The " + entityType.getName() + " entity type, read from the backend OData V2 service. {@link #fromMap}");
+		java.line(" * fills it from a row of {@code ODataQueryResult.asListOfMaps()} without reflection.");
+		java.line(" */");
+		java.line("public class " + className + " {");
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			java.line("");
+			java.line("\t@ElementName(\"" + property.getKey() + "\")");
+			java.line("\tprivate " + JavaType.of(property.getValue()).boxed + " " + property.getKey() + ";");
+		}
+		java.line("");
+		java.line("\tpublic static " + className + " fromMap(Map<String, Object> values) {");
+		java.line("\t\t" + className + " entity = new " + className + "();");
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			java.line("\t\tentity." + property.getKey() + " = " + JavaType.of(property.getValue()).converter + "(values.get(\""
+					+ property.getKey() + "\"));");
+		}
+		java.line("\t\treturn entity;");
+		java.line("\t}");
+		java.line("");
+		java.line("\tpublic static List<" + className + "> fromMaps(List<Map<String, Object>> rows) {");
+		java.line("\t\tList<" + className + "> entities = new ArrayList<>(rows.size());");
+		java.line("\t\tfor (Map<String, Object> row : rows) {");
+		java.line("\t\t\tentities.add(fromMap(row));");
+		java.line("\t\t}");
+		java.line("\t\treturn entities;");
+		java.line("\t}");
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			String name = property.getKey();
+			String type = JavaType.of(property.getValue()).boxed;
+			java.line("");
+			java.line("\tpublic " + type + " get" + name + "() {");
+			java.line("\t\treturn " + name + ";");
+			java.line("\t}");
+			java.line("");
+			java.line("\tpublic void set" + name + "(" + type + " " + decapitalize(name) + ") {");
+			java.line("\t\tthis." + name + " = " + decapitalize(name) + ";");
+			java.line("\t}");
+		}
+		for (JavaType type : JavaType.values()) {
+			if (properties.values().stream().anyMatch(edmType -> JavaType.of(edmType) == type)) {
+				java.line("");
+				java.line("\tprivate static " + type.boxed + " " + type.converter + "(Object value) {");
+				java.line("\t\treturn " + type.conversion + ";");
+				java.line("\t}");
+			}
+		}
+		java.line("}");
+		return java.toString();
+	}
+
+	private void write(String className, String source) throws IOException {
+		Path file = packageDirectory.resolve(className + ".java");
+		byte[] content = source.getBytes(StandardCharsets.UTF_8);
+		// keep the timestamp of unchanged files, so the build does not recompile them
+		if (Files.exists(file) && Arrays.equals(Files.readAllBytes(file), content)) {
+			return;
+		}
+		Files.createDirectories(packageDirectory);
+		Files.write(file, content);
+		System.out.println("Generated " + file);
+	}
+
+	private static String decapitalize(String name) {
+		return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+	}
+
+	private enum JavaType {
+		STRING("Edm.String", "String", null, "getString", "string", "value == null ? null : value.toString()", "String", "LargeString"),
+		INT32("Edm.Int32", "Integer", "int", "getInt", "int32", "value == null ? null : ((Number) value).intValue()", "Integer"),
+		INT64("Edm.Int64", "Long", "long", "getLong", "int64", "value == null ? null : ((Number) value).longValue()", "Integer64");
+
+		private final String edmType;
+		private final String boxed;
+		/** the type of the ResultSet getter if it returns a primitive, which needs a wasNull() check */
+		private final String primitive;
+		private final String getter;
+		private final String converter;
+		private final String conversion;
+		private final String[] cdsTypes;
+
+		JavaType(String edmType, String boxed, String primitive, String getter, String converter, String conversion, String... cdsTypes) {
+			this.edmType = edmType;
+			this.boxed = boxed;
+			this.primitive = primitive;
+			this.getter = getter;
+			this.converter = converter;
+			this.conversion = conversion;
+			this.cdsTypes = cdsTypes;
+		}
+
+		static JavaType of(String edmType) {
+			for (JavaType type : values()) {
+				if (type.edmType.equals(edmType)) {
+					return type;
+				}
+			}
+			throw new IllegalArgumentException("Unsupported property type " + edmType);
+		}
+
+		boolean isStoredAs(String cdsType) {
+			return Arrays.asList(cdsTypes).contains(cdsType);
+		}
+	}
+
+	private static final class JavaSource {
+
+		private final StringBuilder source = new StringBuilder();
+
+		JavaSource(String header, String packageName) {
+			source.append(header).append("package ").append(packageName).append(';').append(NEWLINE).append(NEWLINE);
+		}
+
+		/**
+		 * An empty string separates groups of imports.
+		 */
+		void imports(String... classNames) {
+			for (String className : classNames) {
+				if (!className.isEmpty()) {
+					source.append("import ").append(className).append(';');
+				}
+				source.append(NEWLINE);
+			}
+			source.append(NEWLINE);
+		}
+
+		void line(String line) {
+			source.append(line).append(NEWLINE);
+		}
+
+		@Override
+		public String toString() {
+			return source.toString();
+		}
+	}
+}